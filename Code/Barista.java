@@ -2,32 +2,218 @@
     Our server application called barista,handling :
     1)listening and accepting for clients(customers) with server socket
     2) a run static method to call on the main function that will start the server
- ========================================**/
-import java.io.IOException; import java.net.ServerSocket; import java.net.Socket;
-import helpers.barista.VirtualCafe; import helpers.barista.CustomerHandler;
 
+    startup options:
+        --port=8888         customer port, e.g. a node of a cluster behind the Gateway on 8891
+        --io=blocking       (default) one thread running a CustomerHandler per customer
+        --io=nio            Selector event loop(s) serving many customers (NioCafeServer)
+        --reactors=N        number of reactor threads for --io=nio (default 1)
+        --threads=platform  (default) platform threads for --io=blocking handlers
+        --threads=virtual   virtual threads for the handlers and the brewing completions
+        --brew-scale=1.0    brew time multiplier, e.g. 0.01 for a quick demo, 0 brews instantly
+        --replies=coalesce  (default) replies to pipelined commands are flushed together,
+                            per-line flushes after every reply (the old behaviour)
+        --speedup=1         run the whole cafe clock faster (ScaledClock), brews and the metrics
+                            stay in cafe time: with 1000 a coffee takes 45ms and reports 45s
+        --config=cafe.properties   brewing slots and brew time per item type (BrewProfiles),
+                            e.g. tea.slots=4 and coffee.brew-ms=45000, defaults 2 x 30s / 2 x 45s;
+                            the admin console changes them while running (capacity, brew-time)
+        --shards=1          split the cafe in N independent shards (ShardedCafe), e.g. one per core:
+                            customers go by the hash of their name, every shard has the configured
+                            brewing slots and lends idle ones to the others (work stealing)
+        --policy=fifo       which waiting item a free slot takes (DispatchPolicy): fifo (default),
+                            round-robin, drr[:quantum] or srpt - fair ones keep small orders
+                            from waiting behind big ones; the admin console switches it (policy)
+
+    state log options (CafeStateLogger, written in the background):
+        --log-file=VritualCafe_logs.json   JSON array file, rotated on startup and by size
+        --log-buffer=4096                  snapshots buffered for the writer
+        --log-flush-ms=200                 how often the writer appends a batch
+        --log-policy=drop|block            full buffer: drop the snapshot or wait for the writer
+        --log-max-bytes=10485760           rotate the file once it is bigger
+        --log-max-files=5                  rotated files kept
+
+    journal options (CafeJournal, crash recovery - off unless --journal is given):
+        --journal=cafe.journal             write-ahead journal file, snapshot next to it (.snapshot)
+                                           on startup the orders in it are given back to their customers
+        --journal-fsync=always|interval|never   fsync after every batch, at most every interval, or never
+        --journal-flush-ms=5               how long the writer collects a batch (group commit)
+        --journal-fsync-ms=1000            fsync interval for --journal-fsync=interval
+        --journal-snapshot-every=100000    records between snapshots, bounds the replay on startup
+
+    admission control options (AdmissionControl, bounded work under overload):
+        --max-customer-items=1000          items one customer may have waiting or brewing
+        --max-waiting-items=100000         items of all customers in the waiting area
+                                           (an order over a limit is rejected with the estimated wait)
+        --command-rate=1000                commands per second per connection, 0 turns it off
+        --command-burst=200                commands a connection may send at once above the rate
+
+    metrics options:
+        --admin-port=8889   localhost only admin console ("metrics" command), 0 turns it off
+        the same metrics are registered over JMX as helpers.barista:type=CafeMetrics
+ ========================================**/
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService; import java.util.concurrent.Executors;
+import helpers.barista.Cafe; import helpers.barista.VirtualCafe; import helpers.barista.ShardedCafe; import helpers.barista.BrewingEngine; import helpers.barista.CafeStateLogger;
+import helpers.barista.CafeClock; import helpers.barista.CafeJournal; import helpers.barista.BrewProfiles;
+import helpers.barista.AdmissionControl; import helpers.barista.DispatchPolicy;
+import helpers.barista.BlockingCafeServer; import helpers.barista.NioCafeServer;
+import helpers.barista.AdminConsole;
+import static helpers.common.Options.option;
 
 public class Barista {
-    private final static int port = 8888; //after 8000 port number is easier to avoid conflicts
-    private static final VirtualCafe virtualCafe = new VirtualCafe();
+    private static int port = 8888; //after 8000 port number is easier to avoid conflicts
+    private static Cafe virtualCafe;
+    private static boolean coalesceReplies;
 
     public static void main(String[] args) {
-        startShift();
+        String io = option(args, "--io", "blocking");
+        String threads = option(args, "--threads", "platform");
+        if (!threads.equals("platform") && !threads.equals("virtual")) {
+            System.err.println("Unknown --threads mode: " + threads + ". Use platform or virtual");
+            return;
+        }
+        boolean virtualThreads = threads.equals("virtual");
+        String replies = option(args, "--replies", "coalesce");
+        if (!replies.equals("coalesce") && !replies.equals("per-line")) {
+            System.err.println("Unknown --replies mode: " + replies + ". Use coalesce or per-line");
+            return;
+        }
+        coalesceReplies = replies.equals("coalesce");
+        port = Integer.parseInt(option(args, "--port", String.valueOf(port)));
+
+        //brewing completions on virtual threads too, so none of them blocks the brewing timer
+        double brewScale = Double.parseDouble(option(args, "--brew-scale", "1.0"));
+        double speedup = Double.parseDouble(option(args, "--speedup", "1"));
+        BrewProfiles profiles = new BrewProfiles();
+        String config = option(args, "--config", "");
+        if (!config.isEmpty()) {
+            try {
+                profiles = BrewProfiles.load(config);
+            } catch (IOException e) {
+                System.err.println("Config not loaded: " + e.getMessage());
+                return;
+            }
+        }
+        AdmissionControl admission = new AdmissionControl(
+                Integer.parseInt(option(args, "--max-customer-items", "1000")),
+                Integer.parseInt(option(args, "--max-waiting-items", "100000")),
+                Double.parseDouble(option(args, "--command-rate", "1000")),
+                Integer.parseInt(option(args, "--command-burst", "200")));
+        DispatchPolicy policy;
+        try {
+            policy = DispatchPolicy.parse(option(args, "--policy", "fifo"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        CafeJournal journal = openJournal(args);
+        List<CafeJournal.RecoveredOrder> recovered = List.of();
+        if (journal != null) {
+            try {
+                recovered = journal.recover();
+            } catch (IOException e) {
+                //asked for a journal we could not recover, do not start over an unknown state
+                System.err.println("Journal not recovered: " + e.getMessage());
+                return;
+            }
+        }
+
+        //only now: the logger rotates the previous run's log away and starts a new one, so nothing may return before it
+        CafeStateLogger stateLogger = new CafeStateLogger(
+                option(args, "--log-file", CafeStateLogger.DEFAULT_LOG_FILE),
+                Integer.parseInt(option(args, "--log-buffer", "4096")),
+                Long.parseLong(option(args, "--log-flush-ms", "200")),
+                CafeStateLogger.Policy.valueOf(option(args, "--log-policy", "drop").toUpperCase()),
+                Long.parseLong(option(args, "--log-max-bytes", String.valueOf(10L * 1024 * 1024))),
+                Integer.parseInt(option(args, "--log-max-files", "5")),
+                true);
+
+        int shards = Integer.parseInt(option(args, "--shards", "1"));
+        if (shards > 1) {
+            //one brewing engine per shard with its own clock (its own scheduler thread), so the completions
+            //of the shards run side by side and each only takes the lock of its own shard
+            virtualCafe = new ShardedCafe(shards, () -> new BrewingEngine(
+                    virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null, brewScale, CafeClock.scaled(speedup)),
+                    stateLogger, journal, profiles, admission);
+        } else {
+            virtualCafe = new VirtualCafe(new BrewingEngine(
+                    virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null, brewScale, CafeClock.scaled(speedup)),
+                    stateLogger, journal, profiles, admission);
+        }
+        virtualCafe.setDispatchPolicy(policy); //before the recovered orders are queued again
+        if (journal != null) {
+            virtualCafe.restore(recovered);
+        }
+
+        //stop the brewing engine and close the state log and the journal when the server is closed (ctrl-c)
+        Runtime.getRuntime().addShutdownHook(new Thread(virtualCafe::shutdown));
+
+        startMetrics(Integer.parseInt(option(args, "--admin-port", "8889")));
+
+        if (io.equals("nio")) {
+            startNioShift(Integer.parseInt(option(args, "--reactors", "1")));
+        } else if (io.equals("blocking")) {
+            startShift(virtualThreads);
+        } else {
+            System.err.println("Unknown --io mode: " + io + ". Use blocking or nio");
+        }
     }
 
-    private static void startShift(){
-        ServerSocket serverSocket = null;
 
-        try{
-            serverSocket = new ServerSocket(port); //server listening in specified port
-            System.out.println("✔ Virtual Cafe Server Started");
-            System.out.println("Barista is waiting for customers to join the Virtual cafe..." );
+    // journal given with --journal (null when off), recovered before the cafe opens
+    private static CafeJournal openJournal(String[] args) {
+        String file = option(args, "--journal", "");
+        if (file.isEmpty()) {
+            return null;
+        }
+        return new CafeJournal(file,
+                CafeJournal.FsyncPolicy.valueOf(option(args, "--journal-fsync", "interval").toUpperCase()),
+                Long.parseLong(option(args, "--journal-flush-ms", "5")),
+                Long.parseLong(option(args, "--journal-fsync-ms", "1000")),
+                Integer.parseInt(option(args, "--journal-snapshot-every", "100000")));
+    }
 
-            //accepting many users to enter the cafe
-            while(true){
-                Socket socket = serverSocket.accept();
-                new Thread(new CustomerHandler(socket, virtualCafe)).start();
+    // metrics over JMX and the admin console, the cafe keeps serving customers if they fail
+    private static void startMetrics(int adminPort) {
+        try {
+            virtualCafe.getMetrics().registerMBean();
+        } catch (Exception e) {
+            System.err.println("Metrics not registered over JMX: " + e.getMessage());
+        }
+        if (adminPort > 0) {
+            try {
+                new AdminConsole(adminPort, virtualCafe).start();
+                System.out.println("Admin console on localhost:" + adminPort + " (metrics, help, quit)");
+            } catch (IOException e) {
+                System.err.println("Admin console not started: " + e.getMessage());
             }
+        }
+    }
+
+    private static void startNioShift(int reactors) {
+        try {
+            NioCafeServer server = new NioCafeServer(port, virtualCafe, reactors, coalesceReplies);
+            System.out.println("✔ Virtual Cafe Server Started (nio, " + reactors + " reactor threads)");
+            System.out.println("Barista is waiting for customers to join the Virtual cafe..." );
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void startShift(boolean virtualThreads){
+        //one new thread per customer, virtual ones are cheap enough for 50k+ idle customers
+        ExecutorService handlerExecutor = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+
+        try{
+            BlockingCafeServer server = new BlockingCafeServer(port, virtualCafe, handlerExecutor, coalesceReplies);
+            System.out.println("✔ Virtual Cafe Server Started" + (virtualThreads ? " (virtual threads)" : ""));
+            System.out.println("Barista is waiting for customers to join the Virtual cafe..." );
+            server.serve();
 
         }catch(IOException e){
             e.printStackTrace();
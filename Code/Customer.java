@@ -13,11 +13,13 @@
  * Key differences from bank example:
  * Uses background thread to handle async server notifications
  (server notifies when order is complete)
+ * The protocol itself (handshake, sending, reading lines) is in helpers.customer.CafeConnection,
+ shared with the headless LoadGenerator
  ====================================================================================**/
 import java.io.*;
-import java.net.Socket;
 import java.util.Scanner;
 import java.util.concurrent.atomic.AtomicBoolean;
+import helpers.customer.CafeConnection;
 
 public class Customer {
     private static final int PORT = 8888;
@@ -34,8 +36,12 @@ public class Customer {
         System.out.println("         order 2 coffees");
         System.out.println("         order 2 teas and 3 coffees");
         System.out.println("         order 1 coffee and 4 teas \n");
+        System.out.println(" * batch <order>; <order>; ...  - Several orders placed as one");
+        System.out.println("       Example:");
+        System.out.println("         batch order 2 teas; order 1 coffee and 3 teas; 5 coffees \n");
         System.out.println(" * order status    - Check your order status");
         System.out.println(" * collect         - Collect your completed order");
+        System.out.println(" * subscribe       - Get updates of your order as it brews (unsubscribe to stop)");
         System.out.println(" * exit            - Leave the café");
         System.out.println("===============================================================");
     }
@@ -63,22 +69,17 @@ public class Customer {
             }
         }));
 
-        try (Socket socket = new Socket(HOST, PORT);
-             Scanner fromServer = new Scanner(socket.getInputStream());
-             PrintWriter toServer = new PrintWriter(socket.getOutputStream(), true);
-        ) {
+        try (CafeConnection connection = new CafeConnection(HOST, PORT)) {
 
-            String welcomeMessage = fromServer.nextLine(); //server welcomes and asks for name
+            String welcomeMessage = connection.readWelcome(); //server welcomes and asks for name
             System.out.print(welcomeMessage);
 
             String customerName = fromUser.nextLine().trim();
-            toServer.println(customerName);
-
-            String serverResponse = fromServer.nextLine();
+            String serverResponse = connection.enterName(customerName);
             System.out.println(serverResponse);
 
             // If server sends error, exit
-            if (serverResponse.startsWith("ERROR")) {
+            if (serverResponse == null || serverResponse.startsWith("ERROR")) {
                 return;
             }
 
@@ -86,8 +87,8 @@ public class Customer {
             // Background thread continuously reads and prints server messages.
             Thread messageListener = new Thread(() -> {
                 try {
-                    while (fromServer.hasNextLine()) {
-                        String message = fromServer.nextLine();
+                    String message;
+                    while ((message = connection.readLine()) != null) {
                         System.out.println(message);
                     }
                 } catch (Exception e) {
@@ -108,7 +109,7 @@ public class Customer {
                     continue;
                 }
 
-                toServer.println(command);
+                connection.send(command);
 
                 // Brief pause to allow server response to be printed by listener thread
                 // before showing next prompt (makes output cleaner)
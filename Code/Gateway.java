@@ -0,0 +1,54 @@
+/**=======================================
+    Gateway in front of several Barista processes (a cafe cluster on one or more hosts).
+    Customers connect to the gateway exactly like to a Barista, every customer is relayed
+    to the node of its name on a consistent hash ring (helpers.gateway.CafeGateway).
+
+    startup options:
+        --port=8888                      customer port (the one Customer connects to)
+        --nodes=localhost:8891,localhost:8892   Barista nodes on the ring at startup,
+                                         each one started with its own --port and --admin-port
+        --virtual-nodes=128              points of every node on the ring (evens out the arcs)
+        --connect-timeout-ms=1000        a node not answering in time is skipped for the next one
+        --admin-port=8890                localhost console: nodes, add, remove, route; 0 turns it off
+
+    e.g. three nodes and the gateway on one machine:
+        java Barista --port=8891 --admin-port=8991 --log-file=node1_logs.json
+        java Barista --port=8892 --admin-port=8992 --log-file=node2_logs.json
+        java Barista --port=8893 --admin-port=8993 --log-file=node3_logs.json
+        java Gateway --nodes=localhost:8891,localhost:8892,localhost:8893
+ ========================================**/
+import java.io.IOException;
+import helpers.gateway.CafeGateway; import helpers.gateway.HashRing;
+import static helpers.common.Options.option;
+
+
+public class Gateway {
+
+    public static void main(String[] args) {
+        int port = Integer.parseInt(option(args, "--port", "8888"));
+        HashRing ring = new HashRing(Integer.parseInt(option(args, "--virtual-nodes", String.valueOf(HashRing.DEFAULT_VIRTUAL_NODES))));
+        for (String node : option(args, "--nodes", "localhost:8891").split(",")) {
+            if (!node.isBlank()) {
+                ring.add(node.trim());
+            }
+        }
+        CafeGateway gateway = new CafeGateway(port, ring, Integer.parseInt(option(args, "--connect-timeout-ms", "1000")));
+
+        int adminPort = Integer.parseInt(option(args, "--admin-port", "8890"));
+        if (adminPort > 0) {
+            try {
+                gateway.startAdmin(adminPort);
+                System.out.println("Gateway admin console on localhost:" + adminPort + " (nodes, add, remove, help, quit)");
+            } catch (IOException e) {
+                System.err.println("Gateway admin console not started: " + e.getMessage());
+            }
+        }
+
+        try {
+            System.out.println("✔ Virtual Cafe Gateway Started on port " + port + ", nodes: " + ring.getNodes());
+            gateway.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
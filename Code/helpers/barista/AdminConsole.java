@@ -0,0 +1,115 @@
+/**=========================
+    what it does?
+        Small text console for the operators of the cafe, separate from the customer port
+        and bound to localhost only. One command per line, every reply ends with a line "END":
+        * metrics   counters, gauges and latency percentiles (CafeMetrics report)
+        * capacity  brewing slots and brew time of every item type (BrewProfiles)
+        * capacity <type> <slots>     change the brewing slots of a type while running,
+                                      growing dispatches at once, shrinking drains
+        * brew-time <type> <ms>       change the brew time (cafe time) of new brews of a type
+        * policy    dispatch policy of the waiting items (DispatchPolicy)
+        * policy <name>               switch it while running: fifo, round-robin, drr[:quantum], srpt
+        * help      list of the admin commands
+        * quit      close the admin connection
+
+    why?
+        To scrape the metrics with a one liner (e.g. printf 'metrics\nquit\n' | nc localhost 8889)
+        instead of parsing the state dumps on stdout. JMX shows the same numbers.
+
+    note:
+        the connections are served by a LineConsole, one daemon thread each
+========================**/
+
+package helpers.barista;
+import java.io.IOException;
+import helpers.common.LineConsole;
+
+public class AdminConsole {
+    private final int port;
+    private final Cafe virtualCafe;
+
+    public AdminConsole(int port, Cafe virtualCafe) {
+        this.port = port;
+        this.virtualCafe = virtualCafe;
+    }
+
+    // Bind to localhost and accept admin connections on a background thread (LineConsole)
+    public void start() throws IOException {
+        LineConsole.start(port, "admin-console", command -> execute(command.toLowerCase()));
+    }
+
+    /**
+     * Run one admin command.
+
+     * @param command trimmed, lowercase command line
+     * @return reply text, every line ending with a newline
+     */
+    public String execute(String command) {
+        String[] words = command.split("\\s+");
+        switch (words[0]) {
+            case "metrics":
+                return virtualCafe.getMetrics().getReport();
+            case "capacity":
+                if (words.length == 1) {
+                    return virtualCafe.getProfiles().describe();
+                }
+                return changeProfile(words, true);
+            case "brew-time":
+                return changeProfile(words, false);
+            case "policy":
+                return changePolicy(words);
+            case "help":
+                return "metrics                   counters, gauges and latency percentiles\n"
+                        + "capacity                  brewing slots and brew time per item type\n"
+                        + "capacity <type> <slots>   change the brewing slots of a type\n"
+                        + "brew-time <type> <ms>     change the brew time of a type\n"
+                        + "policy                    dispatch policy of the waiting items\n"
+                        + "policy <name>             switch to fifo, round-robin, drr[:quantum] or srpt\n"
+                        + "help                      this list\n"
+                        + "quit                      close the connection\n";
+            default:
+                return "ERROR Unknown admin command: " + command
+                        + ". Valid commands: metrics, capacity, brew-time, policy, help, quit\n";
+        }
+    }
+
+    // capacity <type> <slots> / brew-time <type> <ms>, replies with the new profiles
+    private String changeProfile(String[] words, boolean slots) {
+        if (words.length != 3) {
+            return "ERROR Usage: " + words[0] + " <type> " + (slots ? "<slots>" : "<ms>") + "\n";
+        }
+        OrderItem.ItemType type;
+        try {
+            type = OrderItem.ItemType.valueOf(words[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return "ERROR Unknown item type: " + words[1] + "\n";
+        }
+        try {
+            if (slots) {
+                virtualCafe.setBrewingCapacity(type, Integer.parseInt(words[2]));
+            } else {
+                virtualCafe.setBrewTime(type, Long.parseLong(words[2]));
+            }
+        } catch (NumberFormatException e) {
+            return "ERROR Not a number: " + words[2] + "\n";
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage() + "\n";
+        }
+        return virtualCafe.getProfiles().describe();
+    }
+
+    // policy / policy <name>, replies with the policy in use
+    private String changePolicy(String[] words) {
+        if (words.length > 2) {
+            return "ERROR Usage: policy [fifo|round-robin|drr[:quantum]|srpt]\n";
+        }
+        if (words.length == 2) {
+            try {
+                virtualCafe.setDispatchPolicy(DispatchPolicy.parse(words[1]));
+            } catch (IllegalArgumentException e) {
+                return "ERROR " + e.getMessage() + "\n";
+            }
+        }
+        return "policy " + virtualCafe.getDispatchPolicy() + "\n";
+    }
+}
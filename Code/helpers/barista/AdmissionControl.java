@@ -0,0 +1,57 @@
+/**=========================
+    what it does?
+        Limits of what the cafe accepts, so accepted work stays serviceable when more
+        arrives than the brewing slots can handle:
+        * maxCustomerItems : items one customer may have waiting or brewing at once
+        * maxWaitingItems  : items of all customers in the waiting area (bounded queue)
+        * commandsPerSecond / commandBurst : token bucket of commands per connection
+        An order over a limit is rejected as a whole, with the estimated wait of the
+        queue, and nothing of it is queued (VirtualCafe.placeOrder).
+
+    why?
+        Without a bound one client ordering 2 billion coffees, or many clients ordering
+        faster than the cafe brews, grows the queue until every waiting time is useless
+        (or the heap runs out). Rejecting early keeps the wait of accepted orders bounded:
+        at most maxWaitingItems / slots brews per item type.
+
+    note:
+        UNLIMITED (or 0 for the command rate) turns a limit off, unlimited() turns all of
+        them off (benchmarks and tools building their own cafe)
+========================**/
+
+package helpers.barista;
+
+public class AdmissionControl {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int maxCustomerItems;
+    private final int maxWaitingItems;
+    private final double commandsPerSecond; //0: no rate limit
+    private final int commandBurst;
+
+    public AdmissionControl(int maxCustomerItems, int maxWaitingItems, double commandsPerSecond, int commandBurst) {
+        if (maxCustomerItems < 1 || maxWaitingItems < 1) {
+            throw new IllegalArgumentException("Item limits must be positive.");
+        }
+        if (commandsPerSecond < 0 || (commandsPerSecond > 0 && commandBurst < 1)) {
+            throw new IllegalArgumentException("Command rate must not be negative and its burst must be positive.");
+        }
+        this.maxCustomerItems = maxCustomerItems;
+        this.maxWaitingItems = maxWaitingItems;
+        this.commandsPerSecond = commandsPerSecond;
+        this.commandBurst = commandBurst;
+    }
+
+    public static AdmissionControl unlimited() {
+        return new AdmissionControl(UNLIMITED, UNLIMITED, 0, 0);
+    }
+
+    public int getMaxCustomerItems()     { return maxCustomerItems; }
+    public int getMaxWaitingItems()      { return maxWaitingItems; }
+    public double getCommandsPerSecond() { return commandsPerSecond; }
+
+    // a fresh bucket for a new connection, null when commands are not rate limited
+    public TokenBucket newCommandBucket() {
+        return commandsPerSecond > 0 ? new TokenBucket(commandsPerSecond, commandBurst) : null;
+    }
+}
@@ -0,0 +1,97 @@
+/**=================
+    what it does?
+        Turns one command frame of the binary protocol (BinaryProtocol) into the reply
+        frame, the binary counterpart of CommandDispatcher: the same cafe calls, the same
+        rate limit and metrics, only the numbers go over the wire instead of sentences.
+        Shared by both front ends like CommandDispatcher.
+
+    note:
+        the HELLO frame is handled by the front ends (they open the session),
+        error messages are the ones the text protocol sends after "ERROR "
+===================**/
+
+package helpers.barista;
+import java.nio.ByteBuffer;
+
+public class BinaryDispatcher {
+    private final Cafe virtualCafe;
+
+    public BinaryDispatcher(Cafe virtualCafe) {
+        this.virtualCafe = virtualCafe;
+    }
+
+    /**
+     * Handle one command frame of a customer.
+
+     * @param sessionId     session of the connection (VirtualCafe.openSession)
+     * @param body          opcode and payload of the frame (BinaryProtocol.readFrame)
+     * @param commandBucket token bucket of the connection, null when not rate limited
+     * @return reply frame ready to write
+     */
+    public ByteBuffer dispatch(int sessionId, ByteBuffer body, TokenBucket commandBucket) {
+        int opcode = body.get() & 0xff;
+        if (commandBucket != null && opcode != BinaryProtocol.EXIT && !commandBucket.tryAcquire()) {
+            virtualCafe.getMetrics().commandThrottled();
+            return BinaryProtocol.error("Too many commands: at most " + Math.round(commandBucket.getRate())
+                    + " per second, please slow down.");
+        }
+        long start = System.nanoTime();
+
+        ByteBuffer reply;
+        CafeMetrics.Command command = CafeMetrics.Command.OTHER;
+        try {
+            switch (opcode) {
+                case BinaryProtocol.ORDER:
+                    command = CafeMetrics.Command.ORDER;
+                    expectPayload(body, 8, opcode);
+                    int numTeas = body.getInt();
+                    int numCoffees = body.getInt();
+                    if (numTeas == 0 && numCoffees == 0) {
+                        throw new Exception("No items ordered");
+                    }
+                    virtualCafe.placeOrder(sessionId, numTeas, numCoffees);
+                    reply = BinaryProtocol.quantities(BinaryProtocol.ORDER_OK, numTeas, numCoffees);
+                    break;
+                case BinaryProtocol.STATUS:
+                    command = CafeMetrics.Command.STATUS;
+                    int[] counts = new int[Order.COUNTERS];
+                    long readyIn = virtualCafe.getOrderCounts(sessionId, counts);
+                    reply = BinaryProtocol.status(counts, readyIn);
+                    break;
+                case BinaryProtocol.COLLECT:
+                    command = CafeMetrics.Command.COLLECT;
+                    int[] collected = new int[2];
+                    virtualCafe.collectOrder(sessionId, collected);
+                    reply = BinaryProtocol.quantities(BinaryProtocol.COLLECTED, collected[0], collected[1]);
+                    break;
+                case BinaryProtocol.SUBSCRIBE:
+                    command = CafeMetrics.Command.SUBSCRIBE;
+                    expectPayload(body, 1, opcode);
+                    boolean on = body.get() != 0;
+                    virtualCafe.subscribe(sessionId, on);
+                    reply = BinaryProtocol.flag(BinaryProtocol.SUBSCRIBED, on);
+                    break;
+                case BinaryProtocol.EXIT:
+                    command = CafeMetrics.Command.EXIT;
+                    virtualCafe.customerDisconnected(sessionId);
+                    reply = BinaryProtocol.empty(BinaryProtocol.GOODBYE);
+                    break;
+                default:
+                    reply = BinaryProtocol.error(String.format("Unknown opcode 0x%02x.", opcode));
+            }
+        } catch (Exception e) {
+            reply = BinaryProtocol.error(e.getMessage());
+        }
+
+        // handling time of this command, without the socket I/O of the front end
+        virtualCafe.getMetrics().recordCommand(command, System.nanoTime() - start);
+        return reply;
+    }
+
+    private static void expectPayload(ByteBuffer body, int length, int opcode) throws Exception {
+        if (body.remaining() != length) {
+            throw new Exception(String.format("Malformed frame: opcode 0x%02x takes %d bytes, got %d.",
+                    opcode, length, body.remaining()));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**=========================
+    what it does?
+        Compact binary protocol next to the text protocol, for automated clients
+        (LoadGenerator --protocol=binary): fixed opcodes and fixed width numbers instead
+        of sentences the client has to parse back. The server speaks both on the same port.
+
+    handshake:
+        the server sends its text welcome line as always; a binary client answers with the
+        MAGIC byte (0xFE, never the first byte of a UTF-8 name) and a HELLO frame instead of
+        its name line. Without MAGIC the connection is a text connection as before.
+
+    frames (both ways, numbers big endian):
+        u16 length of the body | body = u8 opcode + payload (at most MAX_BODY_LENGTH bytes)
+
+        customer -> cafe                      cafe -> customer
+        HELLO     name (UTF-8)                HELLO_OK
+        ORDER     i32 teas, i32 coffees       ORDER_OK      i32 teas, i32 coffees
+        STATUS                                STATUS_REPLY  counters, i64 ready in ms (-1 no estimate)
+        COLLECT                               COLLECTED     i32 teas, i32 coffees (0, 0: no order)
+        SUBSCRIBE u8 1 on / 0 off             SUBSCRIBED    u8 1 on / 0 off
+        EXIT                                  GOODBYE
+                                              ERROR         message (UTF-8), same text as the text protocol
+                                              NOTIFICATION  u8 Notice.Kind, i32 dropped, counters, i64 ready in ms
+
+        counters: i32 waiting, brewing, ready of every item type (Order.COUNTERS of them,
+        tea then coffee), the Order counters as they are. A NOTIFICATION can come at any
+        time, every other frame from the cafe is the reply to the oldest command.
+========================**/
+
+package helpers.barista;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class BinaryProtocol {
+    public static final int MAGIC = 0xFE;
+    public static final int MAX_BODY_LENGTH = 4096;
+
+    // customer -> cafe
+    public static final int HELLO = 0x01;
+    public static final int ORDER = 0x02;
+    public static final int STATUS = 0x03;
+    public static final int COLLECT = 0x04;
+    public static final int SUBSCRIBE = 0x05;
+    public static final int EXIT = 0x06;
+
+    // cafe -> customer
+    public static final int HELLO_OK = 0x81;
+    public static final int ORDER_OK = 0x82;
+    public static final int STATUS_REPLY = 0x83;
+    public static final int COLLECTED = 0x84;
+    public static final int SUBSCRIBED = 0x85;
+    public static final int GOODBYE = 0x86;
+    public static final int NOTIFICATION = 0x90;
+    public static final int ERROR = 0xFF;
+
+    //=====building frames=====
+    // frame with room for the payload, the caller puts it and flips
+    private static ByteBuffer frame(int opcode, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(3 + payloadLength);
+        frame.putShort((short) (1 + payloadLength));
+        frame.put((byte) opcode);
+        return frame;
+    }
+
+    public static ByteBuffer empty(int opcode) {
+        return frame(opcode, 0).flip();
+    }
+
+    // ORDER, ORDER_OK, COLLECTED
+    public static ByteBuffer quantities(int opcode, int teas, int coffees) {
+        return frame(opcode, 8).putInt(teas).putInt(coffees).flip();
+    }
+
+    // SUBSCRIBE, SUBSCRIBED
+    public static ByteBuffer flag(int opcode, boolean on) {
+        return frame(opcode, 1).put((byte) (on ? 1 : 0)).flip();
+    }
+
+    // HELLO, ERROR: UTF-8 text, cut to the longest body allowed
+    public static ByteBuffer text(int opcode, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_BODY_LENGTH - 1);
+        return frame(opcode, length).put(bytes, 0, length).flip();
+    }
+
+    public static ByteBuffer error(String message) {
+        return text(ERROR, message);
+    }
+
+    // STATUS_REPLY: the counters of Order.copyCounts and the estimate of VirtualCafe.getOrderCounts
+    public static ByteBuffer status(int[] counts, long readyInNanos) {
+        ByteBuffer frame = frame(STATUS_REPLY, 4 * Order.COUNTERS + 8);
+        for (int i = 0; i < Order.COUNTERS; i++) {
+            frame.putInt(counts[i]);
+        }
+        return frame.putLong(millis(readyInNanos)).flip();
+    }
+
+    public static ByteBuffer notice(Notice notice) {
+        ByteBuffer frame = frame(NOTIFICATION, 1 + 4 + 4 * Order.COUNTERS + 8);
+        frame.put((byte) notice.getKind().ordinal());
+        frame.putInt(notice.getDropped());
+        for (int i = 0; i < Order.COUNTERS; i++) {
+            frame.putInt(notice.getCount(i));
+        }
+        return frame.putLong(millis(notice.getReadyInNanos())).flip();
+    }
+
+    private static long millis(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    //=====reading and writing on streams=====
+    /**
+     * Next frame of a blocking stream.
+
+     * @return the body (opcode first), null if the stream ended before a new frame
+     * @throws IOException if the stream ends inside a frame or the length is not allowed
+     */
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int high = in.read();
+        if (high < 0) {
+            return null;
+        }
+        int length = (high << 8) | in.readUnsignedByte();
+        if (length == 0 || length > MAX_BODY_LENGTH) {
+            throw new IOException("Bad frame length " + length + ".");
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    // one write call per frame, so frames of the reply and notification writers never interleave
+    public static void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    // the UTF-8 text after the opcode of a HELLO or ERROR body
+    public static String text(ByteBuffer body) {
+        return StandardCharsets.UTF_8.decode(body.slice()).toString();
+    }
+}
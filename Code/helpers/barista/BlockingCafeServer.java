@@ -0,0 +1,48 @@
+/**=========================
+    what it does?
+        Thread per connection front end of the barista (--io=blocking, the default).
+        Accepts customers with a ServerSocket and runs one CustomerHandler for each.
+
+    which threads?
+        The handlers run on the executor given, so the same accept loop serves
+        * platform threads (one new platform thread per customer, as always)
+        * virtual threads  (Executors.newVirtualThreadPerTaskExecutor()), cheap enough
+          for tens of thousands of mostly idle customers on one JVM
+========================**/
+
+package helpers.barista;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+
+public class BlockingCafeServer {
+    private final int port;
+    private final Cafe virtualCafe;
+    private final ExecutorService handlerExecutor;
+    private final boolean coalesceReplies; //one flush per burst of pipelined commands
+
+    public BlockingCafeServer(int port, Cafe virtualCafe, ExecutorService handlerExecutor) {
+        this(port, virtualCafe, handlerExecutor, true);
+    }
+
+    public BlockingCafeServer(int port, Cafe virtualCafe, ExecutorService handlerExecutor, boolean coalesceReplies) {
+        this.port = port;
+        this.virtualCafe = virtualCafe;
+        this.handlerExecutor = handlerExecutor;
+        this.coalesceReplies = coalesceReplies;
+    }
+
+    // Accept customers forever on the calling thread
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 1024)) { //large backlog for connection bursts
+            //accepting many users to enter the cafe
+            while (true) {
+                Socket socket = serverSocket.accept();
+                handlerExecutor.execute(new CustomerHandler(socket, virtualCafe, coalesceReplies));
+            }
+        } finally {
+            handlerExecutor.shutdownNow();
+        }
+    }
+}
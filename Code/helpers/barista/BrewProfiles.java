@@ -0,0 +1,90 @@
+/**=========================
+    what it does?
+        Capacity model of the cafe: for every item type how many can brew at the same
+        time (slots, the "machines") and how long one brew takes.
+        Defaults come from the ItemType itself (tea 2 x 30s, coffee 2 x 45s), a properties
+        file can override them and the admin console changes them while the cafe runs.
+
+    config file (--config=cafe.properties), one pair of keys per item type:
+        tea.slots=4
+        tea.brew-ms=30000
+        coffee.slots=6
+        coffee.brew-ms=45000
+
+    why arrays?
+        Indexed by ItemType ordinal, so a new item type is one more enum constant with its
+        defaults - no if/else per type in the cafe. Atomic arrays because the admin thread
+        writes them while the dispatcher and brewing threads read them.
+
+    note:
+        a new brew time applies to brews started afterwards; for the capacity see
+        VirtualCafe.setBrewingCapacity (growing dispatches at once, shrinking drains)
+========================**/
+
+package helpers.barista;
+import java.io.*;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BrewProfiles {
+    private final AtomicIntegerArray slots = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+    private final AtomicLongArray brewMillis = new AtomicLongArray(OrderItem.ItemType.values().length);
+
+    // the defaults of every ItemType
+    public BrewProfiles() {
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            slots.set(type.ordinal(), type.getDefaultSlots());
+            brewMillis.set(type.ordinal(), type.getDefaultBrewMillis());
+        }
+    }
+
+    // defaults overridden by <type>.slots / <type>.brew-ms of a properties file
+    public static BrewProfiles load(String file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        }
+        BrewProfiles profiles = new BrewProfiles();
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            String prefix = type.name().toLowerCase();
+            try {
+                String value = properties.getProperty(prefix + ".slots");
+                if (value != null) profiles.setSlots(type, Integer.parseInt(value.trim()));
+                value = properties.getProperty(prefix + ".brew-ms");
+                if (value != null) profiles.setBrewMillis(type, Long.parseLong(value.trim()));
+            } catch (IllegalArgumentException e) { //NumberFormatException included
+                throw new IOException("Invalid " + prefix + " profile in " + file + ": " + e.getMessage());
+            }
+        }
+        return profiles;
+    }
+
+    public int getSlots(OrderItem.ItemType type)       { return slots.get(type.ordinal()); }
+    public long getBrewMillis(OrderItem.ItemType type) { return brewMillis.get(type.ordinal()); }
+
+    // package-private: VirtualCafe changes the slots, it has to dispatch right after
+    void setSlots(OrderItem.ItemType type, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Brewing slots must not be negative.");
+        }
+        slots.set(type.ordinal(), count);
+    }
+
+    public void setBrewMillis(OrderItem.ItemType type, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Brew time must not be negative.");
+        }
+        brewMillis.set(type.ordinal(), millis);
+    }
+
+    // one line per item type, e.g. "tea      slots=2 brew-ms=30000"
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            sb.append(String.format("%-8s slots=%d brew-ms=%d%n",
+                    type.name().toLowerCase(), getSlots(type), getBrewMillis(type)));
+        }
+        return sb.toString();
+    }
+}
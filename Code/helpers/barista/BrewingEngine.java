@@ -0,0 +1,137 @@
+/**=========================
+    what it does?
+        Shared brewing engine of the cafe. Instead of one thread per brewing
+        item (that only sleeps for the brew time), every brew is scheduled as a
+        timed completion event on ONE scheduler thread.
+
+    why?
+        * Only a handful of items brew at once, but under load we kept creating
+          and destroying platform threads for every single drink
+        * One scheduler thread serves any number of pending brews
+        * Gives a clean shutdown path and a count of the brews still pending
+
+    time:
+        brews are timed by a CafeClock: real time by default, a ScaledClock to run faster,
+        or a VirtualClock for simulations. The time scale multiplies every brew time on top
+        of that (0.001 a thousand times shorter brews, 0 brews complete right away)
+
+    note:
+        by default completion callbacks run on the scheduler thread, so they must be short
+        (VirtualCafe.finishBrewing only updates state and dispatches the next items).
+        A completion executor can be given instead, e.g. one virtual thread per completion,
+        so a completion waiting for the cafe lock never holds up the timer
+========================**/
+
+package helpers.barista;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BrewingEngine {
+    private final CafeClock clock;
+    private final ExecutorService completionExecutor; //null: completions run on the scheduler thread
+    private final AtomicInteger pendingBrews = new AtomicInteger(0);
+    private final double timeScale; //1.0 real brew times, 0.001 a thousand times faster (stress checks)
+
+    // Handle of one scheduled brew. Its completion and a cancel race for the settled flag, so exactly one
+    // of them counts the brew as no longer pending (a FutureTask still cancels while its task is running)
+    private static final class Brew implements Future<Object> {
+        final AtomicBoolean settled = new AtomicBoolean();
+        volatile Future<?> scheduled;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!settled.compareAndSet(false, true)) {
+                return false; //completing or completed already
+            }
+            scheduled.cancel(mayInterruptIfRunning);
+            return true;
+        }
+
+        @Override public boolean isCancelled() { return scheduled.isCancelled(); }
+        @Override public boolean isDone()      { return scheduled.isDone(); }
+        @Override public Object get() throws InterruptedException, ExecutionException { return scheduled.get(); }
+        @Override public Object get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException { return scheduled.get(timeout, unit); }
+    }
+
+    public BrewingEngine() {
+        this(null);
+    }
+
+    public BrewingEngine(ExecutorService completionExecutor) {
+        this(completionExecutor, 1.0);
+    }
+
+    public BrewingEngine(ExecutorService completionExecutor, double timeScale) {
+        this(completionExecutor, timeScale, CafeClock.real());
+    }
+
+    public BrewingEngine(ExecutorService completionExecutor, double timeScale, CafeClock clock) {
+        if (timeScale < 0) {
+            throw new IllegalArgumentException("Time scale must be non-negative.");
+        }
+        this.completionExecutor = completionExecutor;
+        this.timeScale = timeScale;
+        this.clock = clock;
+    }
+
+    // time source of the cafe using this engine (metrics timestamps use it too)
+    public CafeClock getClock() { return clock; }
+
+    // how long a brew of brewMillis really takes on the clock, after the time scale
+    public long brewNanos(long brewMillis) {
+        return (long) (brewMillis * 1_000_000L * timeScale);
+    }
+
+    /**
+     * Schedule the completion of one brewing item.
+     *
+     * @param brewMillis   brew time of the item in cafe time (BrewProfiles), scaled by the time scale
+     * @param onFinished   called once the brew time of the item has passed
+     * @return handle of the scheduled brew (can be cancelled)
+     */
+    public Future<?> brew(long brewMillis, final Runnable onFinished) {
+        Brew brew = new Brew();
+        pendingBrews.incrementAndGet();
+        try {
+            brew.scheduled = clock.schedule(() -> {
+                if (!brew.settled.compareAndSet(false, true)) {
+                    return; //cancelled while it was about to run, cancel counted it
+                }
+                pendingBrews.decrementAndGet();
+                if (completionExecutor == null) {
+                    onFinished.run();
+                } else {
+                    completionExecutor.execute(onFinished);
+                }
+            }, brewNanos(brewMillis));
+            return brew;
+        } catch (RejectedExecutionException e) {
+            pendingBrews.decrementAndGet(); //engine already shut down
+            throw e;
+        }
+    }
+
+    // Cancel a scheduled brew (customer left), returns false if it already completed or is completing
+    public boolean cancel(Future<?> brew) {
+        if (brew != null && brew.cancel(false)) {
+            pendingBrews.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public int getPendingBrews() {
+        return pendingBrews.get();
+    }
+
+    // Stop accepting brews and drop the pending ones (items still brewing are lost with the server)
+    public void shutdown() {
+        clock.shutdown();
+        if (completionExecutor != null) {
+            completionExecutor.shutdownNow();
+        }
+        pendingBrews.set(0);
+    }
+}
@@ -0,0 +1,60 @@
+/**=========================
+    what it does?
+        Everything the front ends (servers, CommandDispatcher, admin console, metrics)
+        and the tools need from a cafe, so they serve one VirtualCafe or a ShardedCafe
+        (N VirtualCafe shards side by side) the same way.
+
+    note:
+        the session methods are the command path of the servers, the name methods are
+        for tools and benchmarks - see VirtualCafe for what each one does
+========================**/
+
+package helpers.barista;
+import java.util.List;
+
+public interface Cafe {
+    //=====connections=====
+    void customerConnected(String customerName);
+    int openSession(String customerName);
+    void closeSession(int sessionId);
+    void customerDisconnected(String customerName);
+    void customerDisconnected(int sessionId);
+    void setOutbox(int sessionId, Outbox outbox);
+    String subscribe(int sessionId, boolean subscribe) throws Exception;
+
+    //=====orders=====
+    void placeOrder(String customerName, int numTeas, int numCoffees) throws Exception;
+    void placeOrder(int sessionId, int numTeas, int numCoffees) throws Exception;
+    String getOrderStatus(String customerName) throws Exception;
+    String getOrderStatus(int sessionId) throws Exception;
+    boolean isOrderComplete(String customerName) throws Exception;
+    boolean isOrderComplete(int sessionId) throws Exception;
+    long getEstimatedReadyIn(String customerName) throws Exception;
+    long getEstimatedReadyIn(int sessionId) throws Exception;
+    String collectOrder(String customerName) throws Exception;
+    String collectOrder(int sessionId) throws Exception;
+    long getOrderCounts(int sessionId, int[] counts) throws Exception;   //binary protocol status
+    void collectOrder(int sessionId, int[] collected) throws Exception;  //binary protocol collect
+
+    //=====aggregates (O(1), no lock)=====
+    int getNumberOfClients();
+    int getNumberOfClientsWaiting();
+    int getWaitingCount(OrderItem.ItemType type);
+    int getBrewingCount(OrderItem.ItemType type);
+    int getReadyCount(OrderItem.ItemType type);
+    int getBrewingSlotsTaken(OrderItem.ItemType type);
+    int getBrewingCapacity(OrderItem.ItemType type);
+    int getPendingBrews();
+
+    //=====configuration and lifecycle=====
+    CafeMetrics getMetrics();
+    AdmissionControl getAdmission();
+    BrewProfiles getProfiles();
+    void setBrewingCapacity(OrderItem.ItemType type, int slots);
+    void setBrewTime(OrderItem.ItemType type, long brewMillis);
+    DispatchPolicy getDispatchPolicy();
+    void setDispatchPolicy(DispatchPolicy policy);
+    void restore(List<CafeJournal.RecoveredOrder> recovered);
+    List<String> checkInvariants();
+    void shutdown();
+}
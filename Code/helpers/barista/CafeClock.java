@@ -0,0 +1,44 @@
+/**=========================
+    what it does?
+        Source of time for the cafe: what time it is (for the metrics timestamps) and
+        running a task after some time has passed (for the brewing completions).
+
+    why?
+        Brewing used to depend on real wall clock sleeps, so a day of traffic took a day.
+        With the clock injected into the BrewingEngine (and through it into VirtualCafe):
+        * real()       : real time, what the server runs on
+        * scaled(1000) : time runs 1000x faster, real threads and sockets still work
+        * VirtualClock : discrete event clock, jumps straight to the next event, so a
+                         simulated day runs in seconds and gives the same result every run
+
+    note:
+        all times are cafe time in nanoseconds, a brew of 30 seconds is always 30s of cafe time
+========================**/
+
+package helpers.barista;
+import java.util.concurrent.Future;
+
+public interface CafeClock {
+
+    // current cafe time in nanoseconds (only differences between two readings mean something)
+    long nanoTime();
+
+    /**
+     * Run a task once the given amount of cafe time has passed.
+
+     * @return handle of the scheduled task, can be cancelled
+     * @throws java.util.concurrent.RejectedExecutionException if the clock was shut down
+     */
+    Future<?> schedule(Runnable task, long delayNanos);
+
+    // drop everything scheduled and stop the clock's threads (if any)
+    void shutdown();
+
+    static CafeClock real() {
+        return new ScaledClock(1.0);
+    }
+
+    static CafeClock scaled(double speedup) {
+        return new ScaledClock(speedup);
+    }
+}
@@ -0,0 +1,460 @@
+/**=========================
+    what it does?
+        Write-ahead journal of the cafe, so queued and ready drinks survive a restart.
+        Every state transition of VirtualCafe is appended as one small binary record:
+            PLACE (teas, coffees), START_BREW (type), FINISH_BREW (type), COLLECT, DISCONNECT
+        and now and then the whole state is written as a compact snapshot, after which
+        the journal starts empty again. On startup snapshot + journal tail are replayed.
+
+    why not write the file from the cafe?
+        The cafe only puts the record into a lock free queue (no I/O under its locks).
+        One writer thread does all the rest:
+        * group commit : every flush interval it writes all queued records with one write,
+                         then fsyncs according to the policy (ALWAYS after every batch,
+                         INTERVAL at most once per fsync interval, NEVER leave it to the OS)
+        * shadow model : it applies every record it writes to its own per-customer counters,
+                         so a snapshot never has to lock or scan the cafe
+        * snapshots    : after every <snapshotEvery> records the shadow model is written to
+                         <journal>.snapshot (temp file + atomic rename) and the journal truncated,
+                         which bounds the journal tail (and the recovery time)
+
+    file formats (big endian, DataOutputStream):
+        journal record  : int length | long seq | byte type | UTF name | payload | int crc32
+        snapshot        : int magic | long lastSeq | int customers |
+                          per customer: UTF name, long firstSeq, 6 ints (waiting, brewing, ready x tea, coffee) |
+                          int crc32
+        Records carry a sequence number and the snapshot the last one it contains, so a crash
+        between writing the snapshot and truncating the journal never replays a record twice.
+        A torn record at the end of the journal (crash in the middle of a write) fails its
+        length or crc check and replay stops there.
+
+    note:
+        records are written asynchronously: a crash loses at most the last flush interval,
+        and with INTERVAL/NEVER whatever the OS had not written yet (a clean close loses nothing). A record that cannot be
+        encoded is skipped (the writer goes on); once the file cannot be written the journal
+        is failed: it says so once, drops what is queued and takes no more records
+========================**/
+
+package helpers.barista;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+public class CafeJournal {
+    public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    private static final int SNAPSHOT_MAGIC = 0xCAFE0001;
+    // seq + type + writeUTF of the longest name it can encode + teas + coffees (names are capped far below,
+    // CommandDispatcher.MAX_NAME_LENGTH), so replay never takes a record it could write for a torn one
+    private static final int MAX_RECORD_BYTES = 8 + 1 + 2 + 65535 + 4 + 4;
+
+    private static final byte PLACE = 1, START_BREW = 2, FINISH_BREW = 3, COLLECT = 4, DISCONNECT = 5;
+
+    private final Path journalFile;
+    private final Path snapshotFile;
+    private final FsyncPolicy fsyncPolicy;
+    private final long flushIntervalMs;
+    private final long fsyncIntervalMs;
+    private final int snapshotEvery;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile boolean failed = false; //the file could not be written, no more records taken
+
+    // only touched by the writer thread (and by recover() before it starts)
+    private final Map<String, ShadowOrder> shadow = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long nextSeq = 1;
+    private long recordsSinceSnapshot;
+    private long lastFsync;
+    private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream batchOut = new DataOutputStream(batchBytes);
+    private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream bodyOut = new DataOutputStream(bodyBytes);
+    private final CRC32 crc = new CRC32();
+
+    // One transition, created by the cafe thread and written by the writer thread
+    private static class Entry {
+        final byte type;
+        final String name;
+        final int teas, coffees; //PLACE: quantities, START_BREW/FINISH_BREW: 1 in the brewed type
+
+        Entry(byte type, String name, int teas, int coffees) {
+            this.type = type;
+            this.name = name;
+            this.teas = teas;
+            this.coffees = coffees;
+        }
+    }
+
+    // Counters of one customer as the journal knows them
+    private static class ShadowOrder {
+        long firstSeq; //first PLACE since the customer was idle, keeps the waiting order on recovery
+        int teasWaiting, coffeesWaiting, teasBrewing, coffeesBrewing, teasReady, coffeesReady;
+
+        boolean isIdle() {
+            return teasWaiting + coffeesWaiting + teasBrewing + coffeesBrewing + teasReady + coffeesReady == 0;
+        }
+    }
+
+    // What a customer had when the server went down (brewing items count as waiting again)
+    public static class RecoveredOrder {
+        public final String customerName;
+        public final int teasWaiting, coffeesWaiting, teasReady, coffeesReady;
+
+        RecoveredOrder(String customerName, int teasWaiting, int coffeesWaiting, int teasReady, int coffeesReady) {
+            this.customerName = customerName;
+            this.teasWaiting = teasWaiting;
+            this.coffeesWaiting = coffeesWaiting;
+            this.teasReady = teasReady;
+            this.coffeesReady = coffeesReady;
+        }
+    }
+
+    /**
+     * @param journalFile     journal path, the snapshot is written next to it as <journal>.snapshot
+     * @param fsyncPolicy     when written batches are forced to disk
+     * @param flushIntervalMs how long the writer collects a batch (group commit)
+     * @param fsyncIntervalMs minimum time between two fsyncs with the INTERVAL policy
+     * @param snapshotEvery   records after which a snapshot is written and the journal truncated
+     */
+    public CafeJournal(String journalFile, FsyncPolicy fsyncPolicy, long flushIntervalMs,
+                       long fsyncIntervalMs, int snapshotEvery) {
+        if (flushIntervalMs < 1 || fsyncIntervalMs < 1 || snapshotEvery < 1) {
+            throw new IllegalArgumentException("Journal intervals and snapshot size must be positive.");
+        }
+        this.journalFile = Paths.get(journalFile);
+        this.snapshotFile = Paths.get(journalFile + ".snapshot");
+        this.fsyncPolicy = fsyncPolicy;
+        this.flushIntervalMs = flushIntervalMs;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    //=====called by VirtualCafe (under its locks: only a queue offer, no I/O)=====
+    void placed(String name, int teas, int coffees) { append(new Entry(PLACE, name, teas, coffees)); }
+    void startedBrewing(String name, OrderItem.ItemType type) { append(brewEntry(START_BREW, name, type)); }
+    void finishedBrewing(String name, OrderItem.ItemType type) { append(brewEntry(FINISH_BREW, name, type)); }
+    void collected(String name) { append(new Entry(COLLECT, name, 0, 0)); }
+    void disconnected(String name) { append(new Entry(DISCONNECT, name, 0, 0)); }
+
+    private static Entry brewEntry(byte type, String name, OrderItem.ItemType itemType) {
+        boolean tea = itemType == OrderItem.ItemType.TEA;
+        return new Entry(type, name, tea ? 1 : 0, tea ? 0 : 1);
+    }
+
+    private void append(Entry entry) {
+        if (!closed && !failed) {
+            queue.add(entry);
+        }
+    }
+
+    //=====recovery=====
+    /**
+     * Replay snapshot + journal tail, write a fresh snapshot of the result, truncate the
+     * journal and start the writer. Call once, before the cafe takes any customers.
+
+     * @return orders to give back to the customers, in the order they were first placed
+     */
+    public List<RecoveredOrder> recover() throws IOException {
+        long start = System.nanoTime();
+        long lastSeq = readSnapshot();
+        long replayed = replayJournal(lastSeq);
+        nextSeq = Math.max(nextSeq, lastSeq + 1);
+
+        // brewing items are lost with the server, they wait again (ahead of the rest of their order)
+        List<RecoveredOrder> recovered = new ArrayList<>();
+        List<Map.Entry<String, ShadowOrder>> byFirstOrder = new ArrayList<>(shadow.entrySet());
+        byFirstOrder.sort(Comparator.comparingLong(e -> e.getValue().firstSeq));
+        int items = 0;
+        for (Map.Entry<String, ShadowOrder> e : byFirstOrder) {
+            ShadowOrder order = e.getValue();
+            order.teasWaiting += order.teasBrewing;
+            order.coffeesWaiting += order.coffeesBrewing;
+            order.teasBrewing = 0;
+            order.coffeesBrewing = 0;
+            recovered.add(new RecoveredOrder(e.getKey(), order.teasWaiting, order.coffeesWaiting,
+                    order.teasReady, order.coffeesReady));
+            items += order.teasWaiting + order.coffeesWaiting + order.teasReady + order.coffeesReady;
+        }
+
+        // start over from a snapshot of what was recovered
+        writeSnapshot();
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(0);
+        channel.force(true);
+
+        writerThread = new Thread(this::writeLoop, "cafe-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        System.out.printf("Journal recovered %d customers (%d items) from snapshot + %d journal records in %.1fms%n",
+                recovered.size(), items, replayed, (System.nanoTime() - start) / 1e6);
+        return recovered;
+    }
+
+    // last sequence number contained in the snapshot, 0 if there is none
+    private long readSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(snapshotFile);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        //length first: a truncated file has no crc to check (magic + lastSeq + customers + crc = 20 bytes)
+        if (bytes.length < 20 || in.readInt() != SNAPSHOT_MAGIC || !crcMatches(bytes)) {
+            throw new IOException("Journal snapshot " + snapshotFile + " is corrupt.");
+        }
+        long lastSeq = in.readLong();
+        int customers = in.readInt();
+        for (int i = 0; i < customers; i++) {
+            String name = in.readUTF();
+            ShadowOrder order = new ShadowOrder();
+            order.firstSeq = in.readLong();
+            order.teasWaiting = in.readInt();
+            order.coffeesWaiting = in.readInt();
+            order.teasBrewing = in.readInt();
+            order.coffeesBrewing = in.readInt();
+            order.teasReady = in.readInt();
+            order.coffeesReady = in.readInt();
+            shadow.put(name, order);
+        }
+        return lastSeq;
+    }
+
+    // crc32 of the bytes before the last 4 equals the int in the last 4
+    private boolean crcMatches(byte[] bytes) {
+        crc.reset();
+        crc.update(bytes, 0, bytes.length - 4);
+        return ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() == (int) crc.getValue();
+    }
+
+    // apply the journal records newer than the snapshot, stops at a torn or corrupt record
+    private long replayJournal(long snapshotSeq) throws IOException {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        long replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            byte[] body = new byte[MAX_RECORD_BYTES];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 9 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    in.readFully(body, 0, length);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break; //end of the journal (or a torn last record)
+                }
+
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+                long seq = fields.readLong();
+                byte type = fields.readByte();
+                String name = fields.readUTF();
+                int teas = fields.readInt();
+                int coffees = fields.readInt();
+                nextSeq = seq + 1;
+                if (seq > snapshotSeq) {
+                    apply(new Entry(type, name, teas, coffees), seq);
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    //=====writer thread=====
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                //collect a batch (group commit); close() unparks it early. Never interrupted: a FileChannel
+                //used with the interrupt flag set closes itself (ClosedByInterruptException)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMs));
+                writeBatch(batch);
+            }
+            writeBatch(batch);
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            // nothing more reaches the file: stop taking records instead of queuing them for ever
+            failed = true;
+            queue.clear();
+            System.err.println("Failed to write the journal, journaling stopped: " + e.getMessage());
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) throws IOException {
+        batch.clear();
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        batchBytes.reset();
+        for (Entry each : batch) {
+            try {
+                writeRecord(each, nextSeq);
+            } catch (UTFDataFormatException e) {
+                // only this record is lost (a name too long to encode), the writer keeps going
+                System.err.println("Journal record skipped: " + e.getMessage());
+                continue;
+            }
+            apply(each, nextSeq++);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(batchBytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        long now = System.currentTimeMillis();
+        if (fsyncPolicy == FsyncPolicy.ALWAYS
+                || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastFsync >= fsyncIntervalMs)) {
+            channel.force(false);
+            lastFsync = now;
+        }
+
+        recordsSinceSnapshot += batch.size();
+        if (recordsSinceSnapshot >= snapshotEvery) {
+            writeSnapshot(); //contains every record written so far
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        }
+    }
+
+    // length | seq type name teas coffees | crc, appended to the batch
+    private void writeRecord(Entry entry, long seq) throws IOException {
+        bodyBytes.reset();
+        bodyOut.writeLong(seq);
+        bodyOut.writeByte(entry.type);
+        bodyOut.writeUTF(entry.name);
+        bodyOut.writeInt(entry.teas);
+        bodyOut.writeInt(entry.coffees);
+        bodyOut.flush();
+
+        crc.reset();
+        crc.update(bodyBytes.toByteArray());
+        batchOut.writeInt(bodyBytes.size());
+        bodyBytes.writeTo(batchOut);
+        batchOut.writeInt((int) crc.getValue());
+        batchOut.flush();
+    }
+
+    // same transition on the shadow model as VirtualCafe did on the real one
+    private void apply(Entry entry, long seq) {
+        ShadowOrder order = shadow.get(entry.name);
+        switch (entry.type) {
+            case PLACE:
+                if (order == null) {
+                    order = new ShadowOrder();
+                    shadow.put(entry.name, order);
+                }
+                if (order.isIdle()) {
+                    order.firstSeq = seq;
+                }
+                order.teasWaiting += entry.teas;
+                order.coffeesWaiting += entry.coffees;
+                break;
+            case START_BREW:
+                if (order == null) break;
+                order.teasWaiting -= entry.teas;
+                order.coffeesWaiting -= entry.coffees;
+                order.teasBrewing += entry.teas;
+                order.coffeesBrewing += entry.coffees;
+                break;
+            case FINISH_BREW:
+                if (order == null) break;
+                order.teasBrewing -= entry.teas;
+                order.coffeesBrewing -= entry.coffees;
+                order.teasReady += entry.teas;
+                order.coffeesReady += entry.coffees;
+                break;
+            case COLLECT:
+                if (order == null) break;
+                order.teasReady = 0;
+                order.coffeesReady = 0;
+                if (order.isIdle()) {
+                    shadow.remove(entry.name);
+                }
+                break;
+            case DISCONNECT:
+                shadow.remove(entry.name);
+                break;
+        }
+    }
+
+    // shadow model -> <journal>.snapshot, written to a temp file first and renamed over the old one
+    private void writeSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(nextSeq - 1);
+        out.writeInt(shadow.size());
+        for (Map.Entry<String, ShadowOrder> e : shadow.entrySet()) {
+            ShadowOrder order = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeLong(order.firstSeq);
+            out.writeInt(order.teasWaiting);
+            out.writeInt(order.coffeesWaiting);
+            out.writeInt(order.teasBrewing);
+            out.writeInt(order.coffeesBrewing);
+            out.writeInt(order.teasReady);
+            out.writeInt(order.coffeesReady);
+        }
+        out.flush();
+        crc.reset();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path temp = Paths.get(snapshotFile + ".tmp");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            file.force(true);
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordsSinceSnapshot = 0;
+    }
+
+    // records waiting for the writer (not written yet)
+    public int getQueued() { return queue.size(); }
+
+    // true once the file could not be written, records are dropped since
+    public boolean isFailed() { return failed; }
+
+    // Write what is still queued, fsync and stop the writer (called once on shutdown)
+    public void close() {
+        if (closed || writerThread == null) {
+            closed = true;
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread); //writes the last batch now instead of after the flush interval
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**=========================
+    what it does?
+        Metrics of one cafe (a VirtualCafe, or all the shards of a ShardedCafe):
+        * counters   : orders placed, items brewed per type, collections,
+                       disconnects that still had items waiting or brewing,
+                       orders rejected and commands throttled by the admission control
+        * gauges     : items per area and type, brewing slot utilization,
+                       connected customers and customers with an order (read live from the cafe)
+        * histograms : handling time of every protocol command, time an item spent
+                       waiting and brewing, order placed -> complete -> collected
+
+    why?
+        The console dumps only show the state of one moment, they say nothing about
+        how long customers wait or how slow a command is under load.
+
+    how?
+        Counters are LongAdders and histograms are LatencyHistograms, so recording
+        never allocates and never takes a lock. Gauges cost nothing while nobody asks,
+        they come from the aggregate counters VirtualCafe keeps anyway.
+        Read them through JMX (CafeMetricsMBean) or the admin console "metrics" command.
+========================**/
+
+package helpers.barista;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class CafeMetrics implements CafeMetricsMBean {
+    public static final String OBJECT_NAME = "helpers.barista:type=CafeMetrics";
+
+    public enum Command { ORDER, BATCH, STATUS, COLLECT, SUBSCRIBE, EXIT, OTHER } //protocol commands timed separately
+
+    private final Cafe virtualCafe; //source of the gauges
+
+    // counters
+    private final LongAdder ordersPlaced = new LongAdder();
+    private final LongAdder[] itemsBrewed = newAdders(OrderItem.ItemType.values().length);
+    private final LongAdder collections = new LongAdder();
+    private final LongAdder disconnectsWithPendingWork = new LongAdder();
+    private final LongAdder ordersRejected = new LongAdder();
+    private final LongAdder commandsThrottled = new LongAdder();
+
+    // histograms
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[Command.values().length];
+    private final LatencyHistogram timeInWaiting = new LatencyHistogram("item waiting");
+    private final LatencyHistogram timeInBrewing = new LatencyHistogram("item brewing");
+    private final LatencyHistogram placedToComplete = new LatencyHistogram("order placed->complete");
+    private final LatencyHistogram completeToCollected = new LatencyHistogram("order complete->collected");
+    private final LatencyHistogram placedToCollected = new LatencyHistogram("order placed->collected");
+
+    public CafeMetrics(Cafe virtualCafe) {
+        this.virtualCafe = virtualCafe;
+        for (Command command : Command.values()) {
+            commandLatency[command.ordinal()] = new LatencyHistogram("command " + command.name().toLowerCase());
+        }
+    }
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // Make the metrics readable over JMX (jconsole, jmc ...), once per process
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    //=====recording (called by VirtualCafe and CommandDispatcher)=====
+    void orderPlaced()                       { ordersPlaced.increment(); }
+    void itemBrewed(OrderItem.ItemType type) { itemsBrewed[type.ordinal()].increment(); }
+    void collected()                         { collections.increment(); }
+    void disconnectedWithPendingWork()       { disconnectsWithPendingWork.increment(); }
+    void orderRejected()                     { ordersRejected.increment(); }
+    void commandThrottled()                  { commandsThrottled.increment(); }
+
+    public void recordCommand(Command command, long nanos) { commandLatency[command.ordinal()].record(nanos); }
+    void recordWaiting(long nanos)           { timeInWaiting.record(nanos); }
+    void recordBrewing(long nanos)           { timeInBrewing.record(nanos); }
+    void recordPlacedToComplete(long nanos)  { placedToComplete.record(nanos); }
+    void recordCompleteToCollected(long nanos) { completeToCollected.record(nanos); }
+    void recordPlacedToCollected(long nanos) { placedToCollected.record(nanos); }
+
+    public LatencyHistogram getCommandLatency(Command command) { return commandLatency[command.ordinal()]; }
+    public LatencyHistogram getTimeInWaiting()      { return timeInWaiting; }
+    public LatencyHistogram getTimeInBrewing()      { return timeInBrewing; }
+    public LatencyHistogram getPlacedToComplete()   { return placedToComplete; }
+    public LatencyHistogram getCompleteToCollected() { return completeToCollected; }
+    public LatencyHistogram getPlacedToCollected()  { return placedToCollected; }
+
+    //=====counters=====
+    @Override public long getOrdersPlaced()  { return ordersPlaced.sum(); }
+    @Override public long getTeasBrewed()    { return itemsBrewed[OrderItem.ItemType.TEA.ordinal()].sum(); }
+    @Override public long getCoffeesBrewed() { return itemsBrewed[OrderItem.ItemType.COFFEE.ordinal()].sum(); }
+    @Override public long getCollections()   { return collections.sum(); }
+    @Override public long getDisconnectsWithPendingWork() { return disconnectsWithPendingWork.sum(); }
+    @Override public long getOrdersRejected()    { return ordersRejected.sum(); }
+    @Override public long getCommandsThrottled() { return commandsThrottled.sum(); }
+
+    //=====gauges=====
+    @Override public int getConnectedCustomers() { return virtualCafe.getNumberOfClients(); }
+    @Override public int getCustomersWithOrders() { return virtualCafe.getNumberOfClientsWaiting(); }
+    @Override public int getTeasWaiting()    { return virtualCafe.getWaitingCount(OrderItem.ItemType.TEA); }
+    @Override public int getCoffeesWaiting() { return virtualCafe.getWaitingCount(OrderItem.ItemType.COFFEE); }
+    @Override public int getTeasBrewing()    { return virtualCafe.getBrewingCount(OrderItem.ItemType.TEA); }
+    @Override public int getCoffeesBrewing() { return virtualCafe.getBrewingCount(OrderItem.ItemType.COFFEE); }
+    @Override public int getTeasReady()      { return virtualCafe.getReadyCount(OrderItem.ItemType.TEA); }
+    @Override public int getCoffeesReady()   { return virtualCafe.getReadyCount(OrderItem.ItemType.COFFEE); }
+    @Override public double getTeaSlotUtilization()    { return slotUtilization(OrderItem.ItemType.TEA); }
+    @Override public double getCoffeeSlotUtilization() { return slotUtilization(OrderItem.ItemType.COFFEE); }
+
+    // taken / capacity, above 1 while draining after a shrink, 0 with no slots at all
+    private double slotUtilization(OrderItem.ItemType type) {
+        int capacity = virtualCafe.getBrewingCapacity(type);
+        return capacity == 0 ? 0 : (double) virtualCafe.getBrewingSlotsTaken(type) / capacity;
+    }
+
+    //=====reports=====
+    @Override
+    public String[] getLatencies() {
+        LatencyHistogram[] all = histograms();
+        String[] lines = new String[all.length];
+        for (int i = 0; i < all.length; i++) {
+            lines[i] = all[i].summary();
+        }
+        return lines;
+    }
+
+    private LatencyHistogram[] histograms() {
+        LatencyHistogram[] all = new LatencyHistogram[commandLatency.length + 5];
+        System.arraycopy(commandLatency, 0, all, 0, commandLatency.length);
+        int i = commandLatency.length;
+        all[i++] = timeInWaiting;
+        all[i++] = timeInBrewing;
+        all[i++] = placedToComplete;
+        all[i++] = completeToCollected;
+        all[i] = placedToCollected;
+        return all;
+    }
+
+    // "name value" lines, easy to scrape with grep/awk
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("orders_placed ").append(getOrdersPlaced()).append('\n');
+        report.append("teas_brewed ").append(getTeasBrewed()).append('\n');
+        report.append("coffees_brewed ").append(getCoffeesBrewed()).append('\n');
+        report.append("collections ").append(getCollections()).append('\n');
+        report.append("disconnects_with_pending_work ").append(getDisconnectsWithPendingWork()).append('\n');
+        report.append("orders_rejected ").append(getOrdersRejected()).append('\n');
+        report.append("commands_throttled ").append(getCommandsThrottled()).append('\n');
+        report.append("connected_customers ").append(getConnectedCustomers()).append('\n');
+        report.append("customers_with_orders ").append(getCustomersWithOrders()).append('\n');
+        report.append("teas_waiting ").append(getTeasWaiting()).append('\n');
+        report.append("coffees_waiting ").append(getCoffeesWaiting()).append('\n');
+        report.append("teas_brewing ").append(getTeasBrewing()).append('\n');
+        report.append("coffees_brewing ").append(getCoffeesBrewing()).append('\n');
+        report.append("teas_ready ").append(getTeasReady()).append('\n');
+        report.append("coffees_ready ").append(getCoffeesReady()).append('\n');
+        report.append(String.format("tea_slot_utilization %.2f%n", getTeaSlotUtilization()));
+        report.append(String.format("coffee_slot_utilization %.2f%n", getCoffeeSlotUtilization()));
+        for (String line : getLatencies()) {
+            report.append("latency ").append(line).append('\n');
+        }
+        return report.toString();
+    }
+}
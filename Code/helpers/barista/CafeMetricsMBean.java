@@ -0,0 +1,36 @@
+/**=========================
+    JMX view of the cafe metrics (standard MBean interface of CafeMetrics),
+    registered as helpers.barista:type=CafeMetrics so jconsole/jmc or any
+    JMX scraper can read the numbers without parsing the console output.
+========================**/
+
+package helpers.barista;
+
+public interface CafeMetricsMBean {
+    // counters (since startup)
+    long getOrdersPlaced();
+    long getTeasBrewed();
+    long getCoffeesBrewed();
+    long getCollections();
+    long getDisconnectsWithPendingWork();
+    long getOrdersRejected();
+    long getCommandsThrottled();
+
+    // gauges (right now)
+    int getConnectedCustomers();
+    int getCustomersWithOrders();
+    int getTeasWaiting();
+    int getCoffeesWaiting();
+    int getTeasBrewing();
+    int getCoffeesBrewing();
+    int getTeasReady();
+    int getCoffeesReady();
+    double getTeaSlotUtilization();
+    double getCoffeeSlotUtilization();
+
+    // one summary line per latency histogram
+    String[] getLatencies();
+
+    // everything above as text, same as the admin "metrics" command
+    String getReport();
+}
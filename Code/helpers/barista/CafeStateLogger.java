@@ -0,0 +1,292 @@
+/**=========================
+    what it does?
+        Asynchronous logger of the cafe state (console + JSON file).
+        VirtualCafe only puts a small Snapshot into a bounded ring buffer,
+        a background writer thread appends them to the log in batches.
+
+    why?
+        The old writeJsonLog read the whole log file, rewrote it without the closing
+        bracket and appended one entry - on every state change, while holding the cafe lock.
+        Logging was O(file size) per event and got slower the longer the server ran.
+
+    how?
+        * Ring buffer  : ArrayBlockingQueue (array backed ring) of snapshots
+        * Backpressure : when the buffer is full either DROP the snapshot (counted)
+                         or BLOCK the caller until the writer catches up (waiting in steps of the
+                         flush interval, given up once the logger closed or the writer stopped)
+        * Batches      : the writer wakes up every flush interval and appends everything
+                         queued with one buffered write + flush (straight again if the buffer was full)
+        * File format  : append only JSON array, "[" written when a file is started,
+                         entries separated by ",", the closing "]" written once on close
+                         or when the file is rotated
+        * Rotation     : when the file passes the max size it is closed and renamed to
+                         <file>.1 (older ones shift to .2, .3 ... up to the max number of files)
+
+    note:
+        a log file of a previous run is rotated away on startup, so every file
+        holds exactly one valid JSON array once the server shut down cleanly
+========================**/
+
+package helpers.barista;
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CafeStateLogger {
+    public enum Policy { DROP, BLOCK } //what a full buffer does to the caller
+
+    public static final String DEFAULT_LOG_FILE = "VritualCafe_logs.json";
+    private static final DateTimeFormatter DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final String logFile;
+    private final BlockingQueue<Snapshot> buffer;
+    private final long flushIntervalMs;
+    private final Policy policy;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final boolean console;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile boolean writerStopped = false; //writer gone (closed or a write error), nobody drains the buffer
+
+    // only touched by the writer thread
+    private Writer out;
+    private long fileBytes;
+    private boolean firstEntry;
+
+    // State of the cafe at one moment, the six area counters plus the clients
+    public static class Snapshot {
+        final LocalDateTime timestamp = LocalDateTime.now();
+        final int totalClients, clientsWithOrders;
+        final int teasWaiting, coffeesWaiting, teasBrewing, coffeesBrewing, teasReady, coffeesReady;
+
+        public Snapshot(int totalClients, int clientsWithOrders,
+                        int teasWaiting, int coffeesWaiting, int teasBrewing,
+                        int coffeesBrewing, int teasReady, int coffeesReady) {
+            this.totalClients = totalClients;
+            this.clientsWithOrders = clientsWithOrders;
+            this.teasWaiting = teasWaiting;
+            this.coffeesWaiting = coffeesWaiting;
+            this.teasBrewing = teasBrewing;
+            this.coffeesBrewing = coffeesBrewing;
+            this.teasReady = teasReady;
+            this.coffeesReady = coffeesReady;
+        }
+    }
+
+    // defaults: 4096 snapshots buffered, flushed every 200ms, dropped when full, rotated at 10MB
+    public CafeStateLogger() {
+        this(DEFAULT_LOG_FILE, 4096, 200, Policy.DROP, 10L * 1024 * 1024, 5, true);
+    }
+
+    /**
+     * @param logFile         JSON file to append to
+     * @param capacity        max snapshots waiting for the writer
+     * @param flushIntervalMs how long the writer collects a batch before writing it
+     * @param policy          DROP or BLOCK when the buffer is full
+     * @param maxFileBytes    rotate the file once it grows past this size
+     * @param maxFiles        rotated files kept (<file>.1 ... <file>.maxFiles)
+     * @param console         also print every snapshot to the terminal
+     */
+    public CafeStateLogger(String logFile, int capacity, long flushIntervalMs, Policy policy,
+                           long maxFileBytes, int maxFiles, boolean console) {
+        if (capacity < 1 || flushIntervalMs < 1 || maxFileBytes < 1 || maxFiles < 1) {
+            throw new IllegalArgumentException("Logger capacity, flush interval and rotation limits must be positive.");
+        }
+        this.logFile = logFile;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.flushIntervalMs = flushIntervalMs;
+        this.policy = policy;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.console = console;
+
+        this.writerThread = new Thread(this::writeLoop, "cafe-state-logger");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queue one snapshot for the writer, never does any I/O itself.
+
+     * @return false if the snapshot was dropped (buffer full with DROP policy, or logger closed)
+     */
+    public boolean log(Snapshot snapshot) {
+        if (closed) {
+            return false;
+        }
+        if (policy == Policy.BLOCK) {
+            try {
+                // never wait for ever: a writer that stopped would leave the caller stuck
+                while (!closed && !writerStopped) {
+                    if (buffer.offer(snapshot, flushIntervalMs, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (buffer.offer(snapshot)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public long getDropped() { return dropped.get(); }
+
+    public int getQueued() { return buffer.size(); }
+
+    // Write what is still queued, close the JSON array and stop the writer (called once on shutdown)
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //=====writer thread=====
+    private void writeLoop() {
+        List<Snapshot> batch = new ArrayList<>();
+        try {
+            openFile();
+            while (!closed) {
+                try {
+                    Thread.sleep(flushIntervalMs); //collect a batch
+                } catch (InterruptedException e) {
+                    // closing, fall through and write what is left
+                }
+                // keep draining without sleeping while the buffer comes back full
+                do {
+                    batch.clear();
+                    buffer.drainTo(batch);
+                    writeBatch(batch);
+                } while (buffer.remainingCapacity() == 0);
+            }
+            batch.clear();
+            buffer.drainTo(batch);
+            writeBatch(batch);
+            closeFile();
+        } catch (IOException e) {
+            System.err.println("Failed to write JSON log: " + e.getMessage());
+        } finally {
+            writerStopped = true;
+            buffer.clear(); //nothing will write them any more
+        }
+    }
+
+    private void writeBatch(List<Snapshot> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (console) {
+            StringBuilder text = new StringBuilder();
+            for (Snapshot snapshot : batch) {
+                appendConsole(text, snapshot);
+            }
+            System.out.print(text);
+        }
+
+        StringBuilder json = new StringBuilder();
+        for (Snapshot snapshot : batch) {
+            if (!firstEntry) {
+                json.append(",\n");
+            }
+            firstEntry = false;
+            appendJson(json, snapshot);
+
+            // rotate between entries once the file is too big
+            if (fileBytes + json.length() >= maxFileBytes) {
+                write(json);
+                json.setLength(0);
+                closeFile();
+                openFile();
+            }
+        }
+        write(json);
+        out.flush();
+    }
+
+    private void write(StringBuilder text) throws IOException {
+        out.write(text.toString());
+        fileBytes += text.length();
+    }
+
+    // open a new file and start the JSON array (the previous file, if any, is rotated away first)
+    private void openFile() throws IOException {
+        File file = new File(logFile);
+        if (file.exists() && file.length() > 0) {
+            rotate();
+        }
+        out = new BufferedWriter(new FileWriter(file, false));
+        out.write("[\n");
+        fileBytes = 2;
+        firstEntry = true;
+    }
+
+    // close the JSON array of the current file
+    private void closeFile() throws IOException {
+        out.write("\n]\n");
+        out.close();
+    }
+
+    // <file> -> <file>.1 -> <file>.2 ... the oldest one is deleted
+    private void rotate() {
+        File oldest = new File(logFile + "." + maxFiles);
+        if (oldest.exists()) {
+            oldest.delete();
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(logFile + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(logFile + "." + (i + 1)));
+            }
+        }
+        new File(logFile).renameTo(new File(logFile + ".1"));
+    }
+
+    private void appendConsole(StringBuilder text, Snapshot s) {
+        text.append("\n=== Cafe State ===\n");
+        text.append("Clients in café: ").append(s.totalClients).append('\n');
+        text.append("Clients waiting for orders: ").append(s.clientsWithOrders).append('\n');
+        text.append("Waiting area: ").append(s.teasWaiting).append(" teas, ").append(s.coffeesWaiting).append(" coffees\n");
+        text.append("Brewing area: ").append(s.teasBrewing).append(" teas, ").append(s.coffeesBrewing).append(" coffees\n");
+        text.append("Tray area: ").append(s.teasReady).append(" teas, ").append(s.coffeesReady).append(" coffees\n");
+        text.append("==================\n\n");
+    }
+
+    private void appendJson(StringBuilder json, Snapshot s) {
+        json.append("  {\n");
+        json.append("    \"timestamp\": \"").append(s.timestamp.format(DATE_FORMATTER)).append("\",\n");
+        json.append("    \"totalClients\": ").append(s.totalClients).append(",\n");
+        json.append("    \"clientsWithOrders\": ").append(s.clientsWithOrders).append(",\n");
+        json.append("    \"waitingArea\": {\n");
+        json.append("      \"teas\": ").append(s.teasWaiting).append(",\n");
+        json.append("      \"coffees\": ").append(s.coffeesWaiting).append("\n");
+        json.append("    },\n");
+        json.append("    \"brewingArea\": {\n");
+        json.append("      \"teas\": ").append(s.teasBrewing).append(",\n");
+        json.append("      \"coffees\": ").append(s.coffeesBrewing).append("\n");
+        json.append("    },\n");
+        json.append("    \"trayArea\": {\n");
+        json.append("      \"teas\": ").append(s.teasReady).append(",\n");
+        json.append("      \"coffees\": ").append(s.coffeesReady).append("\n");
+        json.append("    }\n");
+        json.append("  }");
+    }
+}
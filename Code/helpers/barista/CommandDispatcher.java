@@ -0,0 +1,168 @@
+/**=================
+    what it does?
+        Turns one command line of the text protocol into the reply sent back to the customer.
+        Shared by every front end of the server (thread per connection CustomerHandler
+        and the NIO selector server) so they speak exactly the same protocol
+
+    batch command:
+        batch order 2 teas; order 1 coffee and 3 teas; 5 coffees
+        several orders (the "order" word is optional) placed as ONE order of the cafe:
+        all of them are checked first, then one state transition, one log line,
+        one completion notification and one reply
+
+    subscribe command:
+        subscribe / unsubscribe   pushes "Update for <name>: ..." lines with the state of the
+        order whenever an item starts brewing or is ready (coalesced, see Outbox), so the
+        customer does not have to poll order status
+
+    parsing:
+        CommandParser, one per connection (the front ends own it like the TokenBucket):
+        the line is parsed where it is, without lowercase copies, split or exceptions
+
+    rate limit:
+        the front ends pass the TokenBucket of the connection (AdmissionControl), a command
+        over the rate is answered with an ERROR and not run. exit always goes through.
+
+    args:
+        the cafe (VirtualCafe or ShardedCafe) shared by all connected customers
+===================**/
+
+package helpers.barista;
+
+public class CommandDispatcher {
+    private final Cafe virtualCafe;
+
+    public CommandDispatcher(Cafe virtualCafe) {
+        this.virtualCafe = virtualCafe;
+    }
+
+    public Cafe getCafe() { return virtualCafe; }
+
+    // longest customer name accepted, in characters: names go into every journal record and log line
+    public static final int MAX_NAME_LENGTH = 64;
+
+    // the name a customer entered (text line or HELLO frame, trimmed): null if accepted, else the error to send
+    public static String checkName(String name) {
+        if (name.isEmpty()) {
+            return "Name cannot be empty.";
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            return "Name too long: at most " + MAX_NAME_LENGTH + " characters.";
+        }
+        return null;
+    }
+
+    // exit is the only command that also closes the connection
+    public static boolean isExit(CharSequence line) {
+        return CommandParser.isExit(line);
+    }
+
+    /**
+     * Handle one command line of a customer if its connection is within its command rate.
+
+     * @param commandBucket token bucket of the connection, null when not rate limited
+     * @param parser        command parser of the connection, reused for every line
+     * @return reply to send back, null if the line was empty
+     */
+    public String dispatch(int sessionId, String customerName, CharSequence line, TokenBucket commandBucket,
+                           CommandParser parser) {
+        if (commandBucket != null && !CommandParser.isBlank(line) && !isExit(line) && !commandBucket.tryAcquire()) {
+            virtualCafe.getMetrics().commandThrottled();
+            return "ERROR Too many commands: at most " + Math.round(commandBucket.getRate())
+                    + " per second, please slow down.";
+        }
+        return dispatch(sessionId, customerName, line, parser);
+    }
+
+    /**
+     * Handle one command line of a customer.
+
+     * @param sessionId    session of the connection (VirtualCafe.openSession), finds the order
+     * @param customerName name the customer entered when connecting, only used in the replies
+     * @param line         raw command line as received (a String or a view of the read buffer)
+     * @param parser       command parser of the connection, reused for every line
+     * @return reply to send back, null if the line was empty
+     */
+    public String dispatch(int sessionId, String customerName, CharSequence line, CommandParser parser) {
+        long start = System.nanoTime();
+        CommandParser.Kind kind = parser.parse(line); //case-insensitive, no copy of the line
+        if (kind == CommandParser.Kind.EMPTY) {
+            return null;
+        }
+
+        String reply;
+        CafeMetrics.Command command;
+        switch (kind) {
+            case BATCH:
+                command = CafeMetrics.Command.BATCH;
+                if (parser.getError() != null) {
+                    reply = "ERROR " + parser.getError();
+                    break;
+                }
+                try {
+                    virtualCafe.placeOrder(sessionId, parser.getNumTeas(), parser.getNumCoffees());
+                    reply = "Batch received for " + customerName + " (" + parser.getOrders() + " orders: " +
+                            parser.getNumTeas() + " teas and " + parser.getNumCoffees() + " coffees)";
+                } catch (Exception e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                break;
+            case STATUS:
+                command = CafeMetrics.Command.STATUS;
+                try {
+                    reply = virtualCafe.getOrderStatus(sessionId);
+                } catch (Exception e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                break;
+            case ORDER:
+                command = CafeMetrics.Command.ORDER;
+                if (parser.getError() != null) {
+                    reply = "ERROR " + parser.getError();
+                    break;
+                }
+                try {
+                    // Place order through Cafe
+                    virtualCafe.placeOrder(sessionId, parser.getNumTeas(), parser.getNumCoffees());
+
+                    // Acknowledge order by name
+                    reply = "Order received for " + customerName +
+                            " (" + parser.getNumTeas() + " teas and " +
+                            parser.getNumCoffees() + " coffees)";
+                } catch (Exception e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                break;
+            case COLLECT:
+                command = CafeMetrics.Command.COLLECT;
+                try {
+                    reply = virtualCafe.collectOrder(sessionId);
+                } catch (Exception e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                break;
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                command = CafeMetrics.Command.SUBSCRIBE;
+                try {
+                    reply = virtualCafe.subscribe(sessionId, kind == CommandParser.Kind.SUBSCRIBE);
+                } catch (Exception e) {
+                    reply = "ERROR " + e.getMessage();
+                }
+                break;
+            case EXIT:
+                command = CafeMetrics.Command.EXIT;
+                virtualCafe.customerDisconnected(sessionId);
+                reply = "Goodbye " + customerName;
+                break;
+            default:
+                command = CafeMetrics.Command.OTHER;
+                reply = "ERROR Unknown command: " + line.toString().trim().toLowerCase() +
+                        ". Valid commands: order, batch, order status, collect, subscribe, unsubscribe, exit";
+        }
+
+        // handling time of this command, without the socket I/O of the front end
+        virtualCafe.getMetrics().recordCommand(command, System.nanoTime() - start);
+        return reply;
+    }
+}
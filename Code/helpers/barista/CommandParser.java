@@ -0,0 +1,309 @@
+/**=========================
+    what it does?
+        Tokenizer and parser of one command line of the text protocol, working on the line
+        as it arrived (any CharSequence: a String, or NioCafeServer's view of its read
+        buffer) by index:
+        * the command word is matched case-insensitively in place, no lowercase copy
+        * words are found by scanning for whitespace, no split (and no regex)
+        * quantities are parsed in place with the rules of Integer.parseInt
+        * a bad order is reported by getError(), nothing is thrown
+        The results stay in the parser until the next parse, one parser per connection
+        is reused for every command: the success path allocates nothing.
+
+    why?
+        The dispatcher used to trim, lowercase and split (a regex) every line and parse
+        orders with exceptions as control flow: several allocations per command plus a
+        stack trace for every typo.
+
+    note:
+        the replies and error messages are exactly the ones of the old parser, only error
+        messages (which quote the bad word, lowercased) build strings.
+        Not thread safe, used only by the thread or reactor serving its connection.
+========================**/
+
+package helpers.barista;
+
+public class CommandParser {
+    public enum Kind { EMPTY, ORDER, BATCH, STATUS, COLLECT, SUBSCRIBE, UNSUBSCRIBE, EXIT, UNKNOWN }
+
+    private static final String INVALID_ORDER =
+            "Invalid order format. Use: order <quantity> <tea/coffee> [and <quantity> <tea/coffee>]";
+    private static final String EMPTY_BATCH_ORDER =
+            "Empty order in batch. Use: batch order <quantity> <tea/coffee>; order ...";
+
+    // line being parsed and the word found last by nextWord
+    private CharSequence line;
+    private int wordStart;
+    private int wordEnd;
+
+    // results of the last parse
+    private int numTeas;
+    private int numCoffees;
+    private int orders;    //orders of a batch
+    private String error;  //null if the order (or batch) is valid
+
+    /**
+     * Parse one command line, the quantities and error of an order or batch are read
+     * from the getters afterwards.
+
+     * @return the command, EMPTY for a blank line (no reply)
+     */
+    public Kind parse(CharSequence line) {
+        this.line = line;
+        numTeas = 0;
+        numCoffees = 0;
+        orders = 0;
+        error = null;
+        int start = trimStart(line, 0, line.length());
+        int end = trimEnd(line, start, line.length());
+        if (start == end) {
+            return Kind.EMPTY;
+        }
+
+        nextWord(start, end);
+        if (wordIs("batch")) {
+            parseBatch(start + "batch".length(), end);
+            return Kind.BATCH;
+        }
+        if (regionIs(start, end, "order status")) {
+            return Kind.STATUS;
+        }
+        if (regionIs(start, end, "order")) {
+            parseOrder(wordEnd, end); //the first word only has to start with "order"
+            return Kind.ORDER;
+        }
+        if (lineIs(start, end, "collect"))     return Kind.COLLECT;
+        if (lineIs(start, end, "subscribe"))   return Kind.SUBSCRIBE;
+        if (lineIs(start, end, "unsubscribe")) return Kind.UNSUBSCRIBE;
+        if (lineIs(start, end, "exit"))        return Kind.EXIT;
+        return Kind.UNKNOWN;
+    }
+
+    public int getNumTeas()    { return numTeas; }
+    public int getNumCoffees() { return numCoffees; }
+    public int getOrders()     { return orders; }
+    public String getError()   { return error; }
+
+    // nothing but whitespace (Character.isWhitespace, like String.isBlank)
+    public static boolean isBlank(CharSequence line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // exit is the only command that also closes the connection
+    public static boolean isExit(CharSequence line) {
+        int start = trimStart(line, 0, line.length());
+        return lineIs(line, start, trimEnd(line, start, line.length()), "exit");
+    }
+
+    //=====batch and order=====
+    // "batch" + orders separated by ';' (split semantics: trailing empty orders do not count)
+    private void parseBatch(int from, int end) {
+        int last = end; //end of the last order that is not empty
+        while (last > from && line.charAt(last - 1) == ';') {
+            last--;
+        }
+        boolean separated = indexOf(';', from, end) >= 0;
+        if (separated && last == from) {
+            return; //only separators: no order at all, an empty batch
+        }
+        long teas = 0;
+        long coffees = 0;
+        int segmentStart = from;
+        while (true) {
+            int separator = indexOf(';', segmentStart, last);
+            int segmentEnd = separator < 0 ? last : separator;
+            orders++;
+
+            int start = trimStart(line, segmentStart, segmentEnd);
+            int stop = trimEnd(line, start, segmentEnd);
+            if (start == stop) {
+                error = EMPTY_BATCH_ORDER;
+                return;
+            }
+            nextWord(start, stop);
+            int wordsFrom = wordIs("order") ? wordEnd : start; //the "order" word is optional
+            parseOrder(wordsFrom, stop);
+            if (error != null) {
+                return;
+            }
+            teas += numTeas;
+            coffees += numCoffees;
+            if (teas != (int) teas || coffees != (int) coffees) {
+                error = "integer overflow"; //message of Math.addExact the old parser used
+                return;
+            }
+            if (separator < 0) {
+                break;
+            }
+            segmentStart = separator + 1;
+        }
+        numTeas = (int) teas;
+        numCoffees = (int) coffees;
+    }
+
+    // <quantity> <tea/coffee> [and <quantity> <tea/coffee>]... after the "order" word
+    private void parseOrder(int from, int end) {
+        // at least a quantity and an item
+        if (!nextWord(from, end) || !nextWord(wordEnd, end)) {
+            error = INVALID_ORDER;
+            return;
+        }
+        int teas = 0;
+        int coffees = 0;
+        int position = from;
+        while (nextWord(position, end)) {
+            long quantity = parseInt(wordStart, wordEnd);
+            if (quantity == Long.MIN_VALUE) {
+                error = "Expected a number, got: " + lowerWord();
+                return;
+            }
+            if (quantity <= 0) {
+                error = "Quantity must be positive";
+                return;
+            }
+            if (!nextWord(wordEnd, end)) {
+                error = "Expected 'tea' or 'coffee' after quantity";
+                return;
+            }
+            if (wordIs("tea") || wordIs("teas")) {
+                teas += (int) quantity; //wraps like the old parser, placeOrder rejects negatives
+            } else if (wordIs("coffee") || wordIs("coffees")) {
+                coffees += (int) quantity;
+            } else {
+                error = "Unknown item: " + lowerWord() + ". Use 'tea' or 'coffee'";
+                return;
+            }
+            position = wordEnd;
+            if (nextWord(position, end)) {
+                if (!wordIs("and")) {
+                    error = "Unexpected word: " + lowerWord() + ". Expected 'and' or end of command";
+                    return;
+                }
+                position = wordEnd;
+                if (!nextWord(position, end)) {
+                    error = "Expected quantity after 'and'";
+                    return;
+                }
+            }
+        }
+        if (teas == 0 && coffees == 0) {
+            error = "No items ordered";
+            return;
+        }
+        numTeas = teas;
+        numCoffees = coffees;
+    }
+
+    // Integer.parseInt of the range without the exception: Long.MIN_VALUE if it is not an int
+    private long parseInt(int from, int end) {
+        boolean negative = false;
+        int i = from;
+        char first = line.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+                return Long.MIN_VALUE; //a sign alone
+            }
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE; //overflow, keep going would wrap the long
+            }
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    //=====scanning=====
+    // next word at or after from (words are separated by whitespace as in the regex \s), false if none
+    private boolean nextWord(int from, int end) {
+        int i = from;
+        while (i < end && isSeparator(line.charAt(i))) {
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        wordStart = i;
+        while (i < end && !isSeparator(line.charAt(i))) {
+            i++;
+        }
+        wordEnd = i;
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private boolean wordIs(String word) {
+        return lineIs(line, wordStart, wordEnd, word);
+    }
+
+    // the range starts with the lowercase text, ignoring case
+    private boolean regionIs(int from, int end, String text) {
+        return end - from >= text.length() && lineIs(line, from, from + text.length(), text);
+    }
+
+    private boolean lineIs(int from, int end, String text) {
+        return lineIs(line, from, end, text);
+    }
+
+    // the range is the lowercase ASCII text, ignoring case
+    private static boolean lineIs(CharSequence line, int from, int end, String text) {
+        if (end - from != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = line.charAt(from + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // trimmed like String.trim (everything up to ' ')
+    private static int trimStart(CharSequence line, int from, int end) {
+        while (from < end && line.charAt(from) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(CharSequence line, int from, int end) {
+        while (end > from && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    // the current word as the old parser quoted it (error path only)
+    private String lowerWord() {
+        return line.subSequence(wordStart, wordEnd).toString().toLowerCase();
+    }
+}
@@ -7,103 +7,113 @@
 
     args:
         Server/barista Socket that forms bidirectional communication with client
+
+    pipelining:
+        A client may send many commands without waiting for the replies. Every command
+        read is handled in order and its reply goes into the buffered writer, which is
+        flushed only once no more input is buffered: a burst of N commands costs one
+        write to the socket instead of N. With coalesceReplies=false every reply is
+        flushed on its own (the old autoflush behaviour, kept to benchmark against)
+
+    binary protocol:
+        A client answering the welcome with BinaryProtocol.MAGIC instead of its name gets
+        the binary protocol (frames, BinaryDispatcher) on this connection, the rest is the same.
+
+    notifications:
+        What the cafe pushes (completion, subscribed updates) goes into the Outbox of the
+        connection and a short lived virtual thread writes it out, never the brewing thread:
+        a customer that stops reading only fills its own bounded outbox.
 ===================**/
 
 package helpers.barista;
-import java.io.PrintWriter;  import java.util.Scanner;
+import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 
 public class CustomerHandler implements Runnable {
+    private static final ExecutorService OUTBOX_WRITERS = Executors.newVirtualThreadPerTaskExecutor();
+
     private final Socket socket; //socket that communicates with the server
-    private final VirtualCafe virtualCafe;
+    private final Cafe virtualCafe;
+    private final CommandDispatcher commandDispatcher; //same command handling as the NIO server
+    private final boolean coalesceReplies;
     String customerName = null;
+    private int sessionId = -1; //from VirtualCafe.openSession, every command goes by it
+    private final TokenBucket commandBucket; //command rate limit of this connection, null when off
+    private final CommandParser commandParser = new CommandParser(); //reused for every line of this connection
+    private Outbox outbox; //what the cafe pushes to this customer, written by OUTBOX_WRITERS
+
+    public CustomerHandler(Socket socket, Cafe virtualCafe) {
+        this(socket, virtualCafe, true);
+    }
 
-    public CustomerHandler(Socket socket, VirtualCafe virtualCafe) {
+    public CustomerHandler(Socket socket, Cafe virtualCafe, boolean coalesceReplies) {
         this.socket = socket;
         this.virtualCafe = virtualCafe;
+        this.commandDispatcher = new CommandDispatcher(virtualCafe);
+        this.coalesceReplies = coalesceReplies;
+        this.commandBucket = virtualCafe.getAdmission().newCommandBucket();
     }
 
     @Override
     public void run() {
-        try( Scanner scanner = new Scanner(socket.getInputStream());
-             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)
+        try( BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+             PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), !coalesceReplies)
         ) {
+            //ask the client/customer for its name
+            writer.println("Welcome Please enter your name: ");
+            writer.flush();
+            input.mark(1);
+            if (input.read() == BinaryProtocol.MAGIC) {
+                serveBinary(new DataInputStream(input)); //binary client: frames instead of lines from now on
+                return;
+            }
+            input.reset(); //a text client, that byte is the start of its name
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
             try{
-                //ask the client/customer for its name
-                writer.println("Welcome Please enter your name: ");
-                customerName = scanner.nextLine().trim(); //get answer
-
-                if (customerName.isEmpty()) {
-                    throw new Exception("Name cannot be empty.");
+                String name = reader.readLine(); //get answer
+                if (name == null) {
+                    return; //left before telling its name
                 }
-                virtualCafe.customerConnected(customerName);
-                virtualCafe.setClientWriter(customerName, writer); //Set client writer for completion notifications
+                String nameError = CommandDispatcher.checkName(name.trim());
+                if (nameError != null) {
+                    throw new Exception(nameError);
+                }
+                customerName = name.trim();
+                sessionId = virtualCafe.openSession(customerName);
+                outbox = new Outbox(Outbox.DEFAULT_CAPACITY, () -> OUTBOX_WRITERS.execute(() -> writeOutbox(writer)));
+                virtualCafe.setOutbox(sessionId, outbox); //completion notifications and subscribed updates
                 writer.println( "Hello " + customerName + "!" );
+                writer.flush();
                 System.out.println(customerName + " has entered VirtualCafe.");
 
-                //listen for incoming commands
-                while (true) {
-                    String line = scanner.nextLine().trim();
-
-                    if (line.isEmpty()) {
-                        continue;
-                    }
-
-                    // Parse command (case-insensitive)
-                    String lowerLine = line.toLowerCase();
-                    String[] words = lowerLine.split("\\s+");
+                //listen for incoming commands, null once the customer closed the connection
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String reply = commandDispatcher.dispatch(sessionId, customerName, line, commandBucket, commandParser);
 
-                    if (words.length == 0) {
-                        continue;
+                    if (reply != null) {
+                        writer.println(reply);
                     }
 
-                    // Check multi-word commands first
-                    if (lowerLine.startsWith("order status")) {
-                        try {
-                            String status = virtualCafe.getOrderStatus(customerName);
-                            writer.println(status);
-                        } catch (Exception e) {
-                            writer.println("ERROR " + e.getMessage());
-                        }
-                    } else if (lowerLine.startsWith("order")) {
-                        try {
-                            OrderResult orderResult = parseOrderCommand(words);
-
-                            // Place order through Cafe
-                            virtualCafe.placeOrder(customerName, orderResult.numTeas, orderResult.numCoffees);
-
-                            // Acknowledge order by name
-                            writer.println("Order received for " + customerName +
-                                    " (" + orderResult.numTeas + " teas and " +
-                                    orderResult.numCoffees + " coffees)");
-
-                        } catch (NumberFormatException e) {
-                            writer.println("ERROR Invalid number format in order.");
-                        } catch (Exception e) {
-                            writer.println("ERROR " + e.getMessage());
-                        }
-                    } else if (lowerLine.equals("collect")) {
-                        try {
-                            String result = virtualCafe.collectOrder(customerName);
-                            writer.println(result);
-                        } catch (Exception e) {
-                            writer.println("ERROR " + e.getMessage());
-                        }
-                    } else if (lowerLine.equals("exit")) {
-                        virtualCafe.customerDisconnected(customerName);
-                        writer.println("Goodbye " + customerName);
+                    if (reply != null && CommandDispatcher.isExit(line)) {
+                        writer.flush();
                         socket.close();
                         return;
-                    } else {
-                        writer.println("ERROR Unknown command: " + lowerLine +
-                                ". Valid commands: order, order status, collect, exit");
+                    }
+                    if (!reader.ready()) {
+                        writer.flush(); //nothing more pipelined, send the replies collected so far
                     }
                 }
 
             }catch (Exception e) {
                 writer.println("ERROR " + e.getMessage());
+                writer.flush();
                 socket.close();
             }
 
@@ -114,110 +124,79 @@ public class CustomerHandler implements Runnable {
                     (customerName != null ? customerName : "unknown") +
                     ": " + e.getMessage());
         }finally {
-            if (customerName != null) {
-                virtualCafe.customerDisconnected(customerName);
+            if (sessionId >= 0) {
+                virtualCafe.closeSession(sessionId);
                 System.out.println(customerName + " has Left Virtual Cafe.");
             }
         }
     }
 
-    //=====helpers for command parsing=====
-    /**
-     * Parse order command to extract number of teas and coffees.
-
-     * @param words Command split into words (already lowercase)
-     * @return OrderResult with numTeas and numCoffees
-     * @throws Exception if format is invalid
-     */
-    private OrderResult parseOrderCommand(String[] words) throws Exception {
-        int numTeas = 0;
-        int numCoffees = 0;
-
-        // Need at least 3 words: "order", quantity, item
-        if (words.length < 3) {
-            throw new Exception("Invalid order format. Use: order <quantity> <tea/coffee> [and <quantity> <tea/coffee>]");
+    // binary protocol (BinaryProtocol) after the MAGIC byte: a HELLO frame with the name, then command frames,
+    // replies flushed once no more input is buffered like the text replies
+    private void serveBinary(DataInputStream in) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        ByteBuffer hello = BinaryProtocol.readFrame(in);
+        if (hello == null) {
+            return; //left before telling its name
         }
-
-        int i = 1;  // Start after "order"
-
-        while (i < words.length) {
-            // Expect a number
-            if (i >= words.length) {
-                throw new Exception("Expected quantity after 'order' or 'and'");
-            }
-
-            int quantity;
+        String name = (hello.get() & 0xff) == BinaryProtocol.HELLO ? BinaryProtocol.text(hello).trim() : null;
+        String error = name == null ? "Expected a HELLO frame with the name." : CommandDispatcher.checkName(name);
+        if (error == null) {
             try {
-                quantity = Integer.parseInt(words[i]);
-                i++;
-            } catch (NumberFormatException e) {
-                throw new Exception("Expected a number, got: " + words[i]);
+                sessionId = virtualCafe.openSession(name);
+                customerName = name;
+            } catch (IllegalStateException e) {
+                error = e.getMessage(); //no session left for one more customer
             }
-
-            if (quantity <= 0) {
-                throw new Exception("Quantity must be positive");
-            }
-
-            // Expect tea/teas or coffee/coffees
-            if (i >= words.length) {
-                throw new Exception("Expected 'tea' or 'coffee' after quantity");
-            }
-
-            String item = words[i];
-            i++;
-
-            // Match tea/teas or coffee/coffees
-            if (item.equals("tea") || item.equals("teas")) {
-                numTeas += quantity;
-            } else if (item.equals("coffee") || item.equals("coffees")) {
-                numCoffees += quantity;
-            } else {
-                throw new Exception("Unknown item: " + item + ". Use 'tea' or 'coffee'");
+        }
+        if (error != null) {
+            BinaryProtocol.writeFrame(out, BinaryProtocol.error(error));
+            out.flush();
+            return;
+        }
+        outbox = new Outbox(Outbox.DEFAULT_CAPACITY, () -> OUTBOX_WRITERS.execute(() -> writeOutbox(out)));
+        virtualCafe.setOutbox(sessionId, outbox); //completion notifications and subscribed updates
+        BinaryProtocol.writeFrame(out, BinaryProtocol.empty(BinaryProtocol.HELLO_OK));
+        out.flush();
+        System.out.println(customerName + " has entered VirtualCafe (binary).");
+
+        BinaryDispatcher binaryDispatcher = new BinaryDispatcher(virtualCafe);
+        ByteBuffer body;
+        while ((body = BinaryProtocol.readFrame(in)) != null) {
+            boolean exit = (body.get(0) & 0xff) == BinaryProtocol.EXIT;
+            BinaryProtocol.writeFrame(out, binaryDispatcher.dispatch(sessionId, body, commandBucket));
+            if (exit) {
+                out.flush();
+                socket.close();
+                return;
             }
-
-            // Check if there's an "and" for another item
-            if (i < words.length) {
-                if (words[i].equals("and")) {
-                    i++;  // Skip "and"
-
-                    if (i >= words.length) {
-                        throw new Exception("Expected quantity after 'and'");
-                    }
-                } else {
-                    throw new Exception("Unexpected word: " + words[i] + ". Expected 'and' or end of command");
-                }
+            if (!coalesceReplies || in.available() == 0) {
+                out.flush();
             }
         }
+    }
 
-        // Ensure at least one item was ordered
-        if (numTeas == 0 && numCoffees == 0) {
-            throw new Exception("No items ordered");
+    // write everything queued in the outbox, on a writer thread (may block on a slow socket, nobody waits for it)
+    private void writeOutbox(PrintWriter writer) {
+        for (List<Notice> notices = outbox.take(); !notices.isEmpty(); notices = outbox.take()) {
+            for (Notice notice : notices) {
+                writer.println(notice.toText());
+            }
+            writer.flush();
         }
-
-        return new OrderResult(numTeas, numCoffees);
     }
 
-    /**
-     * Helper class to return parsed order results
-     */
-    private static class OrderResult {
-        final int numTeas;
-        final int numCoffees;
-
-        OrderResult(int numTeas, int numCoffees) {
-            this.numTeas = numTeas;
-            this.numCoffees = numCoffees;
+    // same for a binary connection, one NOTIFICATION frame per notice
+    private void writeOutbox(OutputStream out) {
+        try {
+            for (List<Notice> notices = outbox.take(); !notices.isEmpty(); notices = outbox.take()) {
+                for (Notice notice : notices) {
+                    BinaryProtocol.writeFrame(out, BinaryProtocol.notice(notice));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection gone, the handler closes the session
         }
     }
 }
-
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,138 @@
+/**=========================
+    what it does?
+        Dispatch queue of the fair policies: one lane per customer with items of the type
+        waiting, instead of one line everybody shares. Which lane is at the head is up to the
+        subclass (RoundRobinQueues, ShortestFirstQueues), so a customer ordering 1000 coffees
+        no longer holds up everyone ordering one after them.
+
+    how?
+        * a lane : the WaitingQueue of that customer's records (run length, placed times kept)
+                   plus its count of waiting items, found by the Order in a HashMap - O(1)
+        * order  : the subclass keeps the lanes in its own structure and is told when a lane
+                   joins, grows, was served or leaves (O(1) for the turns, O(log customers)
+                   for the heap)
+        * departed customers: their lane is dropped at once (drop), no tombstones
+
+    note:
+        the ETA of an order is an upper bound (itemsAhead): every other customer waiting is
+        assumed to get as many items in before it as it still has itself
+========================**/
+
+package helpers.barista;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+abstract class CustomerQueues extends DispatchQueue {
+    // Waiting items of one customer
+    static final class Lane {
+        final Order owner;
+        final long arrival;  // lanes created before (ties of ShortestFirstQueues)
+        final WaitingQueue records = new WaitingQueue(2);
+        int remaining;       // items in the records
+        int deficit;         // items it may still take in its current turn (RoundRobinQueues)
+        int heapIndex = -1;  // position in the heap (ShortestFirstQueues)
+        boolean retired;     // left the queue, skipped where it is still referenced
+
+        Lane(Order owner, long arrival) {
+            this.owner = owner;
+            this.arrival = arrival;
+        }
+    }
+
+    private final Map<Order, Lane> lanes = new HashMap<>();
+    private long enqueued;   // items ever added
+    private long arrivals;   // lanes ever created
+    private volatile int items;  // waiting items of every lane, read without the lock (status ETA)
+    private volatile int active; // lanes, read without the lock (status ETA)
+
+    //=====the order of the lanes, up to the policy=====
+    abstract Lane head();             // lane that brews next, the queue is not empty
+    abstract void joined(Lane lane);  // a new lane
+    abstract void grown(Lane lane);   // more items in a lane already queued
+    abstract void served(Lane lane);  // one item of the head lane went brewing, items left in it
+    abstract void left(Lane lane);    // lane is empty or its customer left
+
+    // most items of one lane in a row, for the ETA bound
+    int quantum() { return 1; }
+
+    long add(Order owner, int count, long placedAt) {
+        if (count <= 0) {
+            return enqueued;
+        }
+        enqueued += count;
+        items += count; //single writer under the dispatchLock
+        Lane lane = lanes.get(owner);
+        if (lane == null) {
+            lane = new Lane(owner, arrivals++);
+            lanes.put(owner, lane);
+            active = lanes.size();
+            lane.records.add(owner, count, placedAt);
+            lane.remaining = count;
+            joined(lane);
+        } else {
+            lane.records.add(owner, count, placedAt);
+            lane.remaining += count;
+            grown(lane);
+        }
+        return enqueued;
+    }
+
+    boolean isEmpty()       { return lanes.isEmpty(); }
+    Order peekOwner()       { return head().owner; }
+    int peekCount()         { return head().records.peekCount(); }
+    long peekPlacedNanos()  { return head().records.peekPlacedNanos(); }
+
+    void takeOne() {
+        Lane lane = head();
+        lane.records.takeOne();
+        lane.remaining--;
+        items--;
+        if (lane.remaining == 0) {
+            retire(lane);
+        } else {
+            served(lane);
+        }
+    }
+
+    void removeHead() {
+        Lane lane = head();
+        int count = lane.records.peekCount();
+        lane.records.removeHead();
+        lane.remaining -= count;
+        items -= count;
+        if (lane.remaining == 0) {
+            retire(lane);
+        }
+    }
+
+    int drop(Order owner) {
+        Lane lane = lanes.get(owner);
+        if (lane == null) {
+            return 0;
+        }
+        items -= lane.remaining;
+        retire(lane);
+        return lane.remaining;
+    }
+
+    // at most quantum items of every other lane per turn it still needs, and never more than all of them
+    long itemsAhead(long lastSeq, int waiting) {
+        long quantum = quantum();
+        long turns = (waiting + quantum - 1) / quantum;
+        return Math.max(0, Math.min(items, turns * quantum * active) - 1);
+    }
+
+    void forEachRecord(ObjIntConsumer<Order> visitor) {
+        for (Lane lane : lanes.values()) {
+            lane.records.forEachRecord(visitor);
+        }
+    }
+
+    private void retire(Lane lane) {
+        lanes.remove(lane.owner);
+        active = lanes.size();
+        lane.retired = true;
+        left(lane);
+    }
+}
@@ -0,0 +1,98 @@
+/**=========================
+    what it does?
+        Which waiting item a free brewing slot takes (VirtualCafe.startBrewingIfCapacityAvailable),
+        chosen with --policy on the Barista and switchable in the admin console:
+        * fifo        the oldest item first, over all customers (the default)
+        * round-robin the customers with items waiting take turns, one item each
+        * drr[:n]     deficit round robin, n items per turn (default 4)
+        * srpt        shortest remaining order first: the customer with the fewest items of
+                      the type waiting first
+
+    why?
+        With one FIFO line a customer ordering 1000 coffees makes everybody who orders after
+        them wait for all of those. The fair policies bound the wait of a small order by the
+        number of customers waiting, not by the number of items ordered before it.
+
+    note:
+        per item type like the waiting area: a turn is a turn at the tea slots or at the coffee
+        slots, and srpt compares the items waiting of that type. Every item costs the same
+        (the brew time is the same for every item of a type), so weighted fair queuing comes
+        down to the drr quantum. Every dispatch is O(1), or O(log customers) for srpt
+========================**/
+
+package helpers.barista;
+
+public final class DispatchPolicy {
+    public enum Kind { FIFO, ROUND_ROBIN, DEFICIT, SHORTEST_FIRST }
+
+    public static final int DEFAULT_QUANTUM = 4;
+    public static final DispatchPolicy FIFO = new DispatchPolicy(Kind.FIFO, 1);
+
+    private final Kind kind;
+    private final int quantum;
+
+    private DispatchPolicy(Kind kind, int quantum) {
+        this.kind = kind;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Policy from its name as on the command line: fifo, round-robin, drr, drr:8, srpt.
+
+     * @throws IllegalArgumentException for an unknown name or a quantum below 1
+     */
+    public static DispatchPolicy parse(String name) {
+        String[] parts = name.trim().toLowerCase().split(":", 2);
+        switch (parts[0]) {
+            case "fifo":
+                return FIFO;
+            case "round-robin":
+                return new DispatchPolicy(Kind.ROUND_ROBIN, 1);
+            case "drr":
+                int quantum = DEFAULT_QUANTUM;
+                if (parts.length == 2) {
+                    try {
+                        quantum = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        quantum = 0;
+                    }
+                }
+                if (quantum < 1) {
+                    throw new IllegalArgumentException("The drr quantum must be a whole number of items, at least 1: " + name);
+                }
+                return new DispatchPolicy(Kind.DEFICIT, quantum);
+            case "srpt":
+                return new DispatchPolicy(Kind.SHORTEST_FIRST, 1);
+            default:
+                throw new IllegalArgumentException("Unknown dispatch policy: " + name
+                        + ". Valid policies: fifo, round-robin, drr[:quantum], srpt");
+        }
+    }
+
+    public Kind getKind()    { return kind; }
+    public int getQuantum()  { return quantum; }
+
+    // an empty waiting queue of one item type that dispatches by this policy
+    DispatchQueue newQueue() {
+        switch (kind) {
+            case ROUND_ROBIN:
+            case DEFICIT:
+                return new RoundRobinQueues(quantum);
+            case SHORTEST_FIRST:
+                return new ShortestFirstQueues();
+            default:
+                return new WaitingQueue();
+        }
+    }
+
+    // the name parse takes back
+    @Override
+    public String toString() {
+        switch (kind) {
+            case ROUND_ROBIN:    return "round-robin";
+            case DEFICIT:        return "drr:" + quantum;
+            case SHORTEST_FIRST: return "srpt";
+            default:             return "fifo";
+        }
+    }
+}
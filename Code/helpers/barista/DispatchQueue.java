@@ -0,0 +1,54 @@
+/**=========================
+    what it does?
+        The waiting items of one item type, in the order the dispatch policy hands them to
+        free brewing slots (DispatchPolicy). VirtualCafe keeps one per type and its dispatcher
+        only ever looks at the head: the record whose next item brews on the next free slot.
+        * WaitingQueue       : FIFO over all customers, the oldest item first
+        * RoundRobinQueues   : one lane per customer, the lanes take turns (quantum items each)
+        * ShortestFirstQueues: one lane per customer, the lane with the fewest items left first
+
+    note:
+        not thread safe, VirtualCafe only touches it under its dispatchLock (itemsAhead excepted)
+========================**/
+
+package helpers.barista;
+import java.util.function.ObjIntConsumer;
+
+abstract class DispatchQueue {
+    /**
+     * Queue count items of one order, placed at placedAt.
+
+     * @return sequence number of the last of them, for itemsAhead
+     */
+    abstract long add(Order owner, int count, long placedAt);
+
+    abstract boolean isEmpty();
+    abstract Order peekOwner();       // owner of the head record
+    abstract int peekCount();         // items left in the head record
+    abstract long peekPlacedNanos();  // placed time of the head record
+
+    // One item of the head record leaves the queue (it goes brewing)
+    abstract void takeOne();
+
+    // The whole head record leaves the queue (tombstone of a departed customer, changing policy)
+    abstract void removeHead();
+
+    /**
+     * The customer left: drop its waiting items now if this queue can find them cheaply.
+
+     * @return items dropped, the rest stay in the queue as tombstones (Order.isDeparted)
+     */
+    abstract int drop(Order owner);
+
+    /**
+     * Items that should brew before the last waiting item of an order, for the status ETA.
+     * Read without the dispatchLock, so only volatile state and the arguments are used.
+
+     * @param lastSeq sequence number add returned for the last item of the order
+     * @param waiting items of the order still waiting in this queue
+     */
+    abstract long itemsAhead(long lastSeq, int waiting);
+
+    // every record (owner, items) in the queue, tombstones included - for the self check
+    abstract void forEachRecord(ObjIntConsumer<Order> visitor);
+}
@@ -0,0 +1,129 @@
+/**=========================
+    what it does?
+        Latency histogram in the spirit of HdrHistogram: counts durations (nanoseconds)
+        in log-linear buckets and answers percentiles (p50, p99 ...) over everything recorded.
+
+    why?
+        Averages hide the slow requests, and keeping every sample to sort later grows
+        without bound. Buckets have a fixed size no matter how many values are recorded.
+
+    how?
+        * Values below 32ns get one bucket each, above that every power of two
+          is split into 32 equal buckets, so a value is off by at most ~3%
+        * record() is one atomic increment on a preallocated AtomicLongArray plus
+          the running sum and max - no allocation and no lock, safe from any thread
+        * Values above ~2.4 hours land in the last bucket (the max is still exact)
+
+    note:
+        percentiles read the buckets while other threads keep recording,
+        so a report under load is a very close (not atomic) view
+========================**/
+
+package helpers.barista;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;   //buckets per power of two
+    private static final int MAX_EXPONENT = 43;             //2^43ns is about 2.4 hours
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    // Record one duration in nanoseconds (negative values count as 0)
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sum.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // another thread raised the max in between, try again
+        }
+    }
+
+    // Record the time passed since a System.nanoTime() start
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMaxNanos() { return max.get(); }
+
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Value below which the given fraction of the recorded values fall.
+
+     * @param quantile between 0 and 1, e.g. 0.99 for p99
+     * @return upper bound of the bucket holding that value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // one text line: name count mean p50 p90 p99 p999 max (microseconds)
+    public String summary() {
+        return String.format("%-26s count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                name, getCount(), getMeanNanos() / 1e3,
+                getValueAtQuantile(0.50) / 1e3, getValueAtQuantile(0.90) / 1e3,
+                getValueAtQuantile(0.99) / 1e3, getValueAtQuantile(0.999) / 1e3, getMaxNanos() / 1e3);
+    }
+
+    //=====bucket index math=====
+    // linear below SUB_BUCKETS, then SUB_BUCKETS buckets for every power of two
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // largest value that still falls into this bucket
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
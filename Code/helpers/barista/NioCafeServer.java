@@ -0,0 +1,498 @@
+/**=========================
+    what it does?
+        Non-blocking front end of the barista (started with --io=nio).
+        Instead of one blocked thread per customer, a few reactor threads each run
+        a Selector event loop over many customer connections.
+
+    how?
+        * The calling thread accepts connections and hands them round robin to the reactors
+        * Every connection frames its incoming bytes into lines with its own ByteBuffer,
+          a command line of ASCII bytes is parsed right there (AsciiLine view, no String)
+        * Each complete line goes through the same CommandDispatcher as CustomerHandler,
+          so the text protocol (welcome, name, order, order status, collect, exit)
+          is exactly the same and existing Customer clients keep working
+        * Replies are queued per connection and written by the reactor when the socket is
+          writable. What the cafe pushes (completion, subscribed updates) waits in the bounded
+          Outbox of the connection and is only moved behind the replies once everything
+          before it was written: a customer that stops reading never grows the reactor's
+          queue, its updates coalesce in the outbox instead
+        * A client sending BinaryProtocol.MAGIC instead of its name speaks the binary
+          protocol: the same buffer is framed by length instead of by newline and the
+          frames go through BinaryDispatcher
+        * Pipelining: all the lines of one read are handled first and their replies go out
+          together with one gathering write (coalesceReplies=false writes after every line,
+          the old behaviour, kept to benchmark against)
+
+    note:
+        VirtualCafe calls run on the reactor thread, so a slow cafe operation delays
+        every connection of that reactor (use more reactors to spread the load)
+========================**/
+
+package helpers.barista;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NioCafeServer {
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024; //longer lines are rejected and the connection closed
+    private static final Charset CHARSET = Charset.defaultCharset(); //same charset as Scanner/PrintWriter of CustomerHandler
+
+    private static final int MAX_GATHER = 64; //queued lines written by one gathering write
+
+    private final int port;
+    private final CommandDispatcher commandDispatcher;
+    private final BinaryDispatcher binaryDispatcher;
+    private final Reactor[] reactors;
+    private final boolean coalesceReplies;
+
+    public NioCafeServer(int port, Cafe virtualCafe, int reactorCount) {
+        this(port, virtualCafe, reactorCount, true);
+    }
+
+    public NioCafeServer(int port, Cafe virtualCafe, int reactorCount, boolean coalesceReplies) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("At least one reactor is needed.");
+        }
+        this.port = port;
+        this.commandDispatcher = new CommandDispatcher(virtualCafe);
+        this.binaryDispatcher = new BinaryDispatcher(virtualCafe);
+        this.reactors = new Reactor[reactorCount];
+        this.coalesceReplies = coalesceReplies;
+    }
+
+    // Start the reactors and accept customers forever on the calling thread
+    public void serve() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            reactors[i].thread = new Thread(reactors[i], "nio-reactor-" + i);
+            reactors[i].thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); //blocking accept, the reactors do the rest
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+
+    //=====one selector event loop serving many connections=====
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private Thread thread;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        // called by the acceptor thread
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // called by any thread that queued output for a connection of this reactor
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+                    flushPendingWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            connection.fail(e); //a bug hit by one connection never stops the reactor
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Reactor error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.send("Welcome Please enter your name: "); //same greeting as CustomerHandler
+                } catch (IOException e) {
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private void flushPendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    connection.fail(e);
+                }
+            }
+        }
+    }
+
+    //=====state of one customer connection=====
+    private class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Deque<ByteBuffer> out = new ArrayDeque<>(); //guarded by itself, filled by any thread
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; //guarded by out
+        private boolean handlingRead = false; //replies wait for the end of the read (reactor thread only)
+        private boolean closeAfterFlush = false;
+        private boolean closed = false;
+
+        private boolean binary = false;     //MAGIC byte instead of a name: BinaryProtocol frames
+        private String customerName = null; //null until the name line (or HELLO frame) arrived
+        private int sessionId = -1;         //from VirtualCafe.openSession once the name arrived
+        private final Outbox outbox = new Outbox(Outbox.DEFAULT_CAPACITY, this::requestOutboxWrite);
+        private final TokenBucket commandBucket =
+                commandDispatcher.getCafe().getAdmission().newCommandBucket(); //reactor thread only
+        private final CommandParser commandParser = new CommandParser(); //reactor thread only
+        private final AsciiLine lineView = new AsciiLine(); //current line of the read buffer
+
+        Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+        }
+
+        // read what is available and handle every complete line (or frame)
+        void onReadable() throws IOException {
+            int read = channel.read(in);
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            in.flip();
+            if (customerName == null && !binary && in.hasRemaining()
+                    && (in.get(in.position()) & 0xff) == BinaryProtocol.MAGIC) {
+                binary = true; //handshake of a binary client instead of its name line
+                in.get();
+            }
+            int handled; //start of the incomplete line or frame left in the buffer
+            handlingRead = coalesceReplies;
+            try {
+                handled = binary ? handleFrames() : handleLines();
+            } finally {
+                handlingRead = false;
+            }
+            if (closed || closeAfterFlush) {
+                return; //ignore anything sent after exit
+            }
+            flush(); //the replies of every line of this read at once
+            in.position(handled);
+            in.compact();
+
+            // incomplete line filled the buffer: grow it up to the max line length
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE_LENGTH) {
+                    send("ERROR Line too long.");
+                    closeAfterFlush();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        // every complete line of the buffer, returns where the incomplete rest starts
+        private int handleLines() {
+            int lineStart = in.position();
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    if (customerName != null && lineView.wrap(in, lineStart, i)) {
+                        lineStart = i + 1;
+                        onLine(lineView); //a command: parsed in the buffer, nothing decoded
+                    } else {
+                        byte[] bytes = new byte[i - lineStart]; //the name, or not ASCII
+                        in.get(lineStart, bytes);
+                        lineStart = i + 1;
+                        onLine(new String(bytes, CHARSET));
+                    }
+                    if (closed || closeAfterFlush) {
+                        break;
+                    }
+                }
+            }
+            return lineStart;
+        }
+
+        // every complete frame of the buffer (binary protocol), returns where the incomplete rest starts
+        private int handleFrames() {
+            int frameStart = in.position();
+            while (in.limit() - frameStart >= 2) {
+                int length = in.getShort(frameStart) & 0xffff;
+                if (length == 0 || length > BinaryProtocol.MAX_BODY_LENGTH) {
+                    queue(BinaryProtocol.error("Bad frame length " + length + "."));
+                    closeAfterFlush();
+                    break;
+                }
+                if (in.limit() - frameStart - 2 < length) {
+                    break; //rest of the frame not here yet
+                }
+                ByteBuffer body = in.slice(frameStart + 2, length);
+                frameStart += 2 + length;
+                onFrame(body);
+                if (closed || closeAfterFlush) {
+                    break;
+                }
+            }
+            return frameStart;
+        }
+
+        private void onLine(CharSequence line) {
+            if (customerName == null) {
+                String error = enter(line.toString().trim());
+                if (error != null) {
+                    send("ERROR " + error);
+                    closeAfterFlush();
+                    return;
+                }
+                send("Hello " + customerName + "!");
+                return;
+            }
+
+            String reply = commandDispatcher.dispatch(sessionId, customerName, line, commandBucket, commandParser);
+            if (reply == null) {
+                return;
+            }
+            send(reply);
+
+            if (CommandDispatcher.isExit(line)) {
+                closeAfterFlush();
+            }
+        }
+
+        private void onFrame(ByteBuffer body) {
+            int opcode = body.get(0) & 0xff;
+            if (customerName == null) {
+                String error = opcode == BinaryProtocol.HELLO
+                        ? enter(BinaryProtocol.text(body.position(1)).trim())
+                        : "Expected a HELLO frame with the name.";
+                if (error != null) {
+                    queue(BinaryProtocol.error(error));
+                    closeAfterFlush();
+                    return;
+                }
+                queue(BinaryProtocol.empty(BinaryProtocol.HELLO_OK));
+                return;
+            }
+
+            queue(binaryDispatcher.dispatch(sessionId, body, commandBucket));
+            if (opcode == BinaryProtocol.EXIT) {
+                closeAfterFlush();
+            }
+        }
+
+        // the name of the customer arrived: open its session, null or the error to send back
+        private String enter(String name) {
+            String error = CommandDispatcher.checkName(name);
+            if (error != null) {
+                return error;
+            }
+            Cafe virtualCafe = commandDispatcher.getCafe();
+            try {
+                sessionId = virtualCafe.openSession(name);
+            } catch (IllegalStateException e) {
+                return e.getMessage(); //no session left for one more customer
+            }
+            customerName = name;
+            virtualCafe.setOutbox(sessionId, outbox); //completion notifications and subscribed updates
+            System.out.println(customerName + " has entered VirtualCafe" + (binary ? " (binary)." : "."));
+            return null;
+        }
+
+        // queue one line (println semantics) and make sure the reactor writes it
+        void send(String line) {
+            queue(CHARSET.encode(CharBuffer.wrap(line + System.lineSeparator())));
+        }
+
+        // queue bytes to write (a line or a frame of the binary protocol)
+        void queue(ByteBuffer bytes) {
+            synchronized (out) {
+                if (closed) {
+                    return;
+                }
+                out.add(bytes);
+            }
+            if (handlingRead) {
+                return; //written at the end of the read
+            }
+            if (Thread.currentThread() == reactor.thread) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            } else {
+                reactor.requestWrite(this);
+            }
+        }
+
+        // write as much queued output as the socket takes, wait for OP_WRITE for the rest,
+        // then what the outbox holds (only once the socket took everything before it)
+        void flush() throws IOException {
+            synchronized (out) {
+                if (closed) {
+                    return;
+                }
+                while (!out.isEmpty() || takeOutbox()) {
+                    // up to MAX_GATHER queued lines in one write call
+                    int count = 0;
+                    for (ByteBuffer bytes : out) {
+                        gather[count++] = bytes;
+                        if (count == MAX_GATHER) break;
+                    }
+                    channel.write(gather, 0, count);
+                    boolean socketFull = gather[count - 1].hasRemaining();
+                    Arrays.fill(gather, 0, count, null);
+                    while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                        out.poll();
+                    }
+                    if (socketFull) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (closeAfterFlush) {
+                close();
+            }
+        }
+
+        // move the outbox lines behind the replies, false if it was empty (caller holds out)
+        private boolean takeOutbox() {
+            if (handlingRead || closeAfterFlush) {
+                return false; //the end of the read flushes again, after exit nothing more is sent
+            }
+            List<Notice> notices = outbox.take();
+            for (Notice notice : notices) {
+                out.add(binary ? BinaryProtocol.notice(notice)
+                        : CHARSET.encode(CharBuffer.wrap(notice.toText() + System.lineSeparator())));
+            }
+            return !notices.isEmpty();
+        }
+
+        // called by the cafe from any thread (never blocks), the reactor drains the outbox when it flushes
+        private void requestOutboxWrite() {
+            reactor.requestWrite(this);
+        }
+
+        private void closeAfterFlush() {
+            closeAfterFlush = true;
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // unexpected error while serving this connection: log it and drop only this connection
+        void fail(RuntimeException e) {
+            System.err.println("Connection error for customer " + (customerName != null ? customerName : "unknown")
+                    + ", closing it: " + e);
+            close();
+        }
+
+        void close() {
+            synchronized (out) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                out.clear();
+            }
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+
+            if (sessionId >= 0) {
+                commandDispatcher.getCafe().closeSession(sessionId);
+                System.out.println(customerName + " has Left Virtual Cafe.");
+            }
+        }
+    }
+
+    //=====a line of the read buffer seen as chars, without copying it=====
+    // ASCII bytes only: the same chars in every charset the server may decode with (UTF-8 and the like).
+    // Valid until the read buffer moves on, the dispatcher does not keep it
+    private static class AsciiLine implements CharSequence {
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+
+        // view of the bytes [start, end), false (and no view) if one of them is not ASCII
+        boolean wrap(ByteBuffer buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) < 0) {
+                    return false;
+                }
+            }
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            return true;
+        }
+
+        @Override
+        public int length() { return end - start; }
+
+        @Override
+        public char charAt(int index) { return (char) buffer.get(start + index); }
+
+        @Override
+        public CharSequence subSequence(int from, int to) { return toString().substring(from, to); }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
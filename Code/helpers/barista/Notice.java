@@ -0,0 +1,78 @@
+/**=========================
+    what it does?
+        One message the cafe pushes to a connection on its own (through its Outbox):
+        * COMPLETED : the order is on the tray, with the teas and coffees to collect
+        * UPDATE    : the six counters of a subscribed order and its estimated ready time
+        * DROPPED   : how many messages a slow connection lost
+        It holds the numbers only, the connection picks the wire format: toText() for the
+        text protocol, BinaryProtocol.notice() for a binary connection.
+
+    note:
+        counters are in Order.copyCounts order: waiting, brewing, ready, each per ItemType
+========================**/
+
+package helpers.barista;
+
+public class Notice {
+    public enum Kind { COMPLETED, UPDATE, DROPPED }
+
+    private final Kind kind;
+    private final String customerName;
+    private final int[] counts;       //Order.COUNTERS counters, all 0 for DROPPED
+    private final long readyInNanos;  //UPDATE: estimate as VirtualCafe.getEstimatedReadyIn, -1 none
+    private final int dropped;        //DROPPED: messages lost
+
+    private Notice(Kind kind, String customerName, int[] counts, long readyInNanos, int dropped) {
+        this.kind = kind;
+        this.customerName = customerName;
+        this.counts = counts;
+        this.readyInNanos = readyInNanos;
+        this.dropped = dropped;
+    }
+
+    // the order is complete, its tray holds the counters given (caller holds the Order lock)
+    static Notice completed(Order order) {
+        int[] counts = new int[Order.COUNTERS];
+        order.copyCounts(counts);
+        return new Notice(Kind.COMPLETED, order.getCustomerName(), counts, 0, 0);
+    }
+
+    // caller holds the Order lock
+    static Notice update(Order order, long readyInNanos) {
+        int[] counts = new int[Order.COUNTERS];
+        order.copyCounts(counts);
+        return new Notice(Kind.UPDATE, order.getCustomerName(), counts, readyInNanos, 0);
+    }
+
+    static Notice dropped(int dropped) {
+        return new Notice(Kind.DROPPED, null, new int[Order.COUNTERS], -1, dropped);
+    }
+
+    public Kind getKind()           { return kind; }
+    public String getCustomerName() { return customerName; }
+    public int getCount(int index)  { return counts[index]; }
+    public long getReadyInNanos()   { return readyInNanos; }
+    public int getDropped()         { return dropped; }
+
+    // the line of the text protocol
+    public String toText() {
+        int teas = OrderItem.ItemType.TEA.ordinal();
+        int coffees = OrderItem.ItemType.COFFEE.ordinal();
+        int types = OrderItem.ItemType.values().length;
+        switch (kind) {
+            case COMPLETED:
+                return "\nOrder completed for " + customerName +
+                        " (" + counts[2 * types + teas] + " teas and " + counts[2 * types + coffees] + " coffees). Please collect!";
+            case UPDATE:
+                return "Update for " + customerName + ": "
+                        + counts[teas] + " teas and " + counts[coffees] + " coffees waiting, "
+                        + counts[types + teas] + " teas and " + counts[types + coffees] + " coffees brewing, "
+                        + counts[2 * types + teas] + " teas and " + counts[2 * types + coffees] + " coffees ready"
+                        + (readyInNanos < 0 ? "" : ", estimated ready in about "
+                        + VirtualCafe.roundUpSeconds(readyInNanos) + "s");
+            default:
+                return "Update dropped: " + dropped + " messages for a slow connection, "
+                        + "send order status for the current state";
+        }
+    }
+}
@@ -3,60 +3,110 @@
 
      Represents one customer's complete order in the café.
          * Similar to Account in Bank example - stores customer's order data.
-         * Tracks counts of items in each area for fast O(1) lookups.
-         * These counters are kept in sync with global areas in Cafe.java.
+         * Tracks counts of items in each area for fast O(1) lookups, one counter per
+         * item type (indexed by ItemType ordinal, a new type needs no new fields).
+         * These counters are kept in sync with global areas in VirtualCafe.java,
+         * always read and written while holding this order's own lock.
+         * Also holds handles to its own brewing items for a cheap disconnect.
+         * The tray is just the ready counters.
 ==================**/
 
 package helpers.barista;
-import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Order {
+    // waiting, brewing and ready counters of every item type (copyCounts, status of the binary protocol)
+    public static final int COUNTERS = 3 * OrderItem.ItemType.values().length;
+
     private final String customerName;
-    private PrintWriter clientWriter;  // For sending responses
+    private volatile Outbox outbox;  // notifications and updates pushed to its connection
+
+    // Own lock of this customer: guards the counters and brewing items below,
+    // so status/collect of one customer never waits for other customers or the dispatcher
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean departed;  // customer disconnected, no more orders accepted
+
+    // Three areas: waiting, brewing, tray - count per item type
+    private final int[] waiting = new int[OrderItem.ItemType.values().length];
+    private final int[] brewing = new int[OrderItem.ItemType.values().length];
+    private final int[] ready = new int[OrderItem.ItemType.values().length];
+    // sequence number of its last waiting item in the queue of each type (WaitingQueue positions)
+    private final long[] lastWaitingSeq = new long[OrderItem.ItemType.values().length];
+
+    // Handles to this customer's items brewing right now (O(1) add/remove), so a disconnect
+    // only touches this customer's brews; its waiting records become tombstones once departed
+    private final Set<OrderItem> items = new LinkedHashSet<>();
 
-    // Three areas: waiting, brewing, tray
-    private int teasWaiting;
-    private int coffeesWaiting;
-    private int teasBrewing;
-    private int coffeesBrewing;
-    private int teasReady;
-    private int coffeesReady;
+    // Cafe clock time of the first item placed since the order was last idle, and of the
+    // moment the last item reached the tray (for the placed -> complete -> collected metrics)
+    private long placedNanos;
+    private long completedNanos;
 
     public Order(String customerName) {
         this.customerName = customerName;
     }
 
     public String getCustomerName()    { return customerName; }
-    public int getTeasWaiting()        { return teasWaiting; }
-    public int getCoffeesWaiting()     { return coffeesWaiting; }
-    public int getTeasBrewing()        { return teasBrewing; }
-    public int getCoffeesBrewing()     { return coffeesBrewing; }
-    public int getTeasReady()          { return teasReady; }
-    public int getCoffeesReady()       { return coffeesReady; }
-    public PrintWriter getClientWriter() { return clientWriter; }
+    public int getWaiting(OrderItem.ItemType type) { return waiting[type.ordinal()]; }
+    public int getBrewing(OrderItem.ItemType type) { return brewing[type.ordinal()]; }
+    public int getReady(OrderItem.ItemType type)   { return ready[type.ordinal()]; }
+    public int getTeasWaiting()        { return getWaiting(OrderItem.ItemType.TEA); }
+    public int getCoffeesWaiting()     { return getWaiting(OrderItem.ItemType.COFFEE); }
+    public int getTeasBrewing()        { return getBrewing(OrderItem.ItemType.TEA); }
+    public int getCoffeesBrewing()     { return getBrewing(OrderItem.ItemType.COFFEE); }
+    public int getTeasReady()          { return getReady(OrderItem.ItemType.TEA); }
+    public int getCoffeesReady()       { return getReady(OrderItem.ItemType.COFFEE); }
+    public Outbox getOutbox()          { return outbox; }
 
     //package-protected (default) so taht only Virtualcafe class can modify
-    void setTeasWaiting(int teasWaiting)       { this.teasWaiting = teasWaiting; }
-    void setCoffeesWaiting(int coffeesWaiting) { this.coffeesWaiting = coffeesWaiting; }
-    void setTeasBrewing(int teasBrewing)       { this.teasBrewing = teasBrewing; }
-    void setCoffeesBrewing(int coffeesBrewing) { this.coffeesBrewing = coffeesBrewing; }
-    void setTeasReady(int teasReady)           { this.teasReady = teasReady; }
-    void setCoffeesReady(int coffeesReady)     { this.coffeesReady = coffeesReady; }
-    void setClientWriter(PrintWriter writer)   { this.clientWriter = writer; }
+    void setWaiting(OrderItem.ItemType type, int count) { waiting[type.ordinal()] = count; }
+    void setBrewing(OrderItem.ItemType type, int count) { brewing[type.ordinal()] = count; }
+    void setReady(OrderItem.ItemType type, int count)   { ready[type.ordinal()] = count; }
+    long getLastWaitingSeq(OrderItem.ItemType type)     { return lastWaitingSeq[type.ordinal()]; }
+    void setLastWaitingSeq(OrderItem.ItemType type, long seq) { lastWaitingSeq[type.ordinal()] = seq; }
+    void setOutbox(Outbox outbox)              { this.outbox = outbox; }
+    Set<OrderItem> getItems()                  { return items; }
+    ReentrantLock getLock()                    { return lock; }
+    boolean isDeparted()                       { return departed; } //written under the dispatchLock too
+    void setDeparted()                         { this.departed = true; }
+    long getPlacedNanos()                      { return placedNanos; }
+    void setPlacedNanos(long placedNanos)      { this.placedNanos = placedNanos; }
+    long getCompletedNanos()                   { return completedNanos; }
+    void setCompletedNanos(long completedNanos) { this.completedNanos = completedNanos; }
 
 
+    // the counters as waiting, brewing, ready (each per ItemType ordinal) into counts (caller holds the lock)
+    void copyCounts(int[] counts) {
+        int types = waiting.length;
+        System.arraycopy(waiting, 0, counts, 0, types);
+        System.arraycopy(brewing, 0, counts, types, types);
+        System.arraycopy(ready, 0, counts, 2 * types, types);
+    }
+
     public boolean isIdle() {
-        return (teasWaiting + coffeesWaiting + teasBrewing +
-                coffeesBrewing + teasReady + coffeesReady) == 0;
+        return getTotalItems() == 0;
     }
 
     public boolean isComplete() {
-        return (teasWaiting + coffeesWaiting + teasBrewing + coffeesBrewing) == 0
-                && (teasReady + coffeesReady) > 0;
+        return getPendingItems() == 0 && getTotalItems() > 0;
+    }
+
+    // items still waiting or brewing
+    public int getPendingItems() {
+        int pending = 0;
+        for (int i = 0; i < waiting.length; i++) {
+            pending += waiting[i] + brewing[i];
+        }
+        return pending;
     }
 
     public int getTotalItems() {
-        return teasWaiting + coffeesWaiting + teasBrewing +
-                coffeesBrewing + teasReady + coffeesReady;
+        int total = getPendingItems();
+        for (int count : ready) {
+            total += count;
+        }
+        return total;
     }
 }
@@ -9,32 +9,68 @@
 
     example:
         if the order of alice (order 1 coffee and 1 tea) is being processed, then
-        first in waiting area: [coffee for alice],[tea for alice] and then when
-        preparing order -> brewing area: [coffee for alice],[tea for alice]
+        first in waiting area: one record per type (WaitingQueue, no items yet), and
+        when preparing order -> brewing area: [coffee for alice],[tea for alice]
+        Only brewing drinks are items, at most the brewing capacity of them exist.
 ========================**/
 
 package helpers.barista;
+import java.util.concurrent.Future;
 
 public class OrderItem {
-    public enum ItemType { TEA, COFFEE } //crate predefined const values
+    // predefined item types with their default brewing slots and brew time (BrewProfiles)
+    public enum ItemType {
+        TEA(2, 30000),
+        COFFEE(2, 45000);
 
-    private final String customerName;
+        private final int defaultSlots;
+        private final long defaultBrewMillis;
+
+        ItemType(int defaultSlots, long defaultBrewMillis) {
+            this.defaultSlots = defaultSlots;
+            this.defaultBrewMillis = defaultBrewMillis;
+        }
+
+        public int getDefaultSlots()       { return defaultSlots; }
+        public long getDefaultBrewMillis() { return defaultBrewMillis; }
+    }
+
+    private final Order order;  // owner, handle back to the customer's counters and lock
     private final ItemType type;
+    // both guarded by the dispatchLock of VirtualCafe
+    private boolean cancelled;  // customer left while it was brewing
+    private Future<?> brew;     // scheduled completion while brewing
+    private VirtualCafe slotOwner; // cafe (shard) whose brewing slot it holds, its own unless borrowed
+    // cafe clock time when the item was ordered and when it started brewing (metrics)
+    private final long placedNanos;
+    private long brewStartNanos;
+    private long readyNanos;      // when its brew will be done (status ETA)
 
-    public OrderItem(String customerName, ItemType type) {
-        this.customerName = customerName;
+    public OrderItem(Order order, ItemType type, long placedNanos) {
+        this.order = order;
         this.type = type;
+        this.placedNanos = placedNanos;
     }
 
-    public String getCustomerName() { return customerName; }
+    public String getCustomerName() { return order.getCustomerName(); }
+    public Order getOrder() { return order; }
     public ItemType getType() { return type; }
+    public boolean isCancelled() { return cancelled; }
 
-    public int getBrewTimeMs() {
-        return (type == ItemType.TEA) ? 30000 : 45000;
-    }
+    //package-protected (default) so that only VirtualCafe can modify
+    void cancel()                 { this.cancelled = true; }
+    Future<?> getBrew()           { return brew; }
+    void setBrew(Future<?> brew)  { this.brew = brew; }
+    VirtualCafe getSlotOwner()    { return slotOwner; }
+    void setSlotOwner(VirtualCafe slotOwner) { this.slotOwner = slotOwner; }
+    long getPlacedNanos()         { return placedNanos; }
+    long getBrewStartNanos()      { return brewStartNanos; }
+    void setBrewStartNanos(long brewStartNanos) { this.brewStartNanos = brewStartNanos; }
+    long getReadyNanos()          { return readyNanos; }
+    void setReadyNanos(long readyNanos) { this.readyNanos = readyNanos; }
 
     @Override
     public String toString() {
-        return type + " for " + customerName;
+        return type + " for " + getCustomerName();
     }
 }
@@ -0,0 +1,161 @@
+/**=========================
+    what it does?
+        Bounded queue of the messages the cafe pushes to one connection on its own
+        (not replies): "Order completed" notifications and, once the customer sent
+        "subscribe", updates of its order (an item started brewing, an item is ready).
+        Messages are Notices (numbers, no text): the writer of the connection renders
+        them in the protocol of the connection, text or binary.
+
+    why?
+        The cafe used to write notifications straight into the customer's socket, on the
+        thread that finished the brew: one slow or stuck client held up every brew
+        completion behind it. Now the cafe only queues here, which never blocks,
+        and the front end of the connection writes the queue out on its own time.
+
+    how?
+        * offer(notice): lossless up to the capacity, over it the notice is dropped and
+                         counted, the client gets one "Update dropped" notice instead
+        * updated()    : only marks that the order changed (coalescing): ten brews
+                         finishing before the writer runs still give ONE update,
+                         built from the current state of the order when it is written
+        * the first message after the queue was drained calls wakeup (the front end
+          schedules a writer), the writer calls take() until it returns nothing
+========================**/
+
+package helpers.barista;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Outbox {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final int capacity;
+    private final Runnable wakeup; //may run under the cafe locks, must never block
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Notice> notices = new ArrayDeque<>();
+    private Supplier<Notice> updates;  // builds the update, null while not subscribed
+    private boolean updatePending;
+    private int dropped;
+    private boolean scheduled;         // wakeup called and the writer not done yet
+
+    public Outbox(int capacity, Runnable wakeup) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbox capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.wakeup = wakeup;
+    }
+
+    // queue a message that must not be coalesced (completion notification)
+    public void offer(Notice notice) {
+        boolean wake;
+        lock.lock();
+        try {
+            if (notices.size() < capacity) {
+                notices.add(notice);
+            } else {
+                dropped++; //slow consumer, never wait for it
+            }
+            wake = schedule();
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            wakeup.run();
+        }
+    }
+
+    // the order changed, one update is written for however many changes happen before the writer runs
+    public void updated() {
+        boolean wake;
+        lock.lock();
+        try {
+            if (updates == null) {
+                return; //not subscribed
+            }
+            updatePending = true;
+            wake = schedule();
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            wakeup.run();
+        }
+    }
+
+    // start (source not null) or stop order updates, subscribing sends the current state at once
+    void subscribe(Supplier<Notice> source) {
+        lock.lock();
+        try {
+            updates = source;
+            updatePending = false;
+        } finally {
+            lock.unlock();
+        }
+        if (source != null) {
+            updated();
+        }
+    }
+
+    public boolean isSubscribed() {
+        lock.lock();
+        try {
+            return updates != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Everything queued so far, for the writer of the connection.
+
+     * @return the notices to write in order, empty once nothing is left (the next message wakes the writer again)
+     */
+    public List<Notice> take() {
+        List<Notice> batch = new ArrayList<>();
+        while (batch.isEmpty()) { //an update with nothing to say gives no notice, look again
+            Supplier<Notice> source;
+            lock.lock();
+            try {
+                if (notices.isEmpty() && !updatePending && dropped == 0) {
+                    scheduled = false;
+                    return batch;
+                }
+                if (dropped > 0) {
+                    batch.add(Notice.dropped(dropped));
+                    dropped = 0;
+                }
+                source = updatePending ? updates : null;
+                updatePending = false;
+            } finally {
+                lock.unlock();
+            }
+            // built outside the outbox lock (it takes the order lock), null if there is nothing to say
+            Notice update = source == null ? null : source.get();
+            if (update != null) {
+                batch.add(update);
+            }
+            lock.lock();
+            try {
+                batch.addAll(notices);
+                notices.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return batch;
+    }
+
+    // true if the writer has to be woken up (caller holds the lock)
+    private boolean schedule() {
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+/**=========================
+    what it does?
+        Round robin over the customers with items of the type waiting (policies round-robin
+        and drr of DispatchPolicy): the lane at the head brews up to quantum items, then goes
+        to the back of the line and the next customer gets its turn. Deficit round robin
+        with every item costing the same, quantum 1 is plain round robin.
+
+    why?
+        With k customers waiting every one of them gets one item in k, however many items
+        the others ordered: a small order is done after a few turns instead of after every
+        item placed before it. A bigger quantum keeps a customer's items together (its
+        order completes sooner once it started) at the price of a longer wait for the others.
+
+    how?
+        ArrayDeque of lanes, the head is the one brewing: O(1) per item. A lane joins at the
+        back; the lane of a customer who left is only marked (retired) and skipped once it
+        comes round, so dropping it is O(1) too.
+========================**/
+
+package helpers.barista;
+import java.util.ArrayDeque;
+
+class RoundRobinQueues extends CustomerQueues {
+    private final ArrayDeque<Lane> turns = new ArrayDeque<>();
+    private final int quantum;
+
+    RoundRobinQueues(int quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("The quantum must be at least 1 item.");
+        }
+        this.quantum = quantum;
+    }
+
+    @Override
+    int quantum() { return quantum; }
+
+    Lane head() {
+        Lane lane = turns.peekFirst();
+        while (lane.retired) { // customer left while waiting for its turn
+            turns.pollFirst();
+            lane = turns.peekFirst();
+        }
+        if (lane.deficit == 0) {
+            lane.deficit = quantum; // its turn starts
+        }
+        return lane;
+    }
+
+    void joined(Lane lane) {
+        turns.addLast(lane);
+    }
+
+    void grown(Lane lane) {
+        // keeps its place in the line
+    }
+
+    void served(Lane lane) {
+        if (--lane.deficit == 0) { // turn over, back of the line
+            turns.pollFirst();
+            turns.addLast(lane);
+        }
+    }
+
+    void left(Lane lane) {
+        if (isEmpty()) {
+            turns.clear(); // only retired lanes left
+        } else if (turns.peekFirst() == lane) {
+            turns.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**=========================
+    what it does?
+        Clock running at a constant multiple of real time (1.0 is plain real time).
+        Timed tasks run on ONE scheduler thread, as the BrewingEngine always did,
+        their delays are divided by the speedup.
+
+    example:
+        new ScaledClock(1000): a 45 seconds coffee brews in 45ms of real time,
+        and the metrics still report 45 seconds of brewing
+========================**/
+
+package helpers.barista;
+import java.util.concurrent.*;
+
+public class ScaledClock implements CafeClock {
+    private final double speedup;
+    private final long realStart = System.nanoTime();
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    public ScaledClock(double speedup) {
+        if (!(speedup > 0)) {
+            throw new IllegalArgumentException("Clock speedup must be positive.");
+        }
+        this.speedup = speedup;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "brewing-engine");
+            thread.setDaemon(true); //never keep the server alive on its own
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true); //cancelled brews do not linger in the queue
+    }
+
+    public double getSpeedup() { return speedup; }
+
+    @Override
+    public long nanoTime() {
+        long real = System.nanoTime() - realStart;
+        return speedup == 1.0 ? real : (long) (real * speedup);
+    }
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayNanos) {
+        return scheduler.schedule(task, (long) (delayNanos / speedup), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
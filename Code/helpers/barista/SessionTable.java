@@ -0,0 +1,158 @@
+/**=========================
+    what it does?
+        Gives every connection a dense integer session id and finds its Order by that id
+        with one array read: no string hashing or comparing on the command path.
+        Names are only looked up once, when the customer connects.
+
+    how?
+        session id = generation (high bits) | slot (low SLOT_BITS bits)
+        * slots live in chunks of 1024, allocated when first needed (up to MAX_SLOTS)
+        * a freed slot is reused with its generation + 1, so an old id still held somewhere
+          never finds the new connection's order (generation check)
+        * freed slots are reused FIFO (oldest freed first), so one slot only comes round
+          again after every other free slot was taken
+        * every slot holds an immutable Session (id + order), a lookup reads it once and
+          compares the whole id, no lock
+        Connecting and disconnecting take a small lock for the free list only.
+
+    note:
+        the generation has 9 bits: a stale id resolves to another customer only if its
+        slot was reused exactly 512 times (a multiple of) while the id was held, which
+        with FIFO reuse takes 512 rounds through all the free slots
+========================**/
+
+package helpers.barista;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SessionTable {
+    private static final int SLOT_BITS = 22;
+    public static final int MAX_SLOTS = 1 << SLOT_BITS; //~4M connections at the same time
+    private static final int SLOT_MASK = MAX_SLOTS - 1;
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1; //ids stay positive
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // one connection: its id (with generation) and the order of its customer
+    private static class Session {
+        final int id;
+        final Order order;
+
+        Session(int id, Order order) {
+            this.id = id;
+            this.order = order;
+        }
+    }
+
+    private final AtomicReferenceArray<AtomicReferenceArray<Session>> chunks =
+            new AtomicReferenceArray<>(MAX_SLOTS / CHUNK_SIZE);
+
+    // free list and generations, guarded by lock (only touched on connect / disconnect)
+    private final ReentrantLock lock = new ReentrantLock();
+    private int[] freeSlots = new int[CHUNK_SIZE]; //ring: freeCount slots from freeHead on
+    private int freeHead;
+    private int freeCount;
+    private int nextUnusedSlot;
+    private int[] generations = new int[CHUNK_SIZE];
+    private int open;
+
+    /**
+     * Register a connection of the given order.
+
+     * @return its session id (never negative)
+     * @throws IllegalStateException if MAX_SLOTS connections are already open
+     */
+    public int open(Order order) {
+        int slot;
+        int id;
+        lock.lock();
+        try {
+            if (freeCount > 0) {
+                slot = freeSlots[freeHead]; //freed the longest ago
+                freeHead = (freeHead + 1) % freeSlots.length;
+                freeCount--;
+            } else if (nextUnusedSlot < MAX_SLOTS) {
+                slot = nextUnusedSlot++;
+                if (slot == generations.length) {
+                    generations = Arrays.copyOf(generations, generations.length * 2);
+                }
+            } else {
+                throw new IllegalStateException("Too many customers in the cafe.");
+            }
+            id = (generations[slot] << SLOT_BITS) | slot;
+            open++;
+        } finally {
+            lock.unlock();
+        }
+
+        AtomicReferenceArray<Session> chunk = chunks.get(slot >>> CHUNK_BITS);
+        if (chunk == null) {
+            chunks.compareAndSet(slot >>> CHUNK_BITS, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = chunks.get(slot >>> CHUNK_BITS);
+        }
+        chunk.set(slot & (CHUNK_SIZE - 1), new Session(id, order));
+        return id;
+    }
+
+    // order of an open session, null if the id is unknown or its connection already closed
+    public Order get(int sessionId) {
+        if (sessionId < 0) {
+            return null;
+        }
+        int slot = sessionId & SLOT_MASK;
+        AtomicReferenceArray<Session> chunk = chunks.get(slot >>> CHUNK_BITS);
+        if (chunk == null) {
+            return null;
+        }
+        Session session = chunk.get(slot & (CHUNK_SIZE - 1));
+        return session != null && session.id == sessionId ? session.order : null;
+    }
+
+    /**
+     * Close a session, its slot is reused with the next generation.
+
+     * @return the order it had, null if it was closed already
+     */
+    public Order close(int sessionId) {
+        Order order = get(sessionId);
+        if (order == null) {
+            return null;
+        }
+        int slot = sessionId & SLOT_MASK;
+        lock.lock();
+        try {
+            AtomicReferenceArray<Session> chunk = chunks.get(slot >>> CHUNK_BITS);
+            Session session = chunk.get(slot & (CHUNK_SIZE - 1));
+            if (session == null || session.id != sessionId) {
+                return null; //closed by another thread in the meantime
+            }
+            chunk.set(slot & (CHUNK_SIZE - 1), null);
+            generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+            if (freeCount == freeSlots.length) {
+                int[] bigger = new int[freeSlots.length * 2];
+                for (int i = 0; i < freeCount; i++) {
+                    bigger[i] = freeSlots[(freeHead + i) % freeSlots.length];
+                }
+                freeSlots = bigger;
+                freeHead = 0;
+            }
+            freeSlots[(freeHead + freeCount) % freeSlots.length] = slot;
+            freeCount++;
+            open--;
+        } finally {
+            lock.unlock();
+        }
+        return order;
+    }
+
+    // sessions open right now
+    public int size() {
+        lock.lock();
+        try {
+            return open;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
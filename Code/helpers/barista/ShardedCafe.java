@@ -0,0 +1,290 @@
+/**=========================
+    what it does?
+        A cafe made of N independent VirtualCafe shards. Every shard owns its customers,
+        its waiting queues, its brewing area and its brewing slots (the slots of the
+        profiles, per shard: N shards brew N times as many items at once), behind its
+        own dispatchLock. A customer always lives in the shard of the hash of its name.
+
+    why?
+        One VirtualCafe has one dispatchLock: every order, brew completion and disconnect
+        of every connection goes through it, so the cafe never uses more than about one
+        core however many the box has. Shards share nothing on the command path, so N of
+        them dispatch on N cores at the same time.
+
+    how?
+        * routing      : by name hash (String caches it); the session table is shared by the
+                         shards, so a session id finds its order and through its name the shard
+        * aggregates   : getNumberOfClients, the area counts, the state log... are sums of the
+                         atomic counters of the shards, read without any lock
+        * work stealing: a shard whose slots are all taken borrows a free slot of a shard that
+                         has nothing of that type waiting (VirtualCafe.acquireSlot, a CAS on the
+                         lender's slot counter). The item stays with its own shard (counters,
+                         locks, journal), only the slot is someone else's until it is done.
+                         Whenever slots are freed, balance() lets every shard that has items
+                         waiting and sees a free slot dispatch again. So no slot idles while
+                         any shard has work, and the throughput grows with the shard count.
+        No thread ever holds two dispatchLocks (balance runs after the shard unlocked), except
+        checkInvariants which takes all of them in shard order.
+
+    note:
+        the limits of the AdmissionControl stay for the whole cafe (the waiting area limit
+        counts the items waiting in all shards), the metrics and the journal are shared
+========================**/
+
+package helpers.barista;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+public final class ShardedCafe implements Cafe {
+    private final VirtualCafe[] shards;
+    private final SessionTable sessions = new SessionTable(); //shared: one id space for every shard
+    private final CafeMetrics metrics;
+    private final BrewProfiles profiles;
+    private final AdmissionControl admission;
+    private final CafeStateLogger stateLogger; //null: no state logging (benchmarks)
+    private final CafeJournal journal;         //null: nothing survives a restart
+
+    /**
+     * @param shardCount number of shards, e.g. the number of cores
+     * @param engines    a new brewing engine (and clock) for every shard, so brew completions run on many
+     *                   threads too - engines sharing one ScaledClock share its single scheduler thread
+     */
+    public ShardedCafe(int shardCount, Supplier<BrewingEngine> engines, CafeStateLogger stateLogger,
+                       CafeJournal journal, BrewProfiles profiles, AdmissionControl admission) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A sharded cafe needs at least one shard.");
+        }
+        this.metrics = new CafeMetrics(this);
+        this.profiles = profiles;
+        this.admission = admission;
+        this.stateLogger = stateLogger;
+        this.journal = journal;
+        this.shards = new VirtualCafe[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new VirtualCafe(engines.get(), journal, profiles, admission, sessions, metrics, this, i);
+        }
+    }
+
+    VirtualCafe[] getShards() { return shards; }
+    public int getShardCount() { return shards.length; }
+
+    // shard of a customer, by the hash of its name (spread like HashMap does, for short similar names)
+    private int shardIndex(String customerName) {
+        int hash = customerName.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    private VirtualCafe shardOf(String customerName) {
+        return shards[shardIndex(customerName)];
+    }
+
+    // shard of a session by its order's name; an unknown id goes to any shard, which reports it
+    private VirtualCafe shardOf(int sessionId) {
+        Order order = sessions.get(sessionId);
+        return order == null ? shards[0] : shardOf(order.getCustomerName());
+    }
+
+    //=====connections and orders: one shard each=====
+    public void customerConnected(String customerName)        { shardOf(customerName).customerConnected(customerName); }
+    public int openSession(String customerName)               { return shardOf(customerName).openSession(customerName); }
+    public void closeSession(int sessionId)                   { shardOf(sessionId).closeSession(sessionId); }
+    public void customerDisconnected(String customerName)     { shardOf(customerName).customerDisconnected(customerName); }
+    public void customerDisconnected(int sessionId)           { shardOf(sessionId).customerDisconnected(sessionId); }
+    public void setOutbox(int sessionId, Outbox outbox)       { shardOf(sessionId).setOutbox(sessionId, outbox); }
+
+    public String subscribe(int sessionId, boolean subscribe) throws Exception {
+        return shardOf(sessionId).subscribe(sessionId, subscribe);
+    }
+
+    public void placeOrder(String customerName, int numTeas, int numCoffees) throws Exception {
+        shardOf(customerName).placeOrder(customerName, numTeas, numCoffees);
+    }
+
+    public void placeOrder(int sessionId, int numTeas, int numCoffees) throws Exception {
+        shardOf(sessionId).placeOrder(sessionId, numTeas, numCoffees);
+    }
+
+    public String getOrderStatus(String customerName) throws Exception { return shardOf(customerName).getOrderStatus(customerName); }
+    public String getOrderStatus(int sessionId) throws Exception       { return shardOf(sessionId).getOrderStatus(sessionId); }
+    public boolean isOrderComplete(String customerName) throws Exception { return shardOf(customerName).isOrderComplete(customerName); }
+    public boolean isOrderComplete(int sessionId) throws Exception       { return shardOf(sessionId).isOrderComplete(sessionId); }
+    public long getEstimatedReadyIn(String customerName) throws Exception { return shardOf(customerName).getEstimatedReadyIn(customerName); }
+    public long getEstimatedReadyIn(int sessionId) throws Exception       { return shardOf(sessionId).getEstimatedReadyIn(sessionId); }
+    public String collectOrder(String customerName) throws Exception { return shardOf(customerName).collectOrder(customerName); }
+    public String collectOrder(int sessionId) throws Exception       { return shardOf(sessionId).collectOrder(sessionId); }
+    public long getOrderCounts(int sessionId, int[] counts) throws Exception  { return shardOf(sessionId).getOrderCounts(sessionId, counts); }
+    public void collectOrder(int sessionId, int[] collected) throws Exception { shardOf(sessionId).collectOrder(sessionId, collected); }
+
+    // recovered orders go to the shard of their customer
+    public void restore(List<CafeJournal.RecoveredOrder> recovered) {
+        List<List<CafeJournal.RecoveredOrder>> perShard = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            perShard.add(new ArrayList<>());
+        }
+        for (CafeJournal.RecoveredOrder r : recovered) {
+            perShard.get(shardIndex(r.customerName)).add(r);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].restore(perShard.get(i));
+        }
+    }
+
+    //=====aggregates: sums over the shards, lock free=====
+    public int getNumberOfClients() {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getNumberOfClients();
+        return sum;
+    }
+
+    public int getNumberOfClientsWaiting() {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getNumberOfClientsWaiting();
+        return sum;
+    }
+
+    public int getWaitingCount(OrderItem.ItemType type) {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getWaitingCount(type);
+        return sum;
+    }
+
+    public int getBrewingCount(OrderItem.ItemType type) {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getBrewingCount(type);
+        return sum;
+    }
+
+    public int getReadyCount(OrderItem.ItemType type) {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getReadyCount(type);
+        return sum;
+    }
+
+    public int getBrewingSlotsTaken(OrderItem.ItemType type) {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getBrewingSlotsTaken(type);
+        return sum;
+    }
+
+    public int getBrewingCapacity(OrderItem.ItemType type) { return profiles.getSlots(type) * shards.length; }
+
+    public int getPendingBrews() {
+        int sum = 0;
+        for (VirtualCafe shard : shards) sum += shard.getPendingBrews();
+        return sum;
+    }
+
+    public CafeMetrics getMetrics()        { return metrics; }
+    public AdmissionControl getAdmission() { return admission; }
+    public BrewProfiles getProfiles()      { return profiles; }
+
+    // slots per shard: every shard dispatches onto its new slots (or drains after a shrink)
+    public void setBrewingCapacity(OrderItem.ItemType type, int slots) {
+        for (VirtualCafe shard : shards) {
+            shard.setBrewingCapacity(type, slots);
+        }
+    }
+
+    public void setBrewTime(OrderItem.ItemType type, long brewMillis) {
+        profiles.setBrewMillis(type, brewMillis);
+    }
+
+    public DispatchPolicy getDispatchPolicy() {
+        return shards[0].getDispatchPolicy();
+    }
+
+    // every shard dispatches its own queues by the policy (a turn is a turn within a shard)
+    public void setDispatchPolicy(DispatchPolicy policy) {
+        for (VirtualCafe shard : shards) {
+            shard.setDispatchPolicy(policy);
+        }
+    }
+
+    //=====work stealing=====
+    /**
+     * Hand out free brewing slots, called by a shard after it freed a slot and unlocked.
+     * Per item type: every shard with items waiting dispatches if it has a free slot itself,
+     * or if some shard has a free slot and nothing of the type waiting (it lends it).
+     * Reads only atomic counters until a shard actually has something to dispatch.
+     */
+    void balance() {
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            int slots = profiles.getSlots(type);
+            boolean idleSlot = false;
+            for (VirtualCafe shard : shards) {
+                if (shard.getWaitingCount(type) == 0 && shard.getBrewingSlotsTaken(type) < slots) {
+                    idleSlot = true;
+                    break;
+                }
+            }
+            for (VirtualCafe shard : shards) {
+                if (shard.getWaitingCount(type) > 0 && (idleSlot || shard.getBrewingSlotsTaken(type) < slots)) {
+                    shard.dispatch();
+                }
+            }
+        }
+    }
+
+    //=====state log and checks=====
+    // Snapshot of the whole cafe from the counters of every shard, shards call it on every change
+    void logState() {
+        if (stateLogger == null) {
+            return;
+        }
+        stateLogger.log(new CafeStateLogger.Snapshot(getNumberOfClients(), getNumberOfClientsWaiting(),
+                getWaitingCount(OrderItem.ItemType.TEA), getWaitingCount(OrderItem.ItemType.COFFEE),
+                getBrewingCount(OrderItem.ItemType.TEA), getBrewingCount(OrderItem.ItemType.COFFEE),
+                getReadyCount(OrderItem.ItemType.TEA), getReadyCount(OrderItem.ItemType.COFFEE)));
+    }
+
+    /**
+     * The invariants of every shard plus: every slot one shard lent is one another shard borrowed.
+     * Takes the dispatchLocks of all shards in shard order, so the slots of one shard cannot
+     * change under the check of another.
+
+     * @return descriptions of the violated invariants, empty if the state is consistent
+     */
+    public List<String> checkInvariants() {
+        List<String> violations = new ArrayList<>();
+        for (VirtualCafe shard : shards) {
+            shard.getDispatchLock().lock();
+        }
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                for (String violation : shards[i].checkInvariants()) {
+                    violations.add("shard " + i + ": " + violation);
+                }
+            }
+            for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                int lent = 0;
+                int borrowed = 0;
+                for (VirtualCafe shard : shards) {
+                    lent += shard.getLentSlots(type);
+                    borrowed += shard.getBorrowedSlots(type);
+                }
+                if (lent != borrowed) {
+                    violations.add(type + " slots lent " + lent + " != slots borrowed " + borrowed);
+                }
+            }
+        } finally {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                shards[i].getDispatchLock().unlock();
+            }
+        }
+        return violations;
+    }
+
+    // Stop the brewing engine of every shard, then flush the state log and the journal
+    public void shutdown() {
+        for (VirtualCafe shard : shards) {
+            shard.shutdown();
+        }
+        if (stateLogger != null) {
+            stateLogger.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**=========================
+    what it does?
+        Shortest remaining order first (policy srpt of DispatchPolicy): the customer with the
+        fewest items of the type still waiting brews next, the one who came first among equals.
+
+    why?
+        Finishing the small orders first gives the lowest average completion time, and the
+        one coffee ordered behind a 1000 coffee order waits for one brew instead of 1000.
+        The price: a big order only gets slots while no smaller one is waiting (starves
+        under a steady flow of small orders, use round-robin or drr if that matters).
+
+    how?
+        Binary min heap of the lanes on (items waiting, arrival), every lane knows its index
+        so it is moved or removed in place: O(log customers) when a lane joins, grows or
+        leaves. Brewing one item only makes the head lane shorter, it stays the head: O(1).
+========================**/
+
+package helpers.barista;
+
+class ShortestFirstQueues extends CustomerQueues {
+    private Lane[] heap = new Lane[16];
+    private int size;
+
+    Lane head() {
+        return heap[0];
+    }
+
+    void joined(Lane lane) {
+        if (size == heap.length) {
+            Lane[] bigger = new Lane[size * 2];
+            System.arraycopy(heap, 0, bigger, 0, size);
+            heap = bigger;
+        }
+        place(lane, size++);
+        siftUp(lane.heapIndex);
+    }
+
+    void grown(Lane lane) {
+        siftDown(lane.heapIndex);
+    }
+
+    void served(Lane lane) {
+        // fewer items than before, still the smallest
+    }
+
+    void left(Lane lane) {
+        int at = lane.heapIndex;
+        Lane last = heap[--size];
+        heap[size] = null;
+        lane.heapIndex = -1;
+        if (at != size) {
+            place(last, at);
+            siftDown(at);
+            siftUp(last.heapIndex);
+        }
+    }
+
+    private static boolean before(Lane a, Lane b) {
+        return a.remaining != b.remaining ? a.remaining < b.remaining : a.arrival < b.arrival;
+    }
+
+    private void place(Lane lane, int at) {
+        heap[at] = lane;
+        lane.heapIndex = at;
+    }
+
+    private void siftUp(int at) {
+        Lane lane = heap[at];
+        while (at > 0) {
+            int parent = (at - 1) / 2;
+            if (!before(lane, heap[parent])) {
+                break;
+            }
+            place(heap[parent], at);
+            at = parent;
+        }
+        place(lane, at);
+    }
+
+    private void siftDown(int at) {
+        Lane lane = heap[at];
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], lane)) {
+                break;
+            }
+            place(heap[child], at);
+            at = child;
+        }
+        place(lane, at);
+    }
+}
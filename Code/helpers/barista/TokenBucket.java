@@ -0,0 +1,44 @@
+/**=========================
+    what it does?
+        Token bucket rate limiter of one connection: holds up to `burst` tokens, refilled
+        at `perSecond`, every command takes one. A customer may send a burst (pipelining)
+        but not more than the rate over time.
+
+    note:
+        not thread safe, used only by the thread or reactor serving its connection.
+        Runs on real time (System.nanoTime), not the cafe clock: it protects the server,
+        whatever speed the cafe simulation runs at
+========================**/
+
+package helpers.barista;
+
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst of a token bucket must be positive.");
+        }
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst; //a new connection starts with a full bucket
+        this.lastRefill = System.nanoTime();
+    }
+
+    // take one token if there is one, false means over the rate
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public double getRate() { return tokensPerNano * 1e9; }
+}
@@ -8,396 +8,1212 @@
         * Manages the three areas (waiting, brewing, tray)
         * Tracks connected clients and their states
         * Handles order placement, brewing simulation, and collection
-        * Provides thread-safe operations(startBrewingThread and synchronized methods)
-        * Knows capacity constraints (2 teas, 2 coffees brewing max)
-        * Logs state changes to both terminal and JSON file with timestamps
-
-    why synchronized methods?
-        * Uses coarse-grained synchronization (synchronized methods) for thread safety,
-        * since Virtual Cafe is used by meany threads and sharing same space,
-        * using synchronized we avoid race conditions
+        * Provides thread-safe operations(BrewingEngine and the striped locks below)
+        * Knows capacity constraints per item type (BrewProfiles: slots and brew time,
+          2 teas and 2 coffees by default), changeable while running (setBrewingCapacity)
+        * Admission control (AdmissionControl): orders over the per customer or the waiting
+          area limit are rejected whole with the estimated wait, so the queue stays bounded
+        * Logs state changes to both terminal and JSON file with timestamps (CafeStateLogger,
+          in the background - snapshots are only queued here, never written under a lock)
+        * Records metrics of every transition (CafeMetrics: counters and latency histograms)
+        * Takes its time from the CafeClock of the brewing engine, so the same cafe runs in
+          real time, sped up, or on a simulated VirtualClock
+        * Journals every transition (CafeJournal, optional) and restores the recovered
+          orders on startup - under the locks a record is only queued, the file is written later
+        * Runs alone or as one shard of a ShardedCafe: then a dispatcher out of slots borrows
+          a free slot of a shard with nothing of that type waiting (CAS on its slot counter,
+          see acquireSlot) and freed slots are handed out again by ShardedCafe.balance
+
+    why striped (fine-grained) locking instead of one cafe lock?
+        With one lock a status poll of one customer blocked the brewing completions of
+        everybody. Now every part of the state has its own guard:
+        * customers      : ConcurrentHashMap by name, only used when a customer connects
+        * sessions       : SessionTable, every connection gets an integer session id and its
+                           commands find the Order by one array read (no string hashing)
+        * each Order     : its own ReentrantLock guarding its counters, items and tray,
+                           so status/collect of one customer only ever waits for that customer
+        * dispatchLock   : guards the waiting queues and the brewing area (the dispatcher)
+        * brewing slots  : one counter per type, taken and given back with CAS,
+                           readable at any time without a lock
+        Lock order is always dispatchLock -> Order lock (never the other way round)
+        and no thread holds two Order locks, except checkInvariants which takes them
+        all after the dispatchLock. As a shard of a ShardedCafe no thread holds two
+        dispatchLocks either (ShardedCafe.checkInvariants takes them all, in shard order).
+        ReentrantLock instead of synchronized: a virtual thread blocked on a monitor pins
+        its carrier thread, blocked on a j.u.c lock it does not.
 
     Data Structure options for areas and why:
         Note: OrderItem class help as record for holding together an order item
               and its user, so one order might have many items but one customer
-        * Waiting Area: Queue for first in first out implementation.
-        * Brewing Area: Array list for fast efficient iteration and access,resize
-        * Tray Area   : Holding customers and list for each that forms the order
-                        of that customer, Using list so that items can be transferred later.
+        * Waiting Area: One FIFO WaitingQueue per item type, so a free tea slot takes the
+                        oldest tea in O(1) instead of scanning past every waiting coffee.
+                        It holds run length records (order, count) in a ring buffer, an
+                        OrderItem is only created when one item of a record starts brewing:
+                        memory of queued work grows with the orders, not with the drinks.
+                        The DispatchPolicy picks the queue: FIFO over all customers (the default)
+                        or one lane per customer taking turns / shortest first (CustomerQueues).
+        * Brewing Area: Linked hash set, fast iteration and O(1) removal of one item
+        * Disconnect  : Every Order keeps handles to its own brewing items, which are cancelled
+                        giving their slots back immediately. Its waiting records stay in the
+                        queues as tombstones (Order.isDeparted) the dispatcher drops lazily
+                        (fifo), the customer lanes of the fair policies drop them at once.
+        * Tray Area   : Just the ready counters of each Order (and the aggregates), the tray
+                        was never read item by item. Counters live in the Order itself, so a
+                        customer reconnecting with the same name never shares its previous tray.
 =========================**/
 
 package helpers.barista;
 import java.io.*;
 import java.util.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class VirtualCafe {
+public final class VirtualCafe implements Cafe {
     // THREE EXPLICIT AREAS
-    private final Queue<OrderItem> waitingArea = new LinkedList<>(); //FIFO
-    private final List<OrderItem> brewingArea = new ArrayList<>();
-    private final Map<String, List<OrderItem>> trayArea = new TreeMap<>();
+    private final Map<OrderItem.ItemType, DispatchQueue> waitingArea = new EnumMap<>(OrderItem.ItemType.class); //per item type, dispatchLock
+    private volatile DispatchPolicy policy = DispatchPolicy.FIFO; //the queues above, changed under the dispatchLock
+    private final Set<OrderItem> brewingArea = new LinkedHashSet<>(); //dispatchLock
+    // tray area: the ready counters of every Order, guarded by its Order lock
+
+    private final Map<String, Order> customers = new ConcurrentHashMap<>(); //by name, only used when connecting
+    private final SessionTable sessions; //connection -> order by integer id, the command path (shared by the shards)
+
+    // Brewing capacity tracking per item type (CAS, never locked), limits and brew times in the profiles
+    private final AtomicIntegerArray brewingSlots = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+
+    // Shard of a ShardedCafe (null: a cafe on its own). Its slots taken by items of other shards (lent)
+    // and its items brewing on slots of other shards (borrowed), both changed by the borrowing dispatcher
+    private final ShardedCafe group;
+    private final int shardIndex;
+    private final AtomicIntegerArray lentSlots = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+    private final AtomicIntegerArray borrowedSlots = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+
+    // Ready times of the items brewing now per type, sorted: copy on write under the dispatchLock,
+    // read without it by the status ETA (at most the capacity of entries)
+    private final AtomicReferenceArray<long[]> brewingReadyTimes = new AtomicReferenceArray<>(OrderItem.ItemType.values().length);
+    private final BrewProfiles profiles;
+
+    // Limits of accepted work, checked by placeOrder under the dispatchLock
+    private final AdmissionControl admission;
+
+    // Aggregate counters per area x item type (index = ItemType ordinal) and customers with an order,
+    // kept up to date on every transition so a state snapshot is O(1) instead of a recount of all areas
+    private final AtomicIntegerArray waitingCounts = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+    private final AtomicIntegerArray brewingCounts = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+    private final AtomicIntegerArray readyCounts = new AtomicIntegerArray(OrderItem.ItemType.values().length);
+    private final AtomicInteger customersWithOrders = new AtomicInteger(0);
+
+    // Waiting items of disconnected customers still sitting in the queues (dropped lazily), per item type
+    private final int[] cancelledWaiting = new int[OrderItem.ItemType.values().length]; //dispatchLock
+
+    // One shared scheduler completes every brew (no thread per item)
+    private final BrewingEngine brewingEngine;
+    private final CafeClock clock; //time of the brewing engine, real, scaled or simulated
+
+    // Guards the waiting queues and the brewing area
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+
+    // Console + JSON logging, written asynchronously by the state logger
+    private final CafeStateLogger stateLogger; //null: no state logging (benchmarks)
+
+    // Write-ahead journal of every transition, for crash recovery
+    private final CafeJournal journal; //null: nothing survives a restart
+
+    // Counters, gauges and latency histograms (JMX and the admin console read them), shared by the shards
+    private final CafeMetrics metrics;
+
+    public VirtualCafe() {
+        this(new BrewingEngine());
+    }
+
+    public VirtualCafe(BrewingEngine brewingEngine) {
+        this(brewingEngine, new CafeStateLogger());
+    }
+
+    public VirtualCafe(BrewingEngine brewingEngine, CafeStateLogger stateLogger) {
+        this(brewingEngine, stateLogger, null);
+    }
+
+    public VirtualCafe(BrewingEngine brewingEngine, CafeStateLogger stateLogger, CafeJournal journal) {
+        this(brewingEngine, stateLogger, journal, new BrewProfiles());
+    }
 
-    private final Map<String, Order> customers = new TreeMap<>();
+    public VirtualCafe(BrewingEngine brewingEngine, CafeStateLogger stateLogger, CafeJournal journal,
+                       BrewProfiles profiles) {
+        this(brewingEngine, stateLogger, journal, profiles, AdmissionControl.unlimited());
+    }
 
-    // Brewing capacity tracking
-    private int currentBrewingTeas = 0;
-    private int currentBrewingCoffees = 0;
-    private static final int MAX_BREWING_TEAS = 2;
-    private static final int MAX_BREWING_COFFEES = 2;
+    public VirtualCafe(BrewingEngine brewingEngine, CafeStateLogger stateLogger, CafeJournal journal,
+                       BrewProfiles profiles, AdmissionControl admission) {
+        this(brewingEngine, stateLogger, journal, profiles, admission, new SessionTable(), null, null, 0);
+    }
 
-    // JSON logging
-    private static final String LOG_FILE = "VritualCafe_logs.json";
-    private static final DateTimeFormatter DATE_FORMATTER =
-            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // shard number shardIndex of a ShardedCafe: its sessions, metrics, journal and profiles are the group's,
+    // it logs no state of its own (the group logs the merged state)
+    VirtualCafe(BrewingEngine brewingEngine, CafeJournal journal, BrewProfiles profiles, AdmissionControl admission,
+                SessionTable sessions, CafeMetrics metrics, ShardedCafe group, int shardIndex) {
+        this(brewingEngine, null, journal, profiles, admission, sessions, metrics, group, shardIndex);
+    }
 
-    public synchronized void customerConnected(String customerName) {
-        if (!customers.containsKey(customerName)) {
-            customers.put(customerName, new Order(customerName));
+    private VirtualCafe(BrewingEngine brewingEngine, CafeStateLogger stateLogger, CafeJournal journal,
+                        BrewProfiles profiles, AdmissionControl admission, SessionTable sessions,
+                        CafeMetrics metrics, ShardedCafe group, int shardIndex) {
+        this.brewingEngine = brewingEngine;
+        this.profiles = profiles;
+        this.admission = admission;
+        this.clock = brewingEngine.getClock();
+        this.stateLogger = stateLogger;
+        this.journal = journal;
+        this.sessions = sessions;
+        this.metrics = metrics != null ? metrics : new CafeMetrics(this);
+        this.group = group;
+        this.shardIndex = shardIndex;
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            waitingArea.put(type, policy.newQueue());
+            brewingReadyTimes.set(type.ordinal(), new long[0]);
         }
+    }
+
+    public void customerConnected(String customerName) {
+        customers.putIfAbsent(customerName, new Order(customerName));
         logState();
     }
 
-    public synchronized void customerDisconnected(String customerName) {
-        Order order = customers.remove(customerName);
+    /**
+     * Connect a customer and give its connection a session id, the name is resolved
+     * here once and every later command of the connection uses the id.
+     * A customer connecting with the name of a connected (or recovered) one shares its order.
+
+     * @return session id for the session methods below, given back with closeSession
+     */
+    public int openSession(String customerName) {
+        while (true) {
+            Order order = customers.computeIfAbsent(customerName, Order::new);
+            int sessionId = sessions.open(order);
+            boolean departed;
+            order.getLock().lock();
+            try {
+                departed = order.isDeparted();
+            } finally {
+                order.getLock().unlock();
+            }
+            if (!departed) {
+                logState();
+                return sessionId;
+            }
+            sessions.close(sessionId); //raced with a disconnect of that name, take the next order
+        }
+    }
 
-        // Remove all items for this customer from all areas
-        waitingArea.removeIf(item -> item.getCustomerName().equals(customerName));
-        brewingArea.removeIf(item -> item.getCustomerName().equals(customerName));
-        trayArea.remove(customerName);
+    // The connection is gone: free its session id and disconnect its customer
+    public void closeSession(int sessionId) {
+        Order order = sessions.close(sessionId);
+        if (order != null) {
+            disconnect(order);
+        }
+    }
+
+    public void customerDisconnected(String customerName) {
+        Order order = customers.get(customerName);
+        if (order != null) {
+            disconnect(order);
+        }
+    }
+
+    // customer of one connection leaves (exit command), its session stays until closeSession
+    public void customerDisconnected(int sessionId) {
+        Order order = sessions.get(sessionId);
+        if (order != null) {
+            disconnect(order);
+        }
+    }
 
+    private void disconnect(Order order) {
+        String customerName = order.getCustomerName();
+        dispatchLock.lock();
+        try {
+            order.getLock().lock();
+            try {
+                // removed under the locks, so nobody sees a customer that is half gone
+                if (!customers.remove(customerName, order)) {
+                    return; //already cleaned up (exit command and then the closed connection)
+                }
+                order.setDeparted(); //a placeOrder racing with the disconnect now fails
+                if (!order.isIdle()) {
+                    customersWithOrders.decrementAndGet();
+                }
+                if (order.getPendingItems() > 0) {
+                    metrics.disconnectedWithPendingWork();
+                }
+                if (journal != null && !order.isIdle()) {
+                    journal.disconnected(customerName);
+                }
+
+                // Remove all items for this customer from all areas - only its own items are touched
+                for (OrderItem item : order.getItems()) {
+                    item.cancel(); //a completion already on its way sees it and does nothing
+                    brewingArea.remove(item);
+                    removeReadyTime(item);
+                    // stop the brew and give the slot back right away
+                    brewingEngine.cancel(item.getBrew());
+                    releaseSlot(item.getSlotOwner(), item.getType());
+                    brewingCounts.decrementAndGet(item.getType().ordinal());
+                }
+                order.getItems().clear();
+
+                // its waiting records leave the queues now if the policy can find them (customer lanes),
+                // otherwise they become tombstones (the order is departed) the dispatcher drops
+                for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                    int dropped = waitingArea.get(type).drop(order);
+                    waitingCounts.addAndGet(type.ordinal(), -order.getWaiting(type));
+                    cancelledWaiting[type.ordinal()] += order.getWaiting(type) - dropped;
+                    readyCounts.addAndGet(type.ordinal(), -order.getReady(type));
+                }
+            } finally {
+                order.getLock().unlock();
+            }
+
+            startBrewingIfCapacityAvailable(); //freed slots go to the next customers
+        } finally {
+            dispatchLock.unlock();
+        }
+        rebalance();
         logState();
     }
 
-    //bind the writer of the server created by the socket that communicates with client to the customer order for communication
-    public synchronized void setClientWriter(String customerName, PrintWriter writer) {
+    //bind the outbox of the connection to the customer order, the cafe pushes its notifications there
+    //(queued only, the front end writes them to the socket - a slow client never holds up the cafe)
+    public void setOutbox(String customerName, Outbox outbox) {
         Order order = customers.get(customerName);
         if (order != null) {
-            order.setClientWriter(writer);
+            order.setOutbox(outbox);
         }
     }
 
-    public synchronized void placeOrder(String customerName, int numTeas, int numCoffees)
-            throws Exception {
+    public void setOutbox(int sessionId, Outbox outbox) {
+        Order order = sessions.get(sessionId);
+        if (order != null) {
+            order.setOutbox(outbox);
+        }
+    }
+
+    /**
+     * Start or stop pushing updates of the order to the connection of this session:
+     * an item started brewing or is ready (coalesced, see Outbox) besides the completion.
+
+     * @return reply for the customer
+     */
+    public String subscribe(int sessionId, boolean subscribe) throws Exception {
+        Order order = sessionOrder(sessionId);
+        Outbox outbox = order.getOutbox();
+        if (outbox == null) {
+            throw new Exception("No connection to send updates to.");
+        }
+        outbox.subscribe(subscribe ? () -> orderUpdate(order) : null);
+        return (subscribe ? "Subscribed " : "Unsubscribed ") + order.getCustomerName() + " to order updates";
+    }
+
+    // Update of a subscribed customer, built when its outbox is written (the latest state,
+    // however many changes came before), null when there is nothing pending to tell about
+    private Notice orderUpdate(Order order) {
+        order.getLock().lock();
+        try {
+            if (order.isDeparted() || order.getPendingItems() == 0) {
+                return null; //gone, idle, or complete (the completion notification says it)
+            }
+            return Notice.update(order, estimatedReadyIn(order));
+        } finally {
+            order.getLock().unlock();
+        }
+    }
+
+    // order of a connected customer by name (tools, benchmarks) or by session id (the servers)
+    private Order customerOrder(String customerName) throws Exception {
         Order order = customers.get(customerName);
         if (order == null) {
             throw new Exception("Customer not found: " + customerName);
         }
+        return order;
+    }
+
+    private Order sessionOrder(int sessionId) throws Exception {
+        Order order = sessions.get(sessionId);
+        if (order == null) {
+            throw new Exception("Customer not found: session " + sessionId);
+        }
+        return order;
+    }
 
+    public void placeOrder(String customerName, int numTeas, int numCoffees) throws Exception {
+        placeOrder(customerOrder(customerName), numTeas, numCoffees);
+    }
+
+    public void placeOrder(int sessionId, int numTeas, int numCoffees) throws Exception {
+        placeOrder(sessionOrder(sessionId), numTeas, numCoffees);
+    }
+
+    private void placeOrder(Order order, int numTeas, int numCoffees) throws Exception {
+        String customerName = order.getCustomerName();
         if (numTeas < 0 || numCoffees < 0) {
             throw new Exception("Order quantities must be non-negative.");
         }
 
-        // 1. Update Order counters (for fast status lookup)
-        order.setTeasWaiting(order.getTeasWaiting() + numTeas);
-        order.setCoffeesWaiting(order.getCoffeesWaiting() + numCoffees);
+        dispatchLock.lock();
+        try {
+            order.getLock().lock();
+            try {
+                if (order.isDeparted()) {
+                    throw new Exception("Customer not found: " + customerName);
+                }
+                admit(order, numTeas, numCoffees); //throws before anything of the order is queued
 
-        // 2. Add items to global waiting area (explicit data structure)
-        for (int i = 0; i < numTeas; i++) {
-            waitingArea.add(new OrderItem(customerName, helpers.barista.OrderItem.ItemType.TEA));
-        }
-        for (int i = 0; i < numCoffees; i++) {
-            waitingArea.add(new OrderItem(customerName, helpers.barista.OrderItem.ItemType.COFFEE));
-        }
+                // 1. Update Order counters (for fast status lookup) and the aggregates
+                if (order.isIdle() && numTeas + numCoffees > 0) {
+                    customersWithOrders.incrementAndGet();
+                    order.setPlacedNanos(clock.nanoTime()); //placed -> collected starts now
+                }
+                // 2. Add items to global waiting area (explicit data structure)
+                long now = clock.nanoTime();
+                addWaitingItems(order, OrderItem.ItemType.TEA, numTeas, now);
+                addWaitingItems(order, OrderItem.ItemType.COFFEE, numCoffees, now);
+                if (journal != null && numTeas + numCoffees > 0) {
+                    journal.placed(customerName, numTeas, numCoffees);
+                }
+            } finally {
+                order.getLock().unlock();
+            }
 
+            startBrewingIfCapacityAvailable();
+        } finally {
+            dispatchLock.unlock();
+        }
+        rebalance();
+        metrics.orderPlaced();
         logState();
-        startBrewingIfCapacityAvailable();
     }
 
-    public synchronized String getOrderStatus(String customerName) throws Exception {
-        Order order = customers.get(customerName);
-        if (order == null) {
-            throw new Exception("Customer not found: " + customerName);
+    // reject an order over the admission limits, in long so huge quantities cannot overflow
+    // (caller holds the dispatchLock and the Order lock)
+    private void admit(Order order, int numTeas, int numCoffees) throws Exception {
+        long items = (long) numTeas + numCoffees;
+        long customerItems = order.getPendingItems() + items;
+        if (customerItems > admission.getMaxCustomerItems()) {
+            metrics.orderRejected();
+            throw new Exception("Order rejected: at most " + admission.getMaxCustomerItems()
+                    + " items per customer waiting or brewing (you have " + order.getPendingItems() + ")."
+                    + estimatedWait(numTeas, numCoffees));
+        }
+        long waiting = 0; //of the whole cafe, every shard shares the limit
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            waiting += group != null ? group.getWaitingCount(type) : waitingCounts.get(type.ordinal());
         }
+        if (waiting + items > admission.getMaxWaitingItems()) {
+            metrics.orderRejected();
+            throw new Exception("Order rejected: the cafe is full (" + waiting + " items waiting, at most "
+                    + admission.getMaxWaitingItems() + ")." + estimatedWait(numTeas, numCoffees));
+        }
+    }
 
-        if (order.isIdle()) {
-            return "No order found for " + customerName;
+    // " Estimated wait ~Ns, please order again later." for the types of an order, "" if unknown
+    private String estimatedWait(int numTeas, int numCoffees) {
+        long wait = -1;
+        if (numTeas > 0) wait = Math.max(wait, estimatedWaitMillis(OrderItem.ItemType.TEA));
+        if (numCoffees > 0) wait = Math.max(wait, estimatedWaitMillis(OrderItem.ItemType.COFFEE));
+        if (wait < 0) {
+            return "";
         }
+        return " Estimated wait ~" + (wait + 999) / 1000 + "s, please order again later.";
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("Order status for ").append(customerName).append(":\n");
+    /**
+     * Cafe time until one more item of this type, queued now, would be brewed:
+     * every waiting item ahead of it plus itself, brewed slots at a time.
 
-        if (order.getTeasWaiting() > 0 || order.getCoffeesWaiting() > 0) {
-            sb.append("  - ").append(order.getCoffeesWaiting())
-                    .append(" coffee and ").append(order.getTeasWaiting())
-                    .append(" teas in waiting area\n");
+     * @return milliseconds, -1 if the type has no brewing slots (no estimate)
+     */
+    public long estimatedWaitMillis(OrderItem.ItemType type) {
+        int slots = profiles.getSlots(type);
+        if (slots == 0) {
+            return -1;
         }
+        long rounds = (waitingCounts.get(type.ordinal()) + 1L + slots - 1) / slots;
+        return rounds * profiles.getBrewMillis(type);
+    }
 
-        if (order.getTeasBrewing() > 0 || order.getCoffeesBrewing() > 0) {
-            sb.append("  - ").append(order.getCoffeesBrewing())
-                    .append(" coffee and ").append(order.getTeasBrewing())
-                    .append(" tea currently being prepared\n");
+    public AdmissionControl getAdmission() { return admission; }
+
+    // new items of one type at the back of its waiting queue, one record whatever the quantity,
+    // with the Order counter and the aggregate (caller holds the dispatchLock and the Order lock)
+    private void addWaitingItems(Order order, OrderItem.ItemType type, int count, long placedAt) {
+        order.setWaiting(type, order.getWaiting(type) + count);
+        waitingCounts.addAndGet(type.ordinal(), count);
+        long lastSeq = waitingArea.get(type).add(order, count, placedAt);
+        if (count > 0) {
+            order.setLastWaitingSeq(type, lastSeq);
         }
+    }
 
-        if (order.getTeasReady() > 0 || order.getCoffeesReady() > 0) {
-            sb.append("  - ").append(order.getCoffeesReady())
-                    .append(" coffees and ").append(order.getTeasReady())
-                    .append(" teas currently in the tray\n");
+    /**
+     * Give back the orders recovered from the journal, before any customer connects.
+     * Each one waits for its customer under the same name (connecting with that name
+     * takes the order over), its waiting items are queued again in the order they were
+     * first placed and its ready items are back on the tray.
+     */
+    public void restore(List<CafeJournal.RecoveredOrder> recovered) {
+        dispatchLock.lock();
+        try {
+            long now = clock.nanoTime();
+            for (CafeJournal.RecoveredOrder r : recovered) {
+                Order order = new Order(r.customerName);
+                if (customers.putIfAbsent(r.customerName, order) != null) {
+                    continue;
+                }
+                order.getLock().lock();
+                try {
+                    order.setReady(OrderItem.ItemType.TEA, r.teasReady);
+                    order.setReady(OrderItem.ItemType.COFFEE, r.coffeesReady);
+                    order.setPlacedNanos(now); //latencies of recovered orders count from the restart
+                    readyCounts.addAndGet(OrderItem.ItemType.TEA.ordinal(), r.teasReady);
+                    readyCounts.addAndGet(OrderItem.ItemType.COFFEE.ordinal(), r.coffeesReady);
+                    addWaitingItems(order, OrderItem.ItemType.TEA, r.teasWaiting, now);
+                    addWaitingItems(order, OrderItem.ItemType.COFFEE, r.coffeesWaiting, now);
+                    if (!order.isIdle()) {
+                        customersWithOrders.incrementAndGet();
+                    }
+                    if (order.isComplete()) {
+                        order.setCompletedNanos(now);
+                    }
+                } finally {
+                    order.getLock().unlock();
+                }
+            }
+            startBrewingIfCapacityAvailable();
+        } finally {
+            dispatchLock.unlock();
         }
+        rebalance();
+        logState();
+    }
 
-        return sb.toString();
+    public String getOrderStatus(String customerName) throws Exception {
+        return getOrderStatus(customerOrder(customerName));
     }
 
-    // Check if order complete - O(1) using Order counters!
-    public synchronized boolean isOrderComplete(String customerName) throws Exception {
-        Order order = customers.get(customerName);
-        if (order == null) {
-            throw new Exception("Customer not found: " + customerName);
+    public String getOrderStatus(int sessionId) throws Exception {
+        return getOrderStatus(sessionOrder(sessionId));
+    }
+
+    // Read only, takes only this customer's lock - never waits for the dispatcher
+    private String getOrderStatus(Order order) throws Exception {
+        String customerName = order.getCustomerName();
+        order.getLock().lock();
+        try {
+            if (order.isDeparted()) {
+                throw new Exception("Customer not found: " + customerName);
+            }
+
+            if (order.isIdle()) {
+                return "No order found for " + customerName;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("Order status for ").append(customerName).append(":\n");
+
+            if (order.getTeasWaiting() > 0 || order.getCoffeesWaiting() > 0) {
+                sb.append("  - ").append(order.getCoffeesWaiting())
+                        .append(" coffee and ").append(order.getTeasWaiting())
+                        .append(" teas in waiting area\n");
+            }
+
+            if (order.getTeasBrewing() > 0 || order.getCoffeesBrewing() > 0) {
+                sb.append("  - ").append(order.getCoffeesBrewing())
+                        .append(" coffee and ").append(order.getTeasBrewing())
+                        .append(" tea currently being prepared\n");
+            }
+
+            if (order.getTeasReady() > 0 || order.getCoffeesReady() > 0) {
+                sb.append("  - ").append(order.getCoffeesReady())
+                        .append(" coffees and ").append(order.getTeasReady())
+                        .append(" teas currently in the tray\n");
+            }
+
+            if (order.getPendingItems() > 0) {
+                long readyIn = estimatedReadyIn(order);
+                if (readyIn < 0) {
+                    sb.append("  - no estimate, an item type of the order has no brewing slots right now\n");
+                } else {
+                    sb.append("  - estimated ready in about ")
+                            .append(roundUpSeconds(readyIn)).append("s\n");
+                }
+            }
+
+            return sb.toString();
+        } finally {
+            order.getLock().unlock();
         }
-        return order.isComplete();
     }
 
-    // Collect order
-    public synchronized String collectOrder(String customerName) throws Exception {
-        Order order = customers.get(customerName);
-        if (order == null) {
-            throw new Exception("Customer not found: " + customerName);
+    /**
+     * Estimated time until everything the customer ordered is on the tray, from the position
+     * of its last waiting item in each queue, the ready times of the items brewing now and
+     * the current slot capacity. O(1) per item type, no queue scan and no dispatchLock.
+
+     * @return clock nanoseconds (cafe time), 0 if nothing is pending, -1 if there is no estimate
+     */
+    public long getEstimatedReadyIn(String customerName) throws Exception {
+        return getEstimatedReadyIn(customerOrder(customerName));
+    }
+
+    public long getEstimatedReadyIn(int sessionId) throws Exception {
+        return getEstimatedReadyIn(sessionOrder(sessionId));
+    }
+
+    private long getEstimatedReadyIn(Order order) throws Exception {
+        order.getLock().lock();
+        try {
+            if (order.isDeparted()) {
+                throw new Exception("Customer not found: " + order.getCustomerName());
+            }
+            return estimatedReadyIn(order);
+        } finally {
+            order.getLock().unlock();
         }
+    }
+
+    /**
+     * Status for the binary protocol: the six counters of the order as they are, no text.
 
-        if(order.isIdle()) {
-            return "No order found for " + customerName;
+     * @param counts gets Order.COUNTERS counters (Order.copyCounts order), all 0 if the customer has no order
+     * @return estimated clock nanoseconds until ready as getEstimatedReadyIn
+     */
+    public long getOrderCounts(int sessionId, int[] counts) throws Exception {
+        Order order = sessionOrder(sessionId);
+        order.getLock().lock();
+        try {
+            if (order.isDeparted()) {
+                throw new Exception("Customer not found: " + order.getCustomerName());
+            }
+            order.copyCounts(counts);
+            return estimatedReadyIn(order);
+        } finally {
+            order.getLock().unlock();
         }
+    }
+
+    // whole seconds for the replies, at least 1
+    static long roundUpSeconds(long nanos) {
+        return Math.max(1, (nanos + 999_999_999L) / 1_000_000_000L);
+    }
 
-        if (!order.isComplete()) {
-            throw new Exception("Order is still pending");
+    // caller holds the Order lock
+    private long estimatedReadyIn(Order order) {
+        long now = clock.nanoTime();
+        long ready = now;
+        for (OrderItem item : order.getItems()) {
+            ready = Math.max(ready, item.getReadyNanos()); //own items brewing now
+        }
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            if (order.getWaiting(type) == 0) {
+                continue;
+            }
+            long typeReady = estimatedReadyNanos(order, type, now);
+            if (typeReady < 0) {
+                return -1;
+            }
+            ready = Math.max(ready, typeReady);
         }
+        return ready - now;
+    }
 
-        int teas = order.getTeasReady();
-        int coffees = order.getCoffeesReady();
+    /**
+     * When the last waiting item of this type of the order should be ready (queue position model).
+     * The item at position p (1 = next) starts on the ((p-1) % slots)-th slot to become free,
+     * after (p-1) / slots full brews on it. Slots become free now (idle ones) or at the sorted
+     * ready times of the brews running; while draining after a shrink the first
+     * (brewing - slots) of those free no slot at all.
+
+     * @return clock nanoseconds, -1 if the type has no brewing slots
+     */
+    private long estimatedReadyNanos(Order order, OrderItem.ItemType type, long now) {
+        int slots = profiles.getSlots(type);
+        if (slots == 0) {
+            return -1;
+        }
+        // exact for fifo, an upper bound for the lanes of the fair policies
+        long ahead = waitingArea.get(type).itemsAhead(order.getLastWaitingSeq(type), order.getWaiting(type));
+        long[] readyTimes = brewingReadyTimes.get(type.ordinal());
+        int slot = (int) (ahead % slots);
+        int idleSlots = slots - readyTimes.length;
+        long slotFree = slot < idleSlots ? now : Math.max(now, readyTimes[readyTimes.length - slots + slot]);
+        return slotFree + (ahead / slots + 1) * brewingEngine.brewNanos(profiles.getBrewMillis(type));
+    }
 
-        // 1. Update Order counters
-        order.setTeasReady(0);
-        order.setCoffeesReady(0);
+    public boolean isOrderComplete(String customerName) throws Exception {
+        return isOrderComplete(customerOrder(customerName));
+    }
 
-        // 2. Remove from global tray area
-        trayArea.remove(customerName);
+    public boolean isOrderComplete(int sessionId) throws Exception {
+        return isOrderComplete(sessionOrder(sessionId));
+    }
 
-        logState();
+    // Check if order complete - O(1) using Order counters!
+    private boolean isOrderComplete(Order order) throws Exception {
+        order.getLock().lock();
+        try {
+            if (order.isDeparted()) {
+                throw new Exception("Customer not found: " + order.getCustomerName());
+            }
+            return order.isComplete();
+        } finally {
+            order.getLock().unlock();
+        }
+    }
 
-        return "Order collected for " + customerName +
-                " (" + teas + " teas and " + coffees + " coffees)";
+    public String collectOrder(String customerName) throws Exception {
+        return collectOrder(customerOrder(customerName));
     }
 
-    public synchronized int getNumberOfClients() {
-        return customers.size();
+    public String collectOrder(int sessionId) throws Exception {
+        return collectOrder(sessionOrder(sessionId));
     }
 
-    public synchronized int getNumberOfClientsWaiting() {
-        int count = 0;
-        for (Order order : customers.values()) {
-            if (!order.isIdle()) {
-                count++;
-            }
+    /**
+     * Collect for the binary protocol: the teas and coffees taken from the tray, no reply text.
+
+     * @param collected gets {teas, coffees}, both 0 if the customer has no order
+     */
+    public void collectOrder(int sessionId, int[] collected) throws Exception {
+        if (!collect(sessionOrder(sessionId), collected)) {
+            collected[0] = 0;
+            collected[1] = 0;
         }
-        return count;
     }
 
-    // Start brewing if capacity available - stops when no items are waiting to be processed
-    // since it is called again on startBrewingThread on finishBrewing and with a fresh iterator we get items skipped cause of capacity
-    private synchronized void startBrewingIfCapacityAvailable() {
-        Iterator<OrderItem> iterator = waitingArea.iterator();
+    private String collectOrder(Order order) throws Exception {
+        int[] collected = new int[2];
+        if (!collect(order, collected)) {
+            return "No order found for " + order.getCustomerName();
+        }
+        return "Order collected for " + order.getCustomerName() +
+                " (" + collected[0] + " teas and " + collected[1] + " coffees)";
+    }
 
-        while (iterator.hasNext()) {
-            OrderItem item = iterator.next();
-            String customerName = item.getCustomerName();
-            Order order = customers.get(customerName);
+    // Collect order - only the tray of this customer is touched, no dispatcher lock
+    // false if the customer has no order, {teas, coffees} collected otherwise
+    private boolean collect(Order order, int[] collected) throws Exception {
+        String customerName = order.getCustomerName();
 
-            if (item.getType() == helpers.barista.OrderItem.ItemType.TEA && currentBrewingTeas < MAX_BREWING_TEAS) {
-                // 1. Update Order counters
-                order.setTeasWaiting(order.getTeasWaiting() - 1);
-                order.setTeasBrewing(order.getTeasBrewing() + 1);
+        order.getLock().lock();
+        try {
+            if (order.isDeparted()) {
+                throw new Exception("Customer not found: " + customerName);
+            }
 
-                // 2. Move in global areas
-                iterator.remove();  // From waiting
-                brewingArea.add(item);  // To brewing
+            if(order.isIdle()) {
+                return false;
+            }
 
-                currentBrewingTeas++;
-                logState();
-                startBrewingThread(item);
+            if (!order.isComplete()) {
+                throw new Exception("Order is still pending");
+            }
 
-            } else if (item.getType() == helpers.barista.OrderItem.ItemType.COFFEE && currentBrewingCoffees < MAX_BREWING_COFFEES) {
-                // 1. Update Order counters
-                order.setCoffeesWaiting(order.getCoffeesWaiting() - 1);
-                order.setCoffeesBrewing(order.getCoffeesBrewing() + 1);
+            collected[0] = order.getTeasReady();
+            collected[1] = order.getCoffeesReady();
 
-                // 2. Move in global areas
-                iterator.remove();  // From waiting
-                brewingArea.add(item);  // To brewing
+            // 1. Update Order counters and the aggregates (the order is idle again)
+            for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                readyCounts.addAndGet(type.ordinal(), -order.getReady(type));
+                order.setReady(type, 0);
+            }
+            customersWithOrders.decrementAndGet();
 
-                currentBrewingCoffees++;
-                logState();
-                startBrewingThread(item);
+            if (journal != null) {
+                journal.collected(customerName);
             }
+
+            long now = clock.nanoTime();
+            metrics.collected();
+            metrics.recordCompleteToCollected(now - order.getCompletedNanos());
+            metrics.recordPlacedToCollected(now - order.getPlacedNanos());
+        } finally {
+            order.getLock().unlock();
         }
+
+        logState();
+        return true;
     }
 
-    // Start brewing thread for one item
-    private void startBrewingThread(final OrderItem item) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(item.getBrewTimeMs());
-                    finishBrewing(item);
-                } catch (InterruptedException e) {
-                    // Brewing interrupted
-                }
-            }
-        }).start();
+    public int getNumberOfClients() {
+        return customers.size();
     }
 
-    // Called when brewing completes
-    private synchronized void finishBrewing(OrderItem item) {
-        String customerName = item.getCustomerName();
-        Order order = customers.get(customerName);
+    public int getPendingBrews() {
+        return brewingEngine.getPendingBrews();
+    }
 
-        if (order == null) return;  // Customer disconnected
+    // Stop the brewing engine and flush the state log and the journal, called once when the server shuts down
+    // (a shard only stops its engine, the journal belongs to its ShardedCafe)
+    public void shutdown() {
+        brewingEngine.shutdown();
+        if (stateLogger != null) {
+            stateLogger.close();
+        }
+        if (journal != null && group == null) {
+            journal.close();
+        }
+    }
 
-        // 1. Update Order counters
-        if (item.getType() == helpers.barista.OrderItem.ItemType.TEA) {
-            order.setTeasBrewing(order.getTeasBrewing() - 1);
-            order.setTeasReady(order.getTeasReady() + 1);
-            currentBrewingTeas--;
-        } else {
-            order.setCoffeesBrewing(order.getCoffeesBrewing() - 1);
-            order.setCoffeesReady(order.getCoffeesReady() + 1);
-            currentBrewingCoffees--;
+    // O(1), maintained on every transition instead of checking every customer
+    public int getNumberOfClientsWaiting() {
+        return customersWithOrders.get();
+    }
+
+    public CafeMetrics getMetrics() { return metrics; }
+
+    // Items of one type in each area right now, O(1) from the aggregate counters
+    public int getWaitingCount(OrderItem.ItemType type) { return waitingCounts.get(type.ordinal()); }
+    public int getBrewingCount(OrderItem.ItemType type) { return brewingCounts.get(type.ordinal()); }
+    public int getReadyCount(OrderItem.ItemType type)   { return readyCounts.get(type.ordinal()); }
+
+    public int getBrewingSlotsTaken(OrderItem.ItemType type) { return brewingSlots.get(type.ordinal()); }
+    public int getBrewingCapacity(OrderItem.ItemType type)   { return profiles.getSlots(type); }
+    public BrewProfiles getProfiles()                        { return profiles; }
+
+    /**
+     * Change how many items of a type can brew at the same time, while the cafe runs.
+     * Growing starts waiting items on the new slots right away. Shrinking never stops a
+     * brew: the running ones finish and no new one starts until the type is under the new
+     * capacity again (graceful drain).
+     */
+    public void setBrewingCapacity(OrderItem.ItemType type, int slots) {
+        dispatchLock.lock();
+        try {
+            profiles.setSlots(type, slots);
+            startBrewingIfCapacityAvailable(); //new slots take waiting items now
+        } finally {
+            dispatchLock.unlock();
         }
+        rebalance();
+        logState();
+    }
 
-        // 2. Move in global areas
-        brewingArea.remove(item);  // From brewing
-        trayArea.computeIfAbsent(customerName, k -> new ArrayList<>()).add(item);  // To tray
+    // brew time of a type in cafe time, used by the brews started from now on
+    public void setBrewTime(OrderItem.ItemType type, long brewMillis) {
+        profiles.setBrewMillis(type, brewMillis);
+    }
 
+    public DispatchPolicy getDispatchPolicy() { return policy; }
+
+    /**
+     * Change which waiting item a free slot takes, while the cafe runs. The waiting records
+     * move to queues of the new policy one whole head record at a time, keeping their placed
+     * times: from fifo in queue order, from the customer lanes lane after lane (all records of
+     * the head customer, then the next lane), not interleaved the way round-robin would brew
+     * them. Each customer's own records keep their order; records of departed customers are
+     * dropped on the way. O(waiting records), an operator action like changing the capacity.
+     */
+    public void setDispatchPolicy(DispatchPolicy policy) {
+        dispatchLock.lock();
+        try {
+            for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                DispatchQueue old = waitingArea.get(type);
+                DispatchQueue fresh = policy.newQueue();
+                while (!old.isEmpty()) {
+                    Order order = old.peekOwner();
+                    int count = old.peekCount();
+                    long placedAt = old.peekPlacedNanos();
+                    old.removeHead();
+                    if (order.isDeparted()) {
+                        cancelledWaiting[type.ordinal()] -= count;
+                        continue;
+                    }
+                    order.getLock().lock();
+                    try {
+                        order.setLastWaitingSeq(type, fresh.add(order, count, placedAt));
+                    } finally {
+                        order.getLock().unlock();
+                    }
+                }
+                waitingArea.put(type, fresh); //a status ETA may still read the old queue for a moment
+            }
+            this.policy = policy;
+            startBrewingIfCapacityAvailable();
+        } finally {
+            dispatchLock.unlock();
+        }
+        rebalance();
         logState();
-        checkOrderCompletion(order); //notify user when its order is complete so to collect and the tray to be freed from the order
-        startBrewingIfCapacityAvailable(); //call again to check remaining waiting items
     }
 
-    // Notify customer if order complete
-    private void checkOrderCompletion(Order order) {
-        if (order.isComplete()) {
-            PrintWriter writer = order.getClientWriter();
-            if (writer != null) {
-                int teas = order.getTeasReady();
-                int coffees = order.getCoffeesReady();
-                writer.println("\nOrder completed for " + order.getCustomerName() +
-                        " (" + teas + " teas and " + coffees + " coffees). Please collect!");
+    //=====brewing slots (lock free)=====
+    // take one brewing slot of this type if one is free (CAS, no lock)
+    private boolean tryAcquireSlot(OrderItem.ItemType type) {
+        int max = profiles.getSlots(type); //read every time, the capacity can change at runtime
+        while (true) {
+            int current = brewingSlots.get(type.ordinal());
+            if (current >= max) {
+                return false;
+            }
+            if (brewingSlots.compareAndSet(type.ordinal(), current, current + 1)) {
+                return true;
             }
         }
     }
 
-    // Enhanced logging with event type and customer name
-    private void logState() {
-        // Console logging
-        System.out.println("\n=== Cafe State ===");
-        System.out.println("Clients in café: " + getNumberOfClients());
-        System.out.println("Clients waiting for orders: " + getNumberOfClientsWaiting());
+    // a free slot for the dispatcher: its own, else one of a shard with nothing of the type waiting
+    // (work stealing: the idle shard brews our item, only its slot counter is touched, never its locks)
+    private VirtualCafe acquireSlot(OrderItem.ItemType type) {
+        if (tryAcquireSlot(type)) {
+            return this;
+        }
+        if (group == null) {
+            return null;
+        }
+        VirtualCafe[] shards = group.getShards();
+        for (int i = 1; i < shards.length; i++) {
+            VirtualCafe peer = shards[(shardIndex + i) % shards.length]; //not every shard borrows from the first
+            if (peer.waitingCounts.get(type.ordinal()) == 0 && peer.tryAcquireSlot(type)) {
+                peer.lentSlots.incrementAndGet(type.ordinal());
+                borrowedSlots.incrementAndGet(type.ordinal());
+                return peer;
+            }
+        }
+        return null;
+    }
 
-        // Count items by type - O(m) but acceptable for logging
-        int teasWaiting = 0, coffeesWaiting = 0;
-        int teasBrewing = 0, coffeesBrewing = 0;
-        int teasReady = 0, coffeesReady = 0;
+    // give a slot back to the shard it was taken from (caller holds the dispatchLock)
+    private void releaseSlot(VirtualCafe slotOwner, OrderItem.ItemType type) {
+        if (slotOwner != this) {
+            slotOwner.lentSlots.decrementAndGet(type.ordinal());
+            borrowedSlots.decrementAndGet(type.ordinal());
+        }
+        slotOwner.brewingSlots.decrementAndGet(type.ordinal());
+    }
 
-        for (OrderItem item : waitingArea) {
-            if (item.getType() == helpers.barista.OrderItem.ItemType.TEA) teasWaiting++;
-            else coffeesWaiting++;
+    // A slot freed here (or given back to another shard) may be wanted by the waiting items of any
+    // shard: let the group hand it out, after the dispatchLock was released so no two are ever held
+    private void rebalance() {
+        if (group != null) {
+            group.balance();
         }
+    }
 
-        for (OrderItem item : brewingArea) {
-            if (item.getType() == helpers.barista.OrderItem.ItemType.TEA) teasBrewing++;
-            else coffeesBrewing++;
+    // Dispatch the waiting items onto free slots, for ShardedCafe.balance (no lock held by the caller)
+    void dispatch() {
+        dispatchLock.lock();
+        try {
+            startBrewingIfCapacityAvailable();
+        } finally {
+            dispatchLock.unlock();
         }
+        logState();
+    }
+
+    ReentrantLock getDispatchLock()                 { return dispatchLock; }
+    int getLentSlots(OrderItem.ItemType type)       { return lentSlots.get(type.ordinal()); }
+    int getBorrowedSlots(OrderItem.ItemType type)   { return borrowedSlots.get(type.ordinal()); }
+
+    // Start brewing if capacity available - stops when no items are waiting to be processed (caller holds the dispatchLock)
+    // since it is called again from finishBrewing and with a fresh iterator we get items skipped cause of capacity
+    // (callers log the new state once they released the locks)
+    private void startBrewingIfCapacityAvailable() {
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            // every free slot takes the next waiting item of its type the policy picks - O(1) per slot
+            // (O(log customers) for srpt)
+            DispatchQueue waitingItems = waitingArea.get(type);
+            VirtualCafe slotOwner;
+            while (!waitingItems.isEmpty() && (slotOwner = acquireSlot(type)) != null) {
+                if (!skipTombstones(waitingItems, type)) {
+                    releaseSlot(slotOwner, type);  // only tombstones were left
+                    break;
+                }
+                // split one item off the head record, only now it becomes an object
+                Order order = waitingItems.peekOwner();
+                OrderItem item = new OrderItem(order, type, waitingItems.peekPlacedNanos());
+                item.setSlotOwner(slotOwner);
+                waitingItems.takeOne();  // From waiting
+                long brewMillis = profiles.getBrewMillis(type);
+                item.setBrewStartNanos(clock.nanoTime());
+                item.setReadyNanos(item.getBrewStartNanos() + brewingEngine.brewNanos(brewMillis));
+
+                // 1. Update Order counters
+                order.getLock().lock();
+                try {
+                    order.getItems().add(item);  // handle for an O(own brews) disconnect
+                    order.setWaiting(type, order.getWaiting(type) - 1);
+                    order.setBrewing(type, order.getBrewing(type) + 1);
+                    if (journal != null) {
+                        journal.startedBrewing(order.getCustomerName(), type);
+                    }
+                    notifyUpdated(order);
+                } finally {
+                    order.getLock().unlock();
+                }
+
+                // 2. Move in global areas
+                metrics.recordWaiting(item.getBrewStartNanos() - item.getPlacedNanos());
+                brewingArea.add(item);  // To brewing
+                addReadyTime(item);
+                waitingCounts.decrementAndGet(type.ordinal());
+                brewingCounts.incrementAndGet(type.ordinal());
+                startBrewing(item, brewMillis);
+            }
+        }
+    }
 
-        for (List<OrderItem> items : trayArea.values()) {
-            for (OrderItem item : items) {
-                if (item.getType() == helpers.barista.OrderItem.ItemType.TEA) teasReady++;
-                else coffeesReady++;
+    // drop head records of departed customers, false if nothing live is left (caller holds the dispatchLock)
+    private boolean skipTombstones(DispatchQueue waitingItems, OrderItem.ItemType type) {
+        while (!waitingItems.isEmpty()) {
+            if (!waitingItems.peekOwner().isDeparted()) {
+                return true;
             }
+            cancelledWaiting[type.ordinal()] -= waitingItems.peekCount();  // tombstone of a disconnected customer
+            waitingItems.removeHead();
         }
+        return false;
+    }
 
-        System.out.println("Waiting area: " + teasWaiting + " teas, " + coffeesWaiting + " coffees");
-        System.out.println("Brewing area: " + teasBrewing + " teas, " + coffeesBrewing + " coffees");
-        System.out.println("Tray area: " + teasReady + " teas, " + coffeesReady + " coffees");
-        System.out.println("==================\n");
+    // Schedule the completion of one item on the shared brewing engine, brew time of its type's profile
+    private void startBrewing(final OrderItem item, long brewMillis) {
+        item.setBrew(brewingEngine.brew(brewMillis, () -> finishBrewing(item)));
+    }
 
-        // JSON logging
-        writeJsonLog(teasWaiting, coffeesWaiting,
-                teasBrewing, coffeesBrewing, teasReady, coffeesReady);
+    // publish the ready time of a brewing item (caller holds the dispatchLock), O(capacity)
+    private void addReadyTime(OrderItem item) {
+        long[] times = brewingReadyTimes.get(item.getType().ordinal());
+        int at = Arrays.binarySearch(times, item.getReadyNanos());
+        at = at < 0 ? -at - 1 : at;
+        long[] updated = new long[times.length + 1];
+        System.arraycopy(times, 0, updated, 0, at);
+        updated[at] = item.getReadyNanos();
+        System.arraycopy(times, at, updated, at + 1, times.length - at);
+        brewingReadyTimes.set(item.getType().ordinal(), updated);
     }
 
-    // Write JSON log entry to file
-    private void writeJsonLog(int teasWaiting, int coffeesWaiting, int teasBrewing,
-                              int coffeesBrewing, int teasReady, int coffeesReady) {
-        try {
-            File logFile = new File(LOG_FILE);
-            boolean isNewFile = !logFile.exists() || logFile.length() == 0;
+    private void removeReadyTime(OrderItem item) {
+        long[] times = brewingReadyTimes.get(item.getType().ordinal());
+        int at = Arrays.binarySearch(times, item.getReadyNanos());
+        if (at < 0) {
+            return;
+        }
+        long[] updated = new long[times.length - 1];
+        System.arraycopy(times, 0, updated, 0, at);
+        System.arraycopy(times, at + 1, updated, at, times.length - at - 1);
+        brewingReadyTimes.set(item.getType().ordinal(), updated);
+    }
 
-            String timestamp = LocalDateTime.now().format(DATE_FORMATTER);
+    // Called when brewing completes
+    private void finishBrewing(OrderItem item) {
+        Order order = item.getOrder();
+        Notice completion;
 
-            // Build JSON entry
-            StringBuilder json = new StringBuilder();
+        dispatchLock.lock();
+        try {
+            if (item.isCancelled()) return;  // Customer disconnected, its slot was already freed
+
+            // 1. Give the slot back and move in global areas
+            brewingArea.remove(item);  // From brewing
+            removeReadyTime(item);
+            releaseSlot(item.getSlotOwner(), item.getType());
+            brewingCounts.decrementAndGet(item.getType().ordinal());
+            readyCounts.incrementAndGet(item.getType().ordinal());
+
+            // 2. Update Order counters
+            order.getLock().lock();
+            try {
+                order.setBrewing(item.getType(), order.getBrewing(item.getType()) - 1);
+                order.setReady(item.getType(), order.getReady(item.getType()) + 1);
+                order.getItems().remove(item);  // no longer brewing, on the tray (its counters)
+                notifyUpdated(order);
+                if (journal != null) {
+                    journal.finishedBrewing(order.getCustomerName(), item.getType());
+                }
 
-            if (isNewFile) {
-                // Start of file - open array
-                json.append("[\n");
-            } else {
-                // Existing file - need to remove closing bracket and add comma
-                removeLastClosingBracket();
-                json.append(",\n");
+                long now = clock.nanoTime();
+                metrics.itemBrewed(item.getType());
+                metrics.recordBrewing(now - item.getBrewStartNanos());
+                completion = order.isComplete() ? Notice.completed(order) : null;
+                if (completion != null) {
+                    order.setCompletedNanos(now);
+                    metrics.recordPlacedToComplete(now - order.getPlacedNanos());
+                }
+            } finally {
+                order.getLock().unlock();
             }
 
-            // Add the new JSON object
-            json.append("  {\n");
-            json.append("    \"timestamp\": \"").append(timestamp).append("\",\n");
-            json.append("    \"totalClients\": ").append(getNumberOfClients()).append(",\n");
-            json.append("    \"clientsWithOrders\": ").append(getNumberOfClientsWaiting()).append(",\n");
-            json.append("    \"waitingArea\": {\n");
-            json.append("      \"teas\": ").append(teasWaiting).append(",\n");
-            json.append("      \"coffees\": ").append(coffeesWaiting).append("\n");
-            json.append("    },\n");
-            json.append("    \"brewingArea\": {\n");
-            json.append("      \"teas\": ").append(teasBrewing).append(",\n");
-            json.append("      \"coffees\": ").append(coffeesBrewing).append("\n");
-            json.append("    },\n");
-            json.append("    \"trayArea\": {\n");
-            json.append("      \"teas\": ").append(teasReady).append(",\n");
-            json.append("      \"coffees\": ").append(coffeesReady).append("\n");
-            json.append("    }\n");
-            json.append("  }\n");
-            json.append("]");  // Close array (will be removed next time if more entries added)
+            startBrewingIfCapacityAvailable(); //call again to check remaining waiting items
+        } finally {
+            dispatchLock.unlock();
+        }
 
-            // Write to file
-            try (FileWriter fw = new FileWriter(LOG_FILE, true)) {
-                fw.write(json.toString());
-            }
+        rebalance();
+        logState();
+        //notify user when its order is complete so to collect and the tray to be freed from the order
+        //only queued in the outbox of its connection, a slow socket never holds up the brewing
+        Outbox outbox = order.getOutbox();
+        if (completion != null && outbox != null) {
+            outbox.offer(completion);
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("Failed to write JSON log: " + e.getMessage());
+    // a subscribed customer gets an update once its writer runs (caller holds the Order lock, O(1), never blocks)
+    private void notifyUpdated(Order order) {
+        Outbox outbox = order.getOutbox();
+        if (outbox != null) {
+            outbox.updated();
         }
     }
 
-    // Helper method to remove the last closing bracket from the file to each time create valid json syntax
-    private void removeLastClosingBracket() throws IOException {
-        File logFile = new File(LOG_FILE);
+    /**
+     * Check that the Order counters match the contents of the areas.
+     * Takes the dispatchLock and then every Order lock, so it sees one consistent state.
 
-        // Read entire file
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
+     * @return descriptions of the violated invariants, empty if the state is consistent
+     */
+    public List<String> checkInvariants() {
+        List<String> violations = new ArrayList<>();
+
+        dispatchLock.lock();
+        try {
+            // connected customers plus owners of items in the areas (items of a customer
+            // missing from the map are reported below as items of a departed customer)
+            Set<Order> owners = new LinkedHashSet<>(customers.values());
+            for (DispatchQueue waitingItems : waitingArea.values()) {
+                waitingItems.forEachRecord((owner, count) -> {
+                    if (!owner.isDeparted()) owners.add(owner);
+                });
             }
-        }
+            for (OrderItem item : brewingArea) {
+                owners.add(item.getOrder());
+            }
+            List<Order> orders = new ArrayList<>(owners);
+            for (Order order : orders) {
+                order.getLock().lock();
+            }
+            try {
+                for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                    // waiting: live queue items per customer == Order waiting counters
+                    Map<Order, Integer> waiting = new HashMap<>();
+                    int[] tombstoneCount = new int[1];
+                    waitingArea.get(type).forEachRecord((owner, count) -> {
+                        if (count <= 0) {
+                            violations.add(type + " waiting record of " + owner.getCustomerName() + " has count " + count);
+                        }
+                        if (owner.isDeparted()) tombstoneCount[0] += count;
+                        else waiting.merge(owner, count, Integer::sum);
+                    });
+                    int tombstones = tombstoneCount[0];
+                    int cancelled = cancelledWaiting[type.ordinal()];
+                    if (tombstones != cancelled) {
+                        violations.add(type + " tombstones " + tombstones + " != cancelled counter " + cancelled);
+                    }
+
+                    // brewing: brewing area per customer == Order brewing counters == slots taken
+                    // (own slots minus the ones lent to other shards plus the ones borrowed from them)
+                    Map<Order, Integer> brewing = new HashMap<>();
+                    for (OrderItem item : brewingArea) {
+                        if (item.getType() == type) brewing.merge(item.getOrder(), 1, Integer::sum);
+                    }
+                    int brewingTotal = brewing.values().stream().mapToInt(Integer::intValue).sum();
+                    int slots = brewingSlots.get(type.ordinal());
+                    int lent = lentSlots.get(type.ordinal());
+                    int borrowed = borrowedSlots.get(type.ordinal());
+                    if (brewingTotal != slots - lent + borrowed) {
+                        violations.add(type + " brewing area " + brewingTotal + " != slots taken " + slots
+                                + " - lent " + lent + " + borrowed " + borrowed);
+                    }
+                    if (brewingReadyTimes.get(type.ordinal()).length != brewingTotal) {
+                        violations.add(type + " ready times " + brewingReadyTimes.get(type.ordinal()).length
+                                + " != brewing area " + brewingTotal);
+                    }
+                    // more than the capacity is fine while draining after a shrink, a free slot
+                    // with items of its type waiting is not (every release dispatches under the lock);
+                    // a shard only gets a slot given back by another one after that one unlocked
+                    int waitingTotal = waiting.values().stream().mapToInt(Integer::intValue).sum();
+                    if (group == null && slots < profiles.getSlots(type) && waitingTotal > 0) {
+                        violations.add(type + " has free slots (" + slots + " of " + profiles.getSlots(type)
+                                + " taken) while " + waitingTotal + " items are waiting");
+                    }
+
+                    // aggregates: the O(1) counters match the areas
+                    if (waitingCounts.get(type.ordinal()) != waitingTotal) {
+                        violations.add(type + " waiting aggregate " + waitingCounts.get(type.ordinal()) + " != waiting area " + waitingTotal);
+                    }
+                    if (brewingCounts.get(type.ordinal()) != brewingTotal) {
+                        violations.add(type + " brewing aggregate " + brewingCounts.get(type.ordinal()) + " != brewing area " + brewingTotal);
+                    }
+                    int readyTotal = 0;
+                    for (Order order : orders) {
+                        if (!order.isDeparted()) readyTotal += order.getReady(type);
+                    }
+                    if (readyCounts.get(type.ordinal()) != readyTotal) {
+                        violations.add(type + " ready aggregate " + readyCounts.get(type.ordinal()) + " != tray " + readyTotal);
+                    }
+
+                    for (Order order : orders) {
+                        int orderWaiting = order.getWaiting(type);
+                        int orderBrewing = order.getBrewing(type);
+                        int orderReady = order.getReady(type);
+
+                        if (orderWaiting != waiting.getOrDefault(order, 0)) {
+                            violations.add(order.getCustomerName() + " " + type + " waiting counter " + orderWaiting
+                                    + " != waiting area " + waiting.getOrDefault(order, 0));
+                        }
+                        if (orderBrewing != brewing.getOrDefault(order, 0)) {
+                            violations.add(order.getCustomerName() + " " + type + " brewing counter " + orderBrewing
+                                    + " != brewing area " + brewing.getOrDefault(order, 0));
+                        }
+                        if (orderReady < 0) {
+                            violations.add(order.getCustomerName() + " " + type + " ready counter " + orderReady + " < 0");
+                        }
+                    }
+                }
 
-        // Remove trailing ']' and whitespace
-        String fileContent = content.toString().trim();
-        if (fileContent.endsWith("]")) {
-            fileContent = fileContent.substring(0, fileContent.length() - 1).trim();
+                int withOrders = 0;
+                for (Order order : orders) {
+                    if (!order.isDeparted() && !order.isIdle()) withOrders++;
+                }
+                if (customersWithOrders.get() != withOrders) {
+                    violations.add("customers with orders aggregate " + customersWithOrders.get() + " != " + withOrders);
+                }
+
+                // items of customers that already left must have been cancelled
+                for (Order order : orders) {
+                    if (order.isDeparted() && !order.getItems().isEmpty()) {
+                        violations.add(order.getCustomerName() + " left but still has " + order.getItems().size() + " brewing items");
+                    }
+                }
+            } finally {
+                for (Order order : orders) {
+                    order.getLock().unlock();
+                }
+            }
+        } finally {
+            dispatchLock.unlock();
         }
+        return violations;
+    }
 
-        // Write back without the closing bracket
-        try (FileWriter writer = new FileWriter(logFile, false)) {
-            writer.write(fileContent);
+    // Take a snapshot of the areas for the state logger - O(1) from the aggregate counters
+    private void logState() {
+        if (group != null) {
+            group.logState(); //merged over all shards
+            return;
         }
+        if (stateLogger == null) {
+            return;
+        }
+
+        int tea = OrderItem.ItemType.TEA.ordinal();
+        int coffee = OrderItem.ItemType.COFFEE.ordinal();
+
+        // hand the snapshot to the background writer, no I/O here
+        stateLogger.log(new CafeStateLogger.Snapshot(getNumberOfClients(), getNumberOfClientsWaiting(),
+                waitingCounts.get(tea), waitingCounts.get(coffee),
+                brewingCounts.get(tea), brewingCounts.get(coffee),
+                readyCounts.get(tea), readyCounts.get(coffee)));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,147 @@
+/**=========================
+    what it does?
+        Discrete event clock: time only moves when the owner of the clock says so.
+        Scheduled tasks wait in a priority queue (by due time, then by the order they were
+        scheduled) and run on the caller's thread when the clock advances past them.
+
+    why?
+        A simulated day of traffic runs as fast as the tasks themselves run, no sleeping,
+        and with one driving thread every run with the same input gives the same result.
+
+    how to drive it?
+        * runNext()        jump to the next task and run it
+        * runUntil(time)   run every task due up to that time, then stand at that time
+        * advance(nanos)   runUntil(now + nanos)
+        Tasks may schedule more tasks (a finished brew starts the next one), those run
+        in the same call if they are due early enough.
+
+    note:
+        give the BrewingEngine no completion executor with this clock, so completions run
+        inline and the order of everything stays deterministic
+========================**/
+
+package helpers.barista;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class VirtualClock implements CafeClock {
+    private final ReentrantLock lock = new ReentrantLock(); //guards the queue, tasks run outside of it
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private volatile long now;
+    private long scheduled; //tie breaker: same due time runs in scheduling order
+    private boolean shutdown;
+
+    // one scheduled task, cancelling it through the Future leaves it to be skipped
+    private static class Event extends FutureTask<Void> implements Comparable<Event> {
+        final long dueNanos;
+        final long sequence;
+
+        Event(Runnable task, long dueNanos, long sequence) {
+            super(task, null);
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(dueNanos, other.dueNanos);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayNanos) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Clock is shut down.");
+            }
+            Event event = new Event(task, now + Math.max(0, delayNanos), scheduled++);
+            events.add(event);
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move the clock to the next scheduled task and run it.
+
+     * @return false if nothing is scheduled any more
+     */
+    public boolean runNext() {
+        return runNextUpTo(Long.MAX_VALUE);
+    }
+
+    // Run every task due up to the given cafe time, then stand at that time
+    public void runUntil(long nanoTime) {
+        while (runNextUpTo(nanoTime)) {
+            // keep going, tasks may schedule more tasks
+        }
+        lock.lock();
+        try {
+            if (nanoTime > now) {
+                now = nanoTime;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void advance(long nanos) {
+        runUntil(now + nanos);
+    }
+
+    // scheduled tasks not run yet (cancelled ones that are still queued included)
+    public int getPendingEvents() {
+        lock.lock();
+        try {
+            return events.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean runNextUpTo(long limit) {
+        Event next;
+        lock.lock();
+        try {
+            do {
+                next = events.peek();
+                if (next == null || next.dueNanos > limit) {
+                    return false;
+                }
+                events.poll();
+            } while (next.isCancelled());
+            if (next.dueNanos > now) {
+                now = next.dueNanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+        next.run(); //outside the lock, the task may schedule again
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Event event : events) {
+                event.cancel(false);
+            }
+            events.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**=========================
+    what it does?
+        FIFO waiting area of one item type, holding run length records instead of items:
+            (order, count, placed time)  e.g. "500 coffees for alice" is ONE record
+        The dispatcher takes items one by one from the head record (count - 1) and only
+        then creates the OrderItem that goes brewing, so queued work costs memory per
+        order, not per drink.
+
+    how?
+        Ring buffer over three parallel arrays (owner, count, placed time), doubling when
+        full and shrinking back once it is empty again. No node objects: adding and taking
+        are O(1) without allocation (apart from growing).
+        Records of a customer that left stay in place as tombstones, the dispatcher drops
+        them when they reach the head (see Order.isDeparted).
+
+    queue positions:
+        Every item gets a sequence number when it is added (enqueued count) and the queue
+        counts the items that ever left the head (dequeued). An order remembers the
+        sequence number of its last item, so its position is one subtraction:
+            position = lastSeq - dequeued      (1 = next to brew)
+        O(1), no scan of the queue. Tombstones ahead still count until they are dropped.
+
+    note:
+        the dispatch queue of the fifo policy (DispatchQueue), and the records of one customer
+        inside the lanes of the fair policies (CustomerQueues). Not thread safe, VirtualCafe
+        only touches it under its dispatchLock
+========================**/
+
+package helpers.barista;
+import java.util.function.ObjIntConsumer;
+
+public class WaitingQueue extends DispatchQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int initialCapacity;
+    private Order[] owners;
+    private int[] counts;
+    private long[] placedNanos;
+    private int head;   // index of the oldest record
+    private int size;   // records in the queue
+    private long enqueued;          // items ever added
+    private volatile long dequeued; // items ever taken or dropped, read without the lock (status ETA)
+
+    public WaitingQueue() {
+        this(INITIAL_CAPACITY);
+    }
+
+    // a smaller start for the lane of one customer, most hold one or two records
+    WaitingQueue(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.owners = new Order[initialCapacity];
+        this.counts = new int[initialCapacity];
+        this.placedNanos = new long[initialCapacity];
+    }
+
+    /**
+     * Append count items of one order, merged into the last record if it is the same placement.
+
+     * @return sequence number of the last of them (see getDequeued)
+     */
+    long add(Order owner, int count, long placedAt) {
+        if (count <= 0) {
+            return enqueued;
+        }
+        enqueued += count;
+        if (size > 0) {
+            int tail = index(size - 1);
+            if (owners[tail] == owner && placedNanos[tail] == placedAt) {
+                counts[tail] += count;
+                return enqueued;
+            }
+        }
+        if (size == owners.length) {
+            resize(owners.length * 2);
+        }
+        int tail = index(size);
+        owners[tail] = owner;
+        counts[tail] = count;
+        placedNanos[tail] = placedAt;
+        size++;
+        return enqueued;
+    }
+
+    boolean isEmpty()        { return size == 0; }
+    Order peekOwner()        { return owners[head]; }
+    int peekCount()          { return counts[head]; }
+    long peekPlacedNanos()   { return placedNanos[head]; }
+
+    // One item of the head record leaves the queue (it goes brewing)
+    void takeOne() {
+        dequeued++; //single writer under the dispatchLock
+        if (--counts[head] == 0) {
+            removeHead();
+        }
+    }
+
+    // The whole head record leaves the queue (tombstone of a departed customer)
+    void removeHead() {
+        dequeued += counts[head];
+        owners[head] = null; //no reference kept to the order of a gone customer
+        head = (head + 1) % owners.length;
+        size--;
+        if (size == 0) {
+            head = 0;
+            if (owners.length > initialCapacity * 64) {
+                resize(initialCapacity); //give back the memory of a past rush
+            }
+        }
+    }
+
+    // items that ever left the queue, an item with sequence number s is at position s - dequeued
+    long getDequeued() { return dequeued; }
+
+    // the exact position of the last item (it moved on a moment before the order counters, never below 0)
+    long itemsAhead(long lastSeq, int waiting) {
+        return Math.max(0, lastSeq - dequeued - 1);
+    }
+
+    // finding the records of one customer means a scan, they stay as tombstones instead
+    int drop(Order owner) {
+        return 0;
+    }
+
+    void forEachRecord(ObjIntConsumer<Order> visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.accept(owners[index(i)], counts[index(i)]);
+        }
+    }
+
+    // records in the queue, for the self check and the benchmarks
+    public int getRecords() { return size; }
+
+    // owner / count of the i-th record from the head (0 <= i < getRecords())
+    Order ownerAt(int i) { return owners[index(i)]; }
+    int countAt(int i)   { return counts[index(i)]; }
+
+    private int index(int i) {
+        return (head + i) % owners.length;
+    }
+
+    private void resize(int capacity) {
+        Order[] newOwners = new Order[capacity];
+        int[] newCounts = new int[capacity];
+        long[] newPlaced = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            int from = index(i);
+            newOwners[i] = owners[from];
+            newCounts[i] = counts[from];
+            newPlaced[i] = placedNanos[from];
+        }
+        owners = newOwners;
+        counts = newCounts;
+        placedNanos = newPlaced;
+        head = 0;
+    }
+}
@@ -0,0 +1,164 @@
+/**=========================
+    what it does?
+        Simulates a whole day (or any number of hours) of customers through one VirtualCafe
+        on a VirtualClock, in seconds of real time and with the same result every run.
+        Every simulated customer:
+        * arrives at random (Poisson arrivals, --arrivals-per-hour)
+        * orders 1..N items (--items, --tea-share)
+        * checks the order status every --poll-seconds and collects once it is complete,
+          or with --poll=eta next polls at the estimated ready time of its order
+          (VirtualCafe.getEstimatedReadyIn, the ETA of the status reply)
+        * walks out (disconnects with the order pending) after --patience-minutes
+        No sockets and no threads: brews, arrivals and polls are all events of the clock.
+
+    usage:
+        java helpers.bench.CafeSimulation [--hours=24] [--arrivals-per-hour=100] [--items=1-4]
+                [--tea-share=0.5] [--poll=fixed|eta] [--poll-seconds=15] [--patience-minutes=30] [--seed=42]
+
+    note:
+        times in the report are simulated cafe time, e.g. item waiting p99 of 20 minutes
+        means the cafe could not keep up with the arrivals at that moment
+========================**/
+
+package helpers.bench;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import helpers.barista.*;
+import static helpers.common.Options.option;
+
+public class CafeSimulation {
+    private final VirtualClock clock = new VirtualClock();
+    private final VirtualCafe cafe = new VirtualCafe(new BrewingEngine(null, 1.0, clock), null); //no state logging
+
+    private final Random random;
+    private final double arrivalsPerHour;
+    private final int minItems, maxItems;
+    private final double teaShare;
+    private final long pollNanos;
+    private final boolean pollAtEta;
+    private final long patienceNanos;
+    private final long closingTime;
+
+    private int arrived, served, walkedOut, itemsOrdered;
+    private long polls;
+
+    public CafeSimulation(long seed, double hours, double arrivalsPerHour, int minItems, int maxItems,
+                          double teaShare, boolean pollAtEta, int pollSeconds, int patienceMinutes) {
+        this.random = new Random(seed);
+        this.arrivalsPerHour = arrivalsPerHour;
+        this.minItems = minItems;
+        this.maxItems = maxItems;
+        this.teaShare = teaShare;
+        this.pollNanos = TimeUnit.SECONDS.toNanos(pollSeconds);
+        this.pollAtEta = pollAtEta;
+        this.patienceNanos = TimeUnit.MINUTES.toNanos(patienceMinutes);
+        this.closingTime = (long) (hours * TimeUnit.HOURS.toNanos(1));
+    }
+
+    public static void main(String[] args) {
+        String[] items = option(args, "--items", "1-4").split("-");
+        double hours = Double.parseDouble(option(args, "--hours", "24"));
+        CafeSimulation simulation = new CafeSimulation(
+                Long.parseLong(option(args, "--seed", "42")),
+                hours,
+                Double.parseDouble(option(args, "--arrivals-per-hour", "100")),
+                Integer.parseInt(items[0]), Integer.parseInt(items[items.length - 1]),
+                Double.parseDouble(option(args, "--tea-share", "0.5")),
+                option(args, "--poll", "fixed").equals("eta"),
+                Integer.parseInt(option(args, "--poll-seconds", "15")),
+                Integer.parseInt(option(args, "--patience-minutes", "30")));
+
+        long realStart = System.nanoTime();
+        simulation.run();
+        double realSeconds = (System.nanoTime() - realStart) / 1e9;
+
+        System.out.printf("simulated %.1fh (until the last customer left: %.1fh) in %.2fs of real time%n",
+                hours, simulation.clock.nanoTime() / 3.6e12, realSeconds);
+        simulation.report();
+    }
+
+    // doors open until closing time, then run until the last customer is gone
+    public void run() {
+        scheduleNextArrival();
+        while (clock.runNext()) {
+            // every event is a brew completion, an arrival or a status poll
+        }
+        cafe.shutdown();
+    }
+
+    private void scheduleNextArrival() {
+        // exponential gaps between arrivals give a Poisson arrival process
+        double hoursUntilNext = -Math.log(1 - random.nextDouble()) / arrivalsPerHour;
+        long arrival = clock.nanoTime() + (long) (hoursUntilNext * TimeUnit.HOURS.toNanos(1));
+        if (arrival < closingTime) {
+            clock.schedule(this::arrive, arrival - clock.nanoTime());
+        }
+    }
+
+    private void arrive() {
+        String name = "sim-" + arrived++;
+        long arrivedAt = clock.nanoTime();
+        int items = minItems + random.nextInt(maxItems - minItems + 1);
+        int teas = 0;
+        for (int i = 0; i < items; i++) {
+            if (random.nextDouble() < teaShare) teas++;
+        }
+
+        cafe.customerConnected(name);
+        try {
+            cafe.placeOrder(name, teas, items - teas);
+            itemsOrdered += items;
+            clock.schedule(() -> poll(name, arrivedAt), nextPoll(name, arrivedAt));
+        } catch (Exception e) {
+            cafe.customerDisconnected(name);
+        }
+        scheduleNextArrival();
+    }
+
+    // time until the next status poll: fixed, or the estimated ready time (never past the patience)
+    private long nextPoll(String name, long arrivedAt) throws Exception {
+        if (!pollAtEta) {
+            return pollNanos;
+        }
+        long readyIn = cafe.getEstimatedReadyIn(name);
+        long patienceLeft = arrivedAt + patienceNanos - clock.nanoTime();
+        if (readyIn < 0) {
+            readyIn = pollNanos; //no estimate, fall back to polling
+        }
+        return Math.max(1, Math.min(readyIn, patienceLeft));
+    }
+
+    private void poll(String name, long arrivedAt) {
+        polls++;
+        try {
+            if (cafe.isOrderComplete(name)) {
+                cafe.collectOrder(name);
+                cafe.customerDisconnected(name);
+                served++;
+            } else if (clock.nanoTime() - arrivedAt >= patienceNanos) {
+                cafe.customerDisconnected(name); //gives up, the order is thrown away
+                walkedOut++;
+            } else {
+                clock.schedule(() -> poll(name, arrivedAt), nextPoll(name, arrivedAt));
+            }
+        } catch (Exception e) {
+            cafe.customerDisconnected(name);
+        }
+    }
+
+    private void report() {
+        CafeMetrics metrics = cafe.getMetrics();
+        System.out.printf("customers: %d arrived, %d served, %d walked out; items: %d ordered, %d teas and %d coffees brewed%n",
+                arrived, served, walkedOut, itemsOrdered, metrics.getTeasBrewed(), metrics.getCoffeesBrewed());
+        System.out.printf("status polls: %d (%.1f per customer)%n", polls, arrived == 0 ? 0.0 : (double) polls / arrived);
+        System.out.println("simulated cafe time:");
+        for (LatencyHistogram histogram : new LatencyHistogram[]{
+                metrics.getTimeInWaiting(), metrics.getTimeInBrewing(),
+                metrics.getPlacedToComplete(), metrics.getPlacedToCollected()}) {
+            System.out.printf("  %-26s count=%d p50=%.1fmin p90=%.1fmin p99=%.1fmin max=%.1fmin%n",
+                    histogram.getName(), histogram.getCount(),
+                    histogram.getValueAtQuantile(0.50) / 6e10, histogram.getValueAtQuantile(0.90) / 6e10,
+                    histogram.getValueAtQuantile(0.99) / 6e10, histogram.getMaxNanos() / 6e10);
+        }
+    }
+}
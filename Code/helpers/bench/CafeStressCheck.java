@@ -0,0 +1,184 @@
+/**=========================
+    what it does?
+        Concurrency stress check of VirtualCafe (in the spirit of jcstress).
+        Many threads hammer one cafe with random connects, orders, status polls,
+        collects and disconnects of a small pool of customers (by name and, like the
+        servers do, through session ids that are opened and closed), while brews complete
+        ten thousand times faster than real time. A checker thread keeps calling
+        checkInvariants() in between, which asserts that:
+        * the counters of every Order match the waiting queues, brewing area and tray
+        * taken brewing slots match the brewing area and never exceed the capacity
+        * with --shards=N (ShardedCafe) every slot one shard lent another one borrowed
+        * tombstones of disconnected customers match the cancelled counters
+        * no waiting or brewing item belongs to a customer that is gone
+        * with --policy (DispatchPolicy) the same holds for the customer lanes of the fair
+          policies; --policy=cycle switches between all of them while the workers run
+        After the run it waits for all queued work to drain and checks once more that
+        nothing is stuck (all slots given back, no leaked brews).
+
+    usage:
+        java helpers.bench.CafeStressCheck [--threads=8] [--customers=32] [--seconds=10] [--shards=1]
+                [--policy=fifo|round-robin|drr[:quantum]|srpt|cycle]
+
+        exit code 1 if any invariant was violated
+========================**/
+
+package helpers.bench;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import helpers.barista.AdmissionControl;
+import helpers.barista.BrewProfiles;
+import helpers.barista.BrewingEngine;
+import helpers.barista.Cafe;
+import helpers.barista.DispatchPolicy;
+import helpers.barista.ShardedCafe;
+import helpers.barista.VirtualCafe;
+import static helpers.common.Options.option;
+
+public class CafeStressCheck {
+    private static final double TIME_SCALE = 0.0001; //tea 3ms, coffee 4.5ms
+    private static final String[] POLICIES = {"fifo", "round-robin", "drr", "srpt"}; //--policy=cycle
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.parseInt(option(args, "--threads", "8"));
+        int customers = Integer.parseInt(option(args, "--customers", "32"));
+        int seconds = Integer.parseInt(option(args, "--seconds", "10"));
+        int shards = Integer.parseInt(option(args, "--shards", "1"));
+
+        Cafe virtualCafe = shards > 1 //no state logging
+                ? new ShardedCafe(shards, () -> new BrewingEngine(null, TIME_SCALE), null, null,
+                        new BrewProfiles(), AdmissionControl.unlimited())
+                : new VirtualCafe(new BrewingEngine(null, TIME_SCALE), null);
+        String policy = option(args, "--policy", "fifo");
+        boolean cycle = policy.equals("cycle");
+        virtualCafe.setDispatchPolicy(DispatchPolicy.parse(cycle ? POLICIES[0] : policy));
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        List<String> violations = Collections.synchronizedList(new ArrayList<>());
+        long[] statusNanos = new long[threads * 200_000];
+        AtomicLong statusCount = new AtomicLong();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers.execute(() -> {
+                Random random = new Random(seed);
+                int session = -1; //connection of this worker, may be stale after a disconnect by name
+                while (running.get()) {
+                    String name = "customer-" + random.nextInt(customers);
+                    int op = random.nextInt(100);
+                    boolean bySession = session >= 0 && random.nextBoolean();
+                    try {
+                        if (op < 15) {
+                            if (random.nextBoolean()) {
+                                virtualCafe.customerConnected(name);
+                            } else {
+                                if (session >= 0) virtualCafe.closeSession(session);
+                                session = virtualCafe.openSession(name);
+                            }
+                        } else if (op < 45) {
+                            if (bySession) virtualCafe.placeOrder(session, random.nextInt(4), random.nextInt(4));
+                            else virtualCafe.placeOrder(name, random.nextInt(4), random.nextInt(4));
+                        } else if (op < 75) {
+                            long start = System.nanoTime();
+                            if (bySession) virtualCafe.getOrderStatus(session);
+                            else virtualCafe.getOrderStatus(name);
+                            long index = statusCount.getAndIncrement();
+                            if (index < statusNanos.length) {
+                                statusNanos[(int) index] = System.nanoTime() - start;
+                            }
+                        } else if (op < 95) {
+                            if (bySession) virtualCafe.collectOrder(session);
+                            else virtualCafe.collectOrder(name);
+                        } else if (bySession) {
+                            virtualCafe.customerDisconnected(session); //exit, the session stays open
+                        } else {
+                            virtualCafe.customerDisconnected(name);
+                        }
+                    } catch (Exception expected) {
+                        // unknown customer, pending order... part of the random traffic
+                    }
+                    operations.incrementAndGet();
+                }
+                if (session >= 0) {
+                    virtualCafe.closeSession(session);
+                }
+            });
+        }
+
+        // keep checking the invariants while the workers run
+        long checks = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            List<String> found = virtualCafe.checkInvariants();
+            checks++;
+            if (!found.isEmpty()) {
+                violations.addAll(found);
+                break;
+            }
+            if (cycle && checks % 50 == 0) { //move the waiting records to the queues of the next policy
+                virtualCafe.setDispatchPolicy(DispatchPolicy.parse(POLICIES[(int) (checks / 50 % POLICIES.length)]));
+            }
+            Thread.sleep(1);
+        }
+        running.set(false);
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+
+        // quiescence: all queued work must drain, nothing may stay waiting or brewing for ever
+        long quietDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        List<String> busy = busyCustomers(virtualCafe, customers);
+        while (!busy.isEmpty() && System.nanoTime() < quietDeadline) {
+            Thread.sleep(10);
+            busy = busyCustomers(virtualCafe, customers);
+        }
+        for (String status : busy) {
+            violations.add("still has work after the cafe went quiet: " + status);
+        }
+        if (virtualCafe.getPendingBrews() != 0) { //below 0: a brew completed and cancelled both counted
+            violations.add("brews still pending after the cafe went quiet: " + virtualCafe.getPendingBrews());
+        }
+        violations.addAll(virtualCafe.checkInvariants());
+
+        int recorded = (int) Math.min(statusCount.get(), statusNanos.length);
+        long[] sorted = Arrays.copyOf(statusNanos, recorded);
+        Arrays.sort(sorted);
+
+        System.out.println("threads: " + threads + ", customers: " + customers + ", seconds: " + seconds
+                + (shards > 1 ? ", shards: " + shards : "") + ", policy: " + policy);
+        System.out.println("operations: " + operations.get() + ", invariant checks: " + checks);
+        if (recorded > 0) {
+            System.out.printf("order status latency p50 %.1fus, p99 %.1fus, max %.1fus%n",
+                    sorted[recorded / 2] / 1e3, sorted[recorded * 99 / 100] / 1e3, sorted[recorded - 1] / 1e3);
+        }
+        if (violations.isEmpty()) {
+            System.out.println("OK - no invariant violated");
+        } else {
+            System.out.println("FAILED - " + violations.size() + " violations:");
+            for (String violation : violations.subList(0, Math.min(20, violations.size()))) {
+                System.out.println("  " + violation);
+            }
+            System.exit(1);
+        }
+        virtualCafe.shutdown();
+    }
+
+    // status of every customer that still has items waiting or brewing
+    private static List<String> busyCustomers(Cafe virtualCafe, int customers) {
+        List<String> busy = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            try {
+                String status = virtualCafe.getOrderStatus("customer-" + i);
+                if (status.contains("waiting area") || status.contains("being prepared")) {
+                    busy.add(status.trim());
+                }
+            } catch (Exception notConnected) {
+                // customer left at the end of the run
+            }
+        }
+        return busy;
+    }
+}
@@ -0,0 +1,260 @@
+/**=========================
+    what it does?
+        End to end check of a cafe cluster as separate processes on localhost: it starts
+        --nodes Barista JVMs and one Gateway JVM in front of them, then
+        1. serves --customers customers through the gateway (order, wait for the
+           "Order completed" notification the node pushes, collect) and checks that every
+           node placed exactly the orders of the names the hash ring gives it
+           (orders_placed of each node's admin console against a HashRing built here)
+        2. starts one more node and adds it over the gateway admin console: only the names
+           moving to the new node may move (about 1/N), checked the same way
+        3. removes the first node from the ring and stops it, then kills another node
+           without telling the gateway: every customer must still be served (the ring
+           skips the dead node for the next one)
+        All processes are stopped at the end, their output is in the temp directory printed.
+
+    usage:
+        java helpers.bench.ClusterCheck [--nodes=3] [--customers=60] [--base-port=9100]
+
+        ports: gateway base, gateway admin base+1, node i base+10+i, its admin base+30+i
+        exit code 1 if a check failed
+========================**/
+
+package helpers.bench;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import helpers.customer.CafeConnection;
+import helpers.gateway.HashRing;
+import static helpers.common.Options.option;
+
+public class ClusterCheck {
+    private static final List<Process> PROCESSES = new ArrayList<>();
+    private static Path workDir;
+    private static int basePort;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = Integer.parseInt(option(args, "--nodes", "3"));
+        int customers = Integer.parseInt(option(args, "--customers", "60"));
+        basePort = Integer.parseInt(option(args, "--base-port", "9100"));
+        workDir = Files.createTempDirectory("cafe-cluster");
+        List<String> failures = new ArrayList<>();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(ClusterCheck::stopAll));
+        HashRing ring = new HashRing(); //same hashing and virtual nodes as the gateway
+        List<Process> nodeProcesses = new ArrayList<>();
+        StringBuilder nodeList = new StringBuilder();
+        for (int i = 1; i <= nodes; i++) {
+            nodeProcesses.add(startNode(i));
+            ring.add(nodeAddress(i));
+            nodeList.append(i > 1 ? "," : "").append(nodeAddress(i));
+        }
+        start("gateway", "Gateway", "--port=" + basePort, "--admin-port=" + (basePort + 1), "--nodes=" + nodeList);
+        for (int i = 1; i <= nodes; i++) {
+            waitForPort(basePort + 10 + i);
+        }
+        waitForPort(basePort);
+        System.out.println("cluster: " + nodes + " nodes + gateway, logs in " + workDir);
+
+        // 1. routing by the ring
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            names.add("cluster-customer-" + i);
+        }
+        Map<Integer, Integer> before = ordersPerNode(nodes);
+        failures.addAll(serve(names, "round 1"));
+        checkPlacement(ring, names, nodes, before, failures, "round 1");
+
+        // 2. add a node: only the names of its arcs move, all of them to it
+        int added = nodes + 1;
+        Map<String, String> oldOwners = owners(ring, names);
+        startNode(added);
+        waitForPort(basePort + 10 + added);
+        System.out.print(admin(basePort + 1, "add " + nodeAddress(added)));
+        ring.add(nodeAddress(added));
+        int moved = 0;
+        for (String name : names) {
+            String owner = ring.nodeFor(name);
+            if (!owner.equals(oldOwners.get(name))) {
+                moved++;
+                if (!owner.equals(nodeAddress(added))) {
+                    failures.add(name + " moved from " + oldOwners.get(name) + " to " + owner + ", not to the new node");
+                }
+            }
+        }
+        System.out.printf("add node %d: %d of %d names moved (%.0f%%, ideal %.0f%%)%n",
+                added, moved, names.size(), 100.0 * moved / names.size(), 100.0 / added);
+        before = ordersPerNode(added);
+        failures.addAll(serve(names, "round 2"));
+        checkPlacement(ring, names, added, before, failures, "round 2");
+
+        // 3. remove node 1 (drained), then node 2 dies without the gateway knowing
+        System.out.print(admin(basePort + 1, "remove " + nodeAddress(1)));
+        nodeProcesses.get(0).destroy();
+        nodeProcesses.get(1).destroyForcibly().waitFor();
+        failures.addAll(serve(names, "round 3 (node 1 removed, node 2 dead)"));
+
+        System.out.println("customers served per round: " + customers);
+        if (failures.isEmpty()) {
+            System.out.println("OK - every customer served by its node");
+        } else {
+            System.out.println("FAILED - " + failures.size() + " failures:");
+            for (String failure : failures.subList(0, Math.min(20, failures.size()))) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1); //the shutdown hook stops the processes
+        }
+        stopAll();
+    }
+
+    private static String nodeAddress(int node) {
+        return "localhost:" + (basePort + 10 + node);
+    }
+
+    private static Process startNode(int node) throws IOException {
+        return start("node" + node, "Barista", "--port=" + (basePort + 10 + node),
+                "--admin-port=" + (basePort + 30 + node), "--brew-scale=0.001", "--threads=virtual",
+                "--log-file=" + workDir.resolve("node" + node + "_logs.json"));
+    }
+
+    // a java process on the same classpath, its output in the work directory
+    private static Process start(String label, String mainClass, String... options) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(List.of(options));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve(label + ".out").toFile())
+                .start();
+        synchronized (PROCESSES) {
+            PROCESSES.add(process);
+        }
+        return process;
+    }
+
+    private static void stopAll() {
+        synchronized (PROCESSES) {
+            for (Process process : PROCESSES) {
+                process.destroy();
+            }
+            PROCESSES.clear();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close(); // only probing
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Nothing listening on port " + port + " after 20s, see " + workDir);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // every customer at the same time: order, wait for the pushed completion, collect
+    private static List<String> serve(List<String> names, String round) throws InterruptedException {
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        try (ExecutorService customers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String name : names) {
+                customers.execute(() -> {
+                    try (CafeConnection connection = new CafeConnection("localhost", basePort)) {
+                        connection.readWelcome();
+                        String greeting = connection.enterName(name);
+                        if (!greeting.equals("Hello " + name + "!")) {
+                            failures.add(round + ": " + name + " greeted with " + greeting);
+                            return;
+                        }
+                        connection.send("order 1 tea and 1 coffee");
+                        expect(connection, CafeConnection.LineKind.NOTIFICATION, "Order completed for " + name);
+                        connection.send("collect");
+                        expect(connection, CafeConnection.LineKind.REPLY, "Order collected for " + name);
+                    } catch (Exception e) {
+                        failures.add(round + ": " + name + " " + e.getMessage());
+                    }
+                });
+            }
+        }
+        return failures;
+    }
+
+    // read until a line of that kind comes, it has to start with the text
+    private static void expect(CafeConnection connection, CafeConnection.LineKind kind, String prefix) throws IOException {
+        String line;
+        while ((line = connection.readLine()) != null) {
+            if (CafeConnection.classify(line) == kind) {
+                if (!line.startsWith(prefix)) {
+                    throw new IOException("expected '" + prefix + "...' but got '" + line + "'");
+                }
+                return;
+            }
+        }
+        throw new IOException("connection closed while waiting for '" + prefix + "...'");
+    }
+
+    private static Map<String, String> owners(HashRing ring, List<String> names) {
+        Map<String, String> owners = new HashMap<>();
+        for (String name : names) {
+            owners.put(name, ring.nodeFor(name));
+        }
+        return owners;
+    }
+
+    // orders placed on every node since the counts before == names the ring gives that node
+    private static void checkPlacement(HashRing ring, List<String> names, int nodes, Map<Integer, Integer> before,
+                                       List<String> failures, String round) throws IOException {
+        Map<Integer, Integer> after = ordersPerNode(nodes);
+        StringBuilder line = new StringBuilder(round + " orders per node:");
+        for (int i = 1; i <= nodes; i++) {
+            int expected = 0;
+            for (String name : names) {
+                if (ring.nodeFor(name).equals(nodeAddress(i))) expected++;
+            }
+            int placed = after.get(i) - before.get(i);
+            line.append(" node").append(i).append('=').append(placed);
+            if (placed != expected) {
+                failures.add(round + ": node " + i + " placed " + placed + " orders, the ring gives it " + expected);
+            }
+        }
+        System.out.println(line);
+    }
+
+    private static Map<Integer, Integer> ordersPerNode(int nodes) throws IOException {
+        Map<Integer, Integer> orders = new HashMap<>();
+        for (int i = 1; i <= nodes; i++) {
+            int placed = 0;
+            for (String metric : admin(basePort + 30 + i, "metrics").split("\n")) {
+                if (metric.startsWith("orders_placed ")) {
+                    placed = Integer.parseInt(metric.substring("orders_placed ".length()).trim());
+                }
+            }
+            orders.put(i, placed);
+        }
+        return orders;
+    }
+
+    // one command on an admin console (node or gateway), the reply up to END
+    private static String admin(int port, String command) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write(command + "\nquit\n");
+            out.flush();
+            StringBuilder reply = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                reply.append(line).append('\n');
+            }
+            return reply.toString();
+        }
+    }
+}
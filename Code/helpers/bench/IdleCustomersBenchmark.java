@@ -0,0 +1,167 @@
+/**=========================
+    what it does?
+        Compares the execution modes of the barista with many idle customers:
+        * platform  thread per connection (--io=blocking, the default)
+        * virtual   virtual thread per connection (--io=blocking --threads=virtual)
+        * nio       Selector event loop (--io=nio)
+
+    how?
+        Every mode runs in its own child JVM (so heap and thread numbers do not mix).
+        The child starts the server in process on a free port, connects N customers
+        that only do the name handshake and then stay idle, and reports:
+        * connect rate (customers per second)
+        * live threads and used heap after a GC with all customers connected
+        * round trip time of "order status" on a sample of the idle connections
+
+    usage:
+        java helpers.bench.IdleCustomersBenchmark [--customers=5000] [--modes=platform,virtual,nio]
+
+    note:
+        50k customers need a high open files limit (ulimit -n) for client and server
+        sockets. Client connections are spread over 127.0.0.x addresses so the
+        ephemeral ports of one address are not exhausted.
+========================**/
+
+package helpers.bench;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import helpers.barista.*;
+import static helpers.common.Options.option;
+
+public class IdleCustomersBenchmark {
+    private static final int CUSTOMERS_PER_ADDRESS = 20000;
+    private static final int STATUS_SAMPLE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int customers = Integer.parseInt(option(args, "--customers", "5000"));
+        String mode = option(args, "--mode", null);
+
+        if (mode != null) {
+            runMode(mode, customers); //child JVM: one mode only
+            return;
+        }
+
+        System.out.printf("%-9s %10s %14s %9s %10s %12s %12s%n",
+                "mode", "customers", "connect/s", "threads", "heap MB", "status p50", "status p99");
+        for (String eachMode : option(args, "--modes", "platform,virtual,nio").split(",")) {
+            System.out.println(runChild(eachMode, customers));
+        }
+    }
+
+    private static String runChild(String mode, int customers) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IdleCustomersBenchmark.class.getName(), "--mode=" + mode, "--customers=" + customers)
+                .redirectErrorStream(true)
+                .start();
+
+        String result = mode + " failed";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    result = line.substring("RESULT ".length());
+                } else if (line.startsWith("ERROR ")) {
+                    result = mode + " " + line;
+                }
+            }
+        }
+        child.waitFor();
+        return result;
+    }
+
+    //=====child JVM=====
+    private static void runMode(String mode, int customers) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        Thread serverThread = new Thread(startServer(mode, port), "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500); //let the server bind
+
+        List<Socket> sockets = new ArrayList<>(customers);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < customers; i++) {
+                InetAddress address = InetAddress.getByName("127.0.0." + (1 + i / CUSTOMERS_PER_ADDRESS));
+                Socket socket = new Socket(address, port);
+                readLine(socket); //welcome
+                socket.getOutputStream().write(("bench-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                readLine(socket); //hello
+                sockets.add(socket);
+            }
+            double connectSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.gc();
+            Thread.sleep(500);
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            long[] roundTrips = new long[Math.min(STATUS_SAMPLE, sockets.size())];
+            Random random = new Random(42);
+            for (int i = 0; i < roundTrips.length; i++) {
+                Socket socket = sockets.get(random.nextInt(sockets.size()));
+                long sent = System.nanoTime();
+                socket.getOutputStream().write("order status\n".getBytes(StandardCharsets.UTF_8));
+                readLine(socket); //"No order found for ..."
+                roundTrips[i] = System.nanoTime() - sent;
+            }
+            Arrays.sort(roundTrips);
+
+            System.out.printf("RESULT %-9s %10d %14.0f %9d %10.1f %10.1fus %10.1fus%n",
+                    mode, customers, customers / connectSeconds, threads, heap / (1024.0 * 1024.0),
+                    roundTrips[roundTrips.length / 2] / 1e3, roundTrips[roundTrips.length * 99 / 100] / 1e3);
+        } catch (IOException e) {
+            System.out.println("ERROR after " + sockets.size() + " customers: " + e.getMessage());
+        } finally {
+            for (Socket socket : sockets) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static Runnable startServer(String mode, int port) {
+        boolean virtualThreads = mode.equals("virtual");
+        //no state logging: measure the connections, not the logger
+        VirtualCafe virtualCafe = new VirtualCafe(virtualThreads
+                ? new BrewingEngine(Executors.newVirtualThreadPerTaskExecutor())
+                : new BrewingEngine(), null);
+
+        return () -> {
+            try {
+                if (mode.equals("nio")) {
+                    new NioCafeServer(port, virtualCafe, 1).serve();
+                } else {
+                    ExecutorService handlerExecutor = virtualThreads
+                            ? Executors.newVirtualThreadPerTaskExecutor()
+                            : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+                    new BlockingCafeServer(port, virtualCafe, handlerExecutor).serve();
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR server: " + e.getMessage());
+            }
+        };
+    }
+
+    // read one reply line byte by byte (the sockets are never wrapped so they stay small)
+    private static String readLine(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.append((char) b);
+        }
+        if (b == -1) {
+            throw new EOFException("connection closed by server");
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,98 @@
+/**=========================
+    what it does?
+        Shutdown check of CafeJournal: a clean close must keep every record placed before it.
+        Every run opens a fresh journal in a temp directory, places --orders orders over
+        --customers customers through a VirtualCafe, shuts the cafe down (which closes the
+        journal) and recovers the journal again, then asserts that:
+        * the journal did not fail on close (CafeJournal.isFailed)
+        * the recovered orders hold every item placed (brews never finish, they are slow)
+        Odd runs wait a few flush intervals before closing, so the writer is idle at close,
+        even runs close while the last group commit may still be on its way.
+
+    usage:
+        java helpers.bench.JournalCloseCheck [--runs=40] [--orders=20000] [--customers=200]
+                [--fsync=always|interval|never]
+
+        exit code 1 if any run lost items or failed its journal
+========================**/
+
+package helpers.bench;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import helpers.barista.*;
+import static helpers.common.Options.option;
+
+public class JournalCloseCheck {
+    private static final long FLUSH_MS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.parseInt(option(args, "--runs", "40"));
+        int orders = Integer.parseInt(option(args, "--orders", "20000"));
+        int customers = Integer.parseInt(option(args, "--customers", "200"));
+        CafeJournal.FsyncPolicy fsync = CafeJournal.FsyncPolicy.valueOf(option(args, "--fsync", "always").toUpperCase());
+
+        List<String> violations = new ArrayList<>();
+        Path dir = Files.createTempDirectory("journal-close-check");
+        try {
+            for (int run = 0; run < runs; run++) {
+                String file = dir.resolve("run-" + run + ".journal").toString();
+                CafeJournal journal = new CafeJournal(file, fsync, FLUSH_MS, 1000, 1_000_000);
+                journal.recover(); //nothing there yet, starts the writer
+
+                //brews take real time (30s and 45s), none finishes during the run
+                VirtualCafe cafe = new VirtualCafe(new BrewingEngine(null, 1.0), null, journal,
+                        new BrewProfiles(), AdmissionControl.unlimited());
+                for (int i = 0; i < customers; i++) {
+                    cafe.customerConnected("customer-" + i);
+                }
+                for (int i = 0; i < orders; i++) {
+                    cafe.placeOrder("customer-" + (i % customers), i % 2, 1 - i % 2);
+                }
+                if (run % 2 == 1) {
+                    Thread.sleep(FLUSH_MS * 10); //writer idle at close
+                }
+                cafe.shutdown();
+
+                if (journal.isFailed()) {
+                    violations.add("run " + run + ": journal failed on close");
+                }
+                CafeJournal reopened = new CafeJournal(file, fsync, FLUSH_MS, 1000, 1_000_000);
+                long recovered = 0;
+                for (CafeJournal.RecoveredOrder order : reopened.recover()) {
+                    recovered += order.teasWaiting + order.coffeesWaiting + order.teasReady + order.coffeesReady;
+                }
+                reopened.close();
+                if (recovered != orders) {
+                    violations.add("run " + run + ": placed " + orders + " items, recovered " + recovered);
+                }
+            }
+        } finally {
+            deleteQuietly(dir);
+        }
+
+        System.out.println("runs: " + runs + ", orders per run: " + orders + ", fsync: " + fsync.name().toLowerCase());
+        if (violations.isEmpty()) {
+            System.out.println("OK - every run recovered what was placed");
+        } else {
+            System.out.println("FAILED - " + violations.size() + " violations:");
+            for (String violation : violations.subList(0, Math.min(20, violations.size()))) {
+                System.out.println("  " + violation);
+            }
+            System.exit(1);
+        }
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("Temp files left in " + dir + ": " + e.getMessage());
+        }
+    }
+}
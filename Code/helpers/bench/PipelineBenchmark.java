@@ -0,0 +1,136 @@
+/**=========================
+    what it does?
+        Measures command throughput of the text protocol with and without pipelining:
+        * depth 1   lock step, send one command and wait for its reply (today's clients)
+        * depth N   pipelined, send N commands in one write, then read the N replies
+        against the server flushing every reply on its own (--replies=per-line, the old
+        behaviour) and flushing once per burst of commands (--replies=coalesce).
+
+    how?
+        Every front end (blocking / nio) with every reply mode runs in process on a free
+        port with no state logging. --connections customers each send "order status"
+        (one reply line, no state change) as fast as the depth allows, for --seconds
+        per combination after a short warm up.
+
+    usage:
+        java helpers.bench.PipelineBenchmark [--connections=8] [--depths=1,16,64] [--seconds=3]
+                [--io=blocking,nio] [--replies=per-line,coalesce]
+========================**/
+
+package helpers.bench;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import helpers.barista.*;
+import static helpers.common.Options.option;
+
+public class PipelineBenchmark {
+    private static final String COMMAND = "order status";
+
+    public static void main(String[] args) throws Exception {
+        int connections = Integer.parseInt(option(args, "--connections", "8"));
+        int seconds = Integer.parseInt(option(args, "--seconds", "3"));
+        String[] depths = option(args, "--depths", "1,16,64").split(",");
+
+        System.out.printf("%-9s %-9s %6s %14s%n", "io", "replies", "depth", "commands/s");
+        for (String io : option(args, "--io", "blocking,nio").split(",")) {
+            for (String replies : option(args, "--replies", "per-line,coalesce").split(",")) {
+                int port = startServer(io, replies.equals("coalesce"));
+                for (String depth : depths) {
+                    run(port, connections, Integer.parseInt(depth), 1); //warm up
+                    double rate = run(port, connections, Integer.parseInt(depth), seconds);
+                    System.out.printf("%-9s %-9s %6s %,14.0f%n", io, replies, depth, rate);
+                }
+            }
+        }
+        System.exit(0); //the servers accept forever
+    }
+
+    // server on a free port in this JVM, runs until the benchmark exits
+    private static int startServer(String io, boolean coalesceReplies) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        VirtualCafe virtualCafe = new VirtualCafe(new BrewingEngine(), null); //no state logging
+        int serverPort = port;
+        Thread server = new Thread(() -> {
+            try {
+                if (io.equals("nio")) {
+                    new NioCafeServer(serverPort, virtualCafe, 1, coalesceReplies).serve();
+                } else {
+                    new BlockingCafeServer(serverPort, virtualCafe,
+                            Executors.newVirtualThreadPerTaskExecutor(), coalesceReplies).serve();
+                }
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, io + "-server");
+        server.setDaemon(true);
+        server.start();
+
+        // wait until it accepts
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return port;
+            } catch (ConnectException e) {
+                if (attempt == 100) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // commands per second of all connections together
+    private static double run(int port, int connections, int depth, int seconds) throws Exception {
+        AtomicLong replies = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] window = new long[2];
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        List<Future<?>> results = new ArrayList<>();
+
+        byte[] burst = (COMMAND + "\n").repeat(depth).getBytes(StandardCharsets.UTF_8);
+        for (int c = 0; c < connections; c++) {
+            String name = "pipe-" + depth + "-" + c;
+            results.add(clients.submit(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    OutputStream out = socket.getOutputStream();
+                    in.readLine(); //welcome
+                    out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                    in.readLine(); //hello
+                    ready.countDown();
+                    go.await();
+
+                    while (System.nanoTime() < window[1]) {
+                        out.write(burst); //depth commands in one write
+                        for (int i = 0; i < depth; i++) {
+                            if (in.readLine() == null) {
+                                throw new EOFException("connection closed by server");
+                            }
+                        }
+                        replies.addAndGet(depth);
+                    }
+                    out.write("exit\n".getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }));
+        }
+
+        ready.await();
+        window[0] = System.nanoTime();
+        window[1] = window[0] + TimeUnit.SECONDS.toNanos(seconds);
+        go.countDown(); //the latch publishes the window to the clients
+        for (Future<?> result : results) {
+            result.get();
+        }
+        double elapsed = (System.nanoTime() - window[0]) / 1e9;
+        clients.shutdown();
+        return replies.get() / elapsed;
+    }
+}
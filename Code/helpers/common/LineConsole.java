@@ -0,0 +1,72 @@
+/**=========================
+    what it does?
+        Localhost line console behind the admin ports of the Barista (AdminConsole) and of
+        the Gateway (CafeGateway): one command per line, the reply of every command ends
+        with a line "END", "quit" closes the connection. What a command does is up to the
+        execute function it is started with.
+
+    note:
+        every connection gets its own daemon thread, there are only ever a few
+========================**/
+
+package helpers.common;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+
+public final class LineConsole {
+    private LineConsole() {
+    }
+
+    /**
+     * Bind to localhost and accept console connections on a background thread.
+
+     * @param name    name of the accept thread, its sessions are <name>-session
+     * @param execute runs one trimmed, non empty command line and returns the reply text,
+     *                every line ending with a newline
+     */
+    public static void start(int port, String name, UnaryOperator<String> execute) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(() -> acceptLoop(serverSocket, name, execute), name);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private static void acceptLoop(ServerSocket serverSocket, String name, UnaryOperator<String> execute) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread session = new Thread(() -> serve(socket, execute), name + "-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                System.err.println("Console " + name + " stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static void serve(Socket socket, UnaryOperator<String> execute) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.trim();
+                if (command.isEmpty()) {
+                    continue;
+                }
+                if (command.equalsIgnoreCase("quit")) {
+                    return;
+                }
+                out.print(execute.apply(command));
+                out.println("END");
+            }
+        } catch (IOException e) {
+            // admin went away, nothing to clean up
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/**=========================
+    what it does?
+        The --name=value startup options of every main class (Barista, Gateway, the load
+        generator and the benchmarks and checks), read with one shared helper:
+            import static helpers.common.Options.option;
+            int port = Integer.parseInt(option(args, "--port", "8888"));
+========================**/
+
+package helpers.common;
+
+public final class Options {
+    private Options() {
+    }
+
+    // value of a --name=value option, or the default when not given
+    public static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) {
+                return arg.substring(name.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,102 @@
+/**=========================
+    what it does?
+        Client side of the binary protocol (helpers.barista.BinaryProtocol), one connection
+        to the Barista, for automated clients (LoadGenerator --protocol=binary):
+        * the handshake: the text welcome line, then MAGIC and a HELLO frame with the name
+        * one method per command, numbers in and out instead of command lines and replies
+        * reading the frames the server sends: replies in the order of the commands, and
+          NOTIFICATION frames (completion, updates) at any time in between
+
+    note:
+        the interactive Customer keeps the text protocol (CafeConnection)
+========================**/
+
+package helpers.customer;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import helpers.barista.BinaryProtocol;
+
+public class BinaryCafeConnection implements Closeable {
+    private final Socket socket;
+    private final DataInputStream fromServer;
+    private final OutputStream toServer;
+    private final ReentrantLock sendLock = new ReentrantLock(); //not synchronized: virtual threads would pin while writing
+
+    public BinaryCafeConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true); //one short command per write, do not wait to batch them
+        this.fromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.toServer = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Skip the welcome line and enter the name in binary mode.
+
+     * @return null once the server said HELLO_OK, its error message otherwise
+     */
+    public String enter(String name) throws IOException {
+        int b;
+        while ((b = fromServer.read()) >= 0 && b != '\n') {
+            // the text welcome, the only line of a binary connection
+        }
+        if (b < 0) {
+            return "Connection closed before the welcome.";
+        }
+        sendLock.lock();
+        try {
+            toServer.write(BinaryProtocol.MAGIC);
+            send(BinaryProtocol.text(BinaryProtocol.HELLO, name));
+        } finally {
+            sendLock.unlock();
+        }
+        ByteBuffer reply = readFrame();
+        if (reply == null) {
+            return "Connection closed after the name.";
+        }
+        int opcode = reply.get() & 0xff;
+        return opcode == BinaryProtocol.HELLO_OK ? null : BinaryProtocol.text(reply);
+    }
+
+    public void order(int teas, int coffees) throws IOException {
+        send(BinaryProtocol.quantities(BinaryProtocol.ORDER, teas, coffees));
+    }
+
+    public void status() throws IOException {
+        send(BinaryProtocol.empty(BinaryProtocol.STATUS));
+    }
+
+    public void collect() throws IOException {
+        send(BinaryProtocol.empty(BinaryProtocol.COLLECT));
+    }
+
+    public void subscribe(boolean on) throws IOException {
+        send(BinaryProtocol.flag(BinaryProtocol.SUBSCRIBE, on));
+    }
+
+    public void exit() throws IOException {
+        send(BinaryProtocol.empty(BinaryProtocol.EXIT));
+    }
+
+    // Send one frame, thread safe against other senders of this connection
+    private void send(ByteBuffer frame) throws IOException {
+        sendLock.lock();
+        try {
+            BinaryProtocol.writeFrame(toServer, frame);
+            toServer.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Next frame from the server (opcode first), null once the server closed the connection
+    public ByteBuffer readFrame() throws IOException {
+        return BinaryProtocol.readFrame(fromServer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
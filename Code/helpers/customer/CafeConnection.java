@@ -0,0 +1,92 @@
+/**=========================
+    what it does?
+        Client side of the cafe text protocol, one connection to the Barista:
+        * the handshake: welcome line, send the name, "Hello <name>!" (or ERROR)
+        * sending commands and reading the raw lines the server writes back
+        * telling apart what a line is (classify), since replies and the
+          asynchronous "Order completed" notifications and updates share one stream
+
+    why?
+        Used by the interactive Customer and the headless LoadGenerator,
+        so both speak the protocol the same way.
+
+    line kinds:
+        * CONTINUATION : blank lines and "  - ..." detail lines of a status reply
+        * NOTIFICATION : "Order completed for ..." sent when the brewing of an order is done
+        * UPDATE       : "Update for ..." pushed after "subscribe" when the order changes,
+                         and "Update dropped: ..." when a slow connection lost some of them
+        * REPLY        : anything else, the reply to the oldest command without a reply yet
+                         (the server answers the commands of one connection in order)
+========================**/
+
+package helpers.customer;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CafeConnection implements Closeable {
+    public enum LineKind { REPLY, NOTIFICATION, UPDATE, CONTINUATION }
+
+    private final Socket socket;
+    private final BufferedReader fromServer;
+    private final Writer toServer;
+    private final ReentrantLock sendLock = new ReentrantLock(); //not synchronized: virtual threads would pin while writing
+
+    public CafeConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true); //one short command per write, do not wait to batch them
+        this.fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.toServer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    // First line of the server: the welcome asking for the name
+    public String readWelcome() throws IOException {
+        return readLine();
+    }
+
+    /**
+     * Answer the welcome with the customer name.
+
+     * @return greeting of the server, "Hello <name>!" or an ERROR line
+     */
+    public String enterName(String name) throws IOException {
+        send(name);
+        return readLine();
+    }
+
+    // Send one command line, thread safe against other senders of this connection
+    public void send(String command) throws IOException {
+        sendLock.lock();
+        try {
+            toServer.write(command);
+            toServer.write('\n');
+            toServer.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Next raw line from the server, null once the server closed the connection
+    public String readLine() throws IOException {
+        return fromServer.readLine();
+    }
+
+    public static LineKind classify(String line) {
+        if (line.isBlank() || line.startsWith("  - ")) {
+            return LineKind.CONTINUATION;
+        }
+        if (line.startsWith("Order completed")) {
+            return LineKind.NOTIFICATION;
+        }
+        if (line.startsWith("Update for ") || line.startsWith("Update dropped")) {
+            return LineKind.UPDATE;
+        }
+        return LineKind.REPLY;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,475 @@
+/**=========================
+    what it does?
+        Headless load generator for capacity planning of the Barista server.
+        Opens many customer sessions at once (one virtual thread sending and one reading
+        per session, protocol through CafeConnection or BinaryCafeConnection) and every
+        session keeps going round:
+            order -> order status (until "Order completed" arrives) -> collect -> order ...
+        At the end it reports throughput, latency percentiles per command and the
+        time from placing an order to its completion notification (split in small and
+        big orders when --big-share mixes in big ones).
+
+    why open loop?
+        A closed loop client only sends the next command after the reply, so when the
+        server stalls the client stalls too and the slow replies are never measured
+        (coordinated omission). Here every session sends on a fixed schedule whether or
+        not the replies came back, and every latency is measured from the time the
+        command was SCHEDULED, not from the time it was finally written - a sender that
+        fell behind is charged to the server, the way a real customer would feel it.
+
+    usage:
+        java helpers.customer.LoadGenerator [--host=localhost] [--port=8888]
+                [--customers=1000] [--rate=2000] [--seconds=30]
+                [--items=1-3] [--tea-share=0.5] [--big-share=0] [--big-items=100]
+                [--embedded] [--io=blocking|nio] [--brew-scale=0.001]
+                [--protocol=text|binary] [--policy=fifo,round-robin,drr,srpt]
+
+        --rate        commands per second over all customers (spread evenly over the sessions)
+        --items       items per order, picked uniformly from the range
+        --tea-share   chance that an item is a tea, the rest are coffees
+        --big-share   chance that an order is a big one of --big-items items instead
+        --embedded    start the server in this JVM on a free port (no state log) with the
+                      given --io and --brew-scale; against a separate server start that one
+                      with --brew-scale instead, real brew times make a very slow run
+        --protocol    text (command lines, the default) or binary (BinaryProtocol frames,
+                      BinaryCafeConnection): same rounds, compare the two on one server
+        --policy      dispatch policy of the embedded server (DispatchPolicy), several separated
+                      by commas run one after the other on a fresh server each, with the same
+                      orders, and end with a table of the completion times per policy
+
+    note:
+        thousands of sessions need a high open files limit (ulimit -n) on both sides
+========================**/
+
+package helpers.customer;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import helpers.barista.*;
+import static helpers.common.Options.option;
+
+public class LoadGenerator {
+    private enum Kind { ORDER, STATUS, COLLECT, EXIT }
+
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10); //wait for late replies after the run
+    private static final int PARALLEL_CONNECTS = 200; //stay below the accept backlog of the server
+
+    // Command sent and still waiting for its reply
+    private static class Pending {
+        final Kind kind;
+        final long intendedNanos; //when the schedule wanted it sent
+
+        Pending(Kind kind, long intendedNanos) {
+            this.kind = kind;
+            this.intendedNanos = intendedNanos;
+        }
+    }
+
+    // One customer: its connection (text or binary), the commands without a reply yet and where it is in its round
+    private static class Session {
+        final String name;
+        final CafeConnection connection;             //null with --protocol=binary
+        final BinaryCafeConnection binaryConnection; //null with --protocol=text
+        final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+        volatile boolean ordered;    //order sent, not collected yet
+        volatile boolean completed;  //completion notification received
+        volatile boolean big;        //the order is a big one (--big-share)
+        volatile long orderIntendedNanos;
+
+        Session(String name, CafeConnection connection, BinaryCafeConnection binaryConnection) {
+            this.name = name;
+            this.connection = connection;
+            this.binaryConnection = binaryConnection;
+        }
+
+        void send(Kind kind, int teas, int coffees) throws IOException {
+            if (binaryConnection != null) {
+                switch (kind) {
+                    case ORDER:   binaryConnection.order(teas, coffees); break;
+                    case STATUS:  binaryConnection.status(); break;
+                    case COLLECT: binaryConnection.collect(); break;
+                    case EXIT:    binaryConnection.exit(); break;
+                }
+                return;
+            }
+            switch (kind) {
+                case ORDER:   connection.send(orderCommand(teas, coffees)); break;
+                case STATUS:  connection.send("order status"); break;
+                case COLLECT: connection.send("collect"); break;
+                case EXIT:    connection.send("exit"); break;
+            }
+        }
+
+        void close() throws IOException {
+            if (binaryConnection != null) {
+                binaryConnection.close();
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int customers;
+    private final double rate;
+    private final long runNanos;
+    private final int minItems, maxItems;
+    private final double teaShare;
+    private final double bigShare;
+    private final int bigItems;
+    private final boolean binary;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[Kind.values().length];
+    private final AtomicLong[] errors = new AtomicLong[Kind.values().length];
+    private final LatencyHistogram timeToCompletion = new LatencyHistogram("order -> completed");
+    private final LatencyHistogram smallToCompletion = new LatencyHistogram("order -> completed (small)");
+    private final LatencyHistogram bigToCompletion = new LatencyHistogram("order -> completed (big)");
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong unexpectedLines = new AtomicLong();
+    private final AtomicLong brokenSessions = new AtomicLong();
+
+    public LoadGenerator(String host, int port, int customers, double rate, int seconds,
+                         int minItems, int maxItems, double teaShare, double bigShare, int bigItems, boolean binary) {
+        if (customers < 1 || rate <= 0 || seconds < 1 || minItems < 1 || maxItems < minItems || bigItems < 1) {
+            throw new IllegalArgumentException("Customers, rate, seconds and items must be positive (items as min-max).");
+        }
+        this.host = host;
+        this.port = port;
+        this.customers = customers;
+        this.rate = rate;
+        this.runNanos = TimeUnit.SECONDS.toNanos(seconds);
+        this.minItems = minItems;
+        this.maxItems = maxItems;
+        this.teaShare = teaShare;
+        this.bigShare = bigShare;
+        this.bigItems = bigItems;
+        this.binary = binary;
+        for (Kind kind : Kind.values()) {
+            latency[kind.ordinal()] = new LatencyHistogram(kind.name().toLowerCase());
+            errors[kind.ordinal()] = new AtomicLong();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = option(args, "--host", "localhost");
+        int port = Integer.parseInt(option(args, "--port", "8888"));
+        String[] items = option(args, "--items", "1-3").split("-");
+        boolean embedded = Arrays.asList(args).contains("--embedded");
+        String[] policies = option(args, "--policy", "fifo").split(",");
+        if (!embedded && option(args, "--policy", null) != null) {
+            System.out.println("--policy only applies to the --embedded server, start the Barista with --policy instead");
+            policies = new String[]{"server"};
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (String policy : policies) {
+            VirtualCafe embeddedCafe = null;
+            if (embedded) {
+                try (ServerSocket probe = new ServerSocket(0)) {
+                    port = probe.getLocalPort();
+                }
+                host = "localhost";
+                embeddedCafe = startEmbeddedServer(port, option(args, "--io", "blocking"),
+                        Double.parseDouble(option(args, "--brew-scale", "0.001")), DispatchPolicy.parse(policy));
+                System.out.println((rows.isEmpty() ? "" : "\n") + "=====policy " + embeddedCafe.getDispatchPolicy() + "=====");
+            }
+
+            LoadGenerator generator = new LoadGenerator(host, port,
+                    Integer.parseInt(option(args, "--customers", "1000")),
+                    Double.parseDouble(option(args, "--rate", "2000")),
+                    Integer.parseInt(option(args, "--seconds", "30")),
+                    Integer.parseInt(items[0]), Integer.parseInt(items[items.length - 1]),
+                    Double.parseDouble(option(args, "--tea-share", "0.5")),
+                    Double.parseDouble(option(args, "--big-share", "0")),
+                    Integer.parseInt(option(args, "--big-items", "100")),
+                    option(args, "--protocol", "text").equals("binary"));
+            generator.run();
+            rows.add(generator.completionRow(embeddedCafe != null ? embeddedCafe.getDispatchPolicy().toString() : policy));
+
+            if (embeddedCafe != null) {
+                System.out.println("\nserver side (CafeMetrics of the embedded cafe):");
+                for (String line : embeddedCafe.getMetrics().getLatencies()) {
+                    System.out.println("  " + line);
+                }
+                embeddedCafe.shutdown();
+            }
+        }
+
+        if (rows.size() > 1) {
+            System.out.println("\norder -> completed per policy (ms):");
+            System.out.printf("  %-12s %9s %9s %9s %9s %9s %9s%n", "policy", "all p50", "all p99",
+                    "small p50", "small p99", "big p50", "big p99");
+            for (String row : rows) {
+                System.out.println("  " + row);
+            }
+        }
+    }
+
+    private static VirtualCafe startEmbeddedServer(int port, String io, double brewScale, DispatchPolicy policy)
+            throws InterruptedException {
+        VirtualCafe cafe = new VirtualCafe(new BrewingEngine(Executors.newVirtualThreadPerTaskExecutor(), brewScale), null);
+        cafe.setDispatchPolicy(policy);
+        Thread serverThread = new Thread(() -> {
+            try {
+                if (io.equals("nio")) {
+                    new NioCafeServer(port, cafe, Runtime.getRuntime().availableProcessors()).serve();
+                } else {
+                    new BlockingCafeServer(port, cafe, Executors.newVirtualThreadPerTaskExecutor()).serve();
+                }
+            } catch (IOException e) {
+                System.err.println("Embedded server stopped: " + e.getMessage());
+            }
+        }, "embedded-barista");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500); //let the server bind
+        return cafe;
+    }
+
+    public void run() throws InterruptedException {
+        List<Session> sessions = connectAll();
+        System.out.printf("connected %d/%d customers to %s:%d (%s protocol)%n", sessions.size(), customers, host, port,
+                binary ? "binary" : "text");
+        if (sessions.isEmpty()) {
+            return;
+        }
+
+        // every session sends one command per interval, the sessions are spread over that interval
+        long interval = (long) (1e9 * sessions.size() / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + runNanos;
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions.size(); i++) {
+                Session session = sessions.get(i);
+                long offset = interval * i / sessions.size();
+                threads.execute(() -> readReplies(session));
+                threads.execute(() -> sendCommands(session, start + offset, interval, end));
+            }
+
+            // after the run: wait for the replies still on their way, then leave
+            sleepUntil(end);
+            long drainDeadline = System.nanoTime() + DRAIN_NANOS;
+            while (outstanding(sessions) > 0 && System.nanoTime() < drainDeadline) {
+                Thread.sleep(10);
+            }
+            long lost = outstanding(sessions);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report(seconds, lost);
+
+            for (Session session : sessions) {
+                try {
+                    session.pending.add(new Pending(Kind.EXIT, System.nanoTime()));
+                    session.send(Kind.EXIT, 0, 0);
+                } catch (IOException ignored) {
+                    // already gone
+                }
+            }
+            Thread.sleep(200);
+            for (Session session : sessions) {
+                try { session.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // connect and greet every customer, a limited number of handshakes at a time
+    private List<Session> connectAll() throws InterruptedException {
+        List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+        Semaphore connecting = new Semaphore(PARALLEL_CONNECTS);
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < customers; i++) {
+                String name = "load-" + i;
+                connecting.acquire();
+                threads.execute(() -> {
+                    try {
+                        if (binary) {
+                            BinaryCafeConnection connection = new BinaryCafeConnection(host, port);
+                            if (connection.enter(name) == null) {
+                                sessions.add(new Session(name, null, connection));
+                            } else {
+                                connection.close();
+                                brokenSessions.incrementAndGet();
+                            }
+                            return;
+                        }
+                        CafeConnection connection = new CafeConnection(host, port);
+                        connection.readWelcome();
+                        String greeting = connection.enterName(name);
+                        if (greeting != null && greeting.startsWith("Hello")) {
+                            sessions.add(new Session(name, connection, null));
+                        } else {
+                            connection.close();
+                            brokenSessions.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        brokenSessions.incrementAndGet();
+                    } finally {
+                        connecting.release();
+                    }
+                });
+            }
+        }
+        return new ArrayList<>(sessions);
+    }
+
+    //=====one session=====
+    private void sendCommands(Session session, long first, long interval, long end) {
+        Random random = new Random(session.name.hashCode());
+        for (long intended = first; intended < end; intended += interval) {
+            sleepUntil(intended);
+
+            Kind kind;
+            int teas = 0;
+            int coffees = 0;
+            if (!session.ordered) {
+                kind = Kind.ORDER;
+                boolean big = random.nextDouble() < bigShare;
+                int items = big ? bigItems : minItems + random.nextInt(maxItems - minItems + 1);
+                for (int i = 0; i < items; i++) {
+                    if (random.nextDouble() < teaShare) teas++;
+                }
+                coffees = items - teas;
+                session.completed = false;
+                session.big = big;
+                session.orderIntendedNanos = intended;
+                session.ordered = true;
+            } else if (session.completed) {
+                kind = Kind.COLLECT;
+                session.ordered = false;
+            } else {
+                kind = Kind.STATUS;
+            }
+
+            session.pending.add(new Pending(kind, intended)); //before sending, the reply may come back at once
+            try {
+                session.send(kind, teas, coffees);
+            } catch (IOException e) {
+                brokenSessions.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void readReplies(Session session) {
+        if (session.binaryConnection != null) {
+            readFrames(session);
+            return;
+        }
+        try {
+            String line;
+            while ((line = session.connection.readLine()) != null) {
+                long now = System.nanoTime();
+                switch (CafeConnection.classify(line)) {
+                    case CONTINUATION:
+                    case UPDATE:
+                        break;
+                    case NOTIFICATION:
+                        onCompleted(session, now);
+                        break;
+                    case REPLY:
+                        onReply(session, line.startsWith("ERROR"), now);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+
+    // same for a binary connection: NOTIFICATION frames besides the replies
+    private void readFrames(Session session) {
+        try {
+            ByteBuffer frame;
+            while ((frame = session.binaryConnection.readFrame()) != null) {
+                long now = System.nanoTime();
+                int opcode = frame.get() & 0xff;
+                if (opcode != BinaryProtocol.NOTIFICATION) {
+                    onReply(session, opcode == BinaryProtocol.ERROR, now);
+                } else if (frame.get() == Notice.Kind.COMPLETED.ordinal()) {
+                    onCompleted(session, now);
+                }
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+
+    private void onCompleted(Session session, long now) {
+        if (session.ordered) {
+            timeToCompletion.record(now - session.orderIntendedNanos);
+            (session.big ? bigToCompletion : smallToCompletion).record(now - session.orderIntendedNanos);
+        }
+        session.completed = true;
+    }
+
+    // the reply to the oldest command of the session without one
+    private void onReply(Session session, boolean error, long now) {
+        Pending pending = session.pending.poll();
+        if (pending == null) {
+            unexpectedLines.incrementAndGet();
+            return;
+        }
+        latency[pending.kind.ordinal()].record(now - pending.intendedNanos);
+        replies.incrementAndGet();
+        if (error) {
+            errors[pending.kind.ordinal()].incrementAndGet();
+            if (pending.kind != Kind.STATUS) {
+                session.ordered = false; //start the round again with a new order
+            }
+        }
+    }
+
+    private static String orderCommand(int teas, int coffees) {
+        if (teas == 0) return "order " + coffees + " coffees";
+        if (coffees == 0) return "order " + teas + " teas";
+        return "order " + teas + " teas and " + coffees + " coffees";
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static long outstanding(List<Session> sessions) {
+        long count = 0;
+        for (Session session : sessions) {
+            count += session.pending.size();
+        }
+        return count;
+    }
+
+    private void report(double seconds, long lost) {
+        System.out.printf("%nrun: %.1fs, %d replies, %.0f replies/s (target %.0f commands/s)%n",
+                seconds, replies.get(), replies.get() / seconds, rate);
+        System.out.println("latency from the scheduled send time (coordinated omission corrected):");
+        for (Kind kind : new Kind[]{Kind.ORDER, Kind.STATUS, Kind.COLLECT}) {
+            System.out.println("  " + latency[kind.ordinal()].summary() + " errors=" + errors[kind.ordinal()].get());
+        }
+        System.out.println("  " + timeToCompletion.summary());
+        if (bigShare > 0) {
+            System.out.println("  " + smallToCompletion.summary());
+            System.out.println("  " + bigToCompletion.summary());
+        }
+        System.out.printf("no reply after the run: %d, unexpected lines: %d, broken sessions: %d%n",
+                lost, unexpectedLines.get(), brokenSessions.get());
+    }
+
+    // p50 / p99 of order -> completed in ms, all orders, the small and the big ones (table of main)
+    private String completionRow(String policy) {
+        StringBuilder row = new StringBuilder(String.format("%-12s", policy));
+        for (LatencyHistogram histogram : new LatencyHistogram[]{timeToCompletion, smallToCompletion, bigToCompletion}) {
+            for (double quantile : new double[]{0.5, 0.99}) {
+                row.append(histogram.getCount() == 0 ? String.format(" %9s", "-")
+                        : String.format(" %9.1f", histogram.getValueAtQuantile(quantile) / 1e6));
+            }
+        }
+        return row.toString();
+    }
+}
@@ -0,0 +1,252 @@
+/**=========================
+    what it does?
+        Front door of a cafe cluster: several Barista processes (nodes), each with its own
+        VirtualCafe, behind one gateway speaking the same text protocol to the customers.
+        * a customer connects to the gateway, which asks for its name like a Barista does
+        * the name picks the node on the consistent hash ring (HashRing), the gateway
+          connects to that node and enters the name there
+        * from then on it only relays bytes both ways: commands to the node, replies and
+          the asynchronous notifications ("Order completed", updates) back to the customer
+        So Customer and LoadGenerator work unchanged against the gateway, and every command
+        of one customer is served by the node that holds its order.
+
+    membership (admin console, localhost only, every reply ends with "END"):
+        * nodes               the nodes on the ring and the live sessions on every node
+        * add <host:port>     put a node on the ring, only the names of its arcs move to it
+        * remove <host:port>  take a node off the ring: its live sessions stay on it until
+                              their customers leave (their orders live there), new sessions of
+                              its names go to the next node clockwise
+        * route <name>        node a customer of that name goes to right now
+        * help, quit
+        A node that cannot be reached when a customer connects is skipped for the next
+        node clockwise, so a dead node costs its customers their orders but not the service.
+
+    how?
+        Two virtual threads per session, one copying each direction with blocking I/O.
+        No parsing after the name: pipelined commands and coalesced replies go through as
+        they are, the gateway adds one hop but no per command work.
+========================**/
+
+package helpers.gateway;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import helpers.common.LineConsole;
+
+public class CafeGateway {
+    public static final String WELCOME = "Welcome Please enter your name: "; //what a Barista asks
+    private static final int MAX_NAME_LENGTH = 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final HashRing ring;
+    private final int connectTimeoutMillis;
+    private final ExecutorService relays = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, AtomicInteger> liveSessions = new ConcurrentHashMap<>(); //per node
+
+    public CafeGateway(int port, HashRing ring, int connectTimeoutMillis) {
+        this.port = port;
+        this.ring = ring;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public HashRing getRing() { return ring; }
+
+    // accept customers for ever, every one relayed on its own virtual threads
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket client = serverSocket.accept();
+                relays.execute(() -> relay(client));
+            }
+        }
+    }
+
+    // one customer: handshake, pick and enter its node, then copy bytes both ways until one side closes
+    private void relay(Socket client) {
+        String nodeAddress = null;
+        Socket node = null;
+        try (client) {
+            client.setTcpNoDelay(true);
+            InputStream fromClient = client.getInputStream();
+            OutputStream toClient = client.getOutputStream();
+            writeLine(toClient, WELCOME);
+            String name = readLine(fromClient);
+            if (name == null) {
+                return; //left before telling its name
+            }
+            name = name.trim();
+            if (name.isEmpty()) {
+                writeLine(toClient, "ERROR Name cannot be empty.");
+                return;
+            }
+
+            for (String candidate : ring.nodesFor(name)) {
+                try {
+                    node = connect(candidate);
+                    nodeAddress = candidate;
+                    break;
+                } catch (IOException e) {
+                    System.err.println("Node " + candidate + " unreachable for " + name + ": " + e.getMessage());
+                }
+            }
+            if (node == null) {
+                writeLine(toClient, "ERROR No cafe node available, please try again later.");
+                return;
+            }
+            liveSessions.computeIfAbsent(nodeAddress, n -> new AtomicInteger()).incrementAndGet();
+
+            InputStream fromNode = node.getInputStream();
+            OutputStream toNode = node.getOutputStream();
+            if (readLine(fromNode) == null) { //its welcome, the customer got ours already
+                writeLine(toClient, "ERROR Cafe node " + nodeAddress + " closed the connection.");
+                return;
+            }
+            writeLine(toNode, name); //the node greets (or rejects) the customer itself
+
+            // node -> customer on its own thread: replies and the notifications it pushes at any time
+            Socket nodeSocket = node;
+            relays.execute(() -> copy(fromNode, toClient, client));
+            copy(fromClient, toNode, nodeSocket); //customer -> node until the customer leaves
+        } catch (IOException e) {
+            // customer or node went away during the handshake
+        } finally {
+            if (node != null) {
+                closeQuietly(node); //the node sees the customer leave and cleans up its order
+                liveSessions.get(nodeAddress).decrementAndGet();
+            }
+        }
+    }
+
+    private Socket connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Bad node address " + address);
+        }
+        return socket;
+    }
+
+    // copy until the source ends, then close the other side's socket so its copy ends too
+    private static void copy(InputStream in, OutputStream out, Socket closeWhenDone) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                out.flush(); //whatever arrived together leaves together, no extra batching delay
+            }
+        } catch (IOException e) {
+            // one side closed
+        } finally {
+            closeQuietly(closeWhenDone);
+        }
+    }
+
+    // one line read byte by byte, so nothing pipelined after it is taken from the stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (line.size() >= MAX_NAME_LENGTH) {
+                throw new IOException("Line too long.");
+            }
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    //=====admin console=====
+    // localhost only, served by a LineConsole
+    public void startAdmin(int adminPort) throws IOException {
+        LineConsole.start(adminPort, "gateway-admin", this::execute);
+    }
+
+    /**
+     * Run one admin command.
+
+     * @param command trimmed command line (node addresses and names keep their case)
+     * @return reply text, every line ending with a newline
+     */
+    public String execute(String command) {
+        String[] words = command.split("\\s+");
+        switch (words[0].toLowerCase()) {
+            case "nodes":
+                return describeNodes();
+            case "add":
+            case "remove":
+                if (words.length != 2 || words[1].lastIndexOf(':') < 1) {
+                    return "ERROR Usage: " + words[0].toLowerCase() + " <host:port>\n";
+                }
+                boolean changed = words[0].equalsIgnoreCase("add") ? ring.add(words[1]) : ring.remove(words[1]);
+                if (!changed) {
+                    return "ERROR Node " + words[1] + (words[0].equalsIgnoreCase("add") ? " is already" : " is not")
+                            + " on the ring\n";
+                }
+                return describeNodes();
+            case "route":
+                if (words.length != 2) {
+                    return "ERROR Usage: route <name>\n";
+                }
+                String node = ring.nodeFor(words[1]);
+                return (node == null ? "no node" : node) + "\n";
+            case "help":
+                return "nodes                 nodes on the ring and live sessions per node\n"
+                        + "add <host:port>       put a node on the ring\n"
+                        + "remove <host:port>    take a node off the ring (its sessions drain)\n"
+                        + "route <name>          node a customer of that name goes to\n"
+                        + "help                  this list\n"
+                        + "quit                  close the connection\n";
+            default:
+                return "ERROR Unknown admin command: " + command
+                        + ". Valid commands: nodes, add, remove, route, help, quit\n";
+        }
+    }
+
+    // "host:port sessions=N" per node on the ring, then the removed ones still draining
+    private String describeNodes() {
+        StringBuilder sb = new StringBuilder();
+        for (String node : ring.getNodes()) {
+            sb.append(node).append(" sessions=").append(sessionsOn(node)).append('\n');
+        }
+        for (Map.Entry<String, AtomicInteger> entry : liveSessions.entrySet()) {
+            if (!ring.getNodes().contains(entry.getKey()) && entry.getValue().get() > 0) {
+                sb.append(entry.getKey()).append(" sessions=").append(entry.getValue().get())
+                        .append(" (removed, draining)\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private int sessionsOn(String node) {
+        AtomicInteger count = liveSessions.get(node);
+        return count == null ? 0 : count.get();
+    }
+}
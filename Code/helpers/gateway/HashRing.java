@@ -0,0 +1,171 @@
+/**=========================
+    what it does?
+        Consistent hash ring of the cafe nodes ("host:port" of each Barista) the gateway
+        routes customers to. A customer goes to the first node clockwise of the hash of
+        its name, so the same name always lands on the same node while the ring is unchanged.
+
+    why consistent hashing instead of hash % nodes?
+        With hash % nodes adding a fourth node to three moves 3 out of 4 customers to
+        another node. On the ring a new node only takes over the arcs in front of its own
+        points: about 1/N of the names move, all of them to the new node, and removing a
+        node only moves the names it had (to the nodes next to it).
+
+    how?
+        * every node is put on the ring virtualNodes times (hash of "host:port#i"),
+          so the arcs even out and a removed node's names spread over all the others
+        * 64 bit FNV-1a of the UTF-8 bytes with a final mix: the same in every process
+          and JVM (the gateway and the tools building their own ring agree)
+        * copy on write: add/remove build a new sorted array under a lock, lookups read
+          the current one without any lock (binary search, O(log points))
+========================**/
+
+package helpers.gateway;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    // immutable snapshot of the ring: sorted points and the node of each point
+    private static class Points {
+        final long[] hashes;
+        final String[] nodes;
+        final List<String> members; //distinct nodes in the order they were added
+
+        Points(long[] hashes, String[] nodes, List<String> members) {
+            this.hashes = hashes;
+            this.nodes = nodes;
+            this.members = members;
+        }
+    }
+
+    private final int virtualNodes;
+    private final ReentrantLock lock = new ReentrantLock(); //writers only
+    private volatile Points points = new Points(new long[0], new String[0], List.of());
+
+    public HashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("A node needs at least one point on the ring.");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    // put a node on the ring, false if it is on it already
+    public boolean add(String node) {
+        lock.lock();
+        try {
+            Points current = points;
+            if (current.members.contains(node)) {
+                return false;
+            }
+            List<String> members = new ArrayList<>(current.members);
+            members.add(node);
+            points = build(members);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // take a node off the ring, false if it was not on it
+    public boolean remove(String node) {
+        lock.lock();
+        try {
+            Points current = points;
+            if (!current.members.contains(node)) {
+                return false;
+            }
+            List<String> members = new ArrayList<>(current.members);
+            members.remove(node);
+            points = build(members);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Points build(List<String> members) {
+        long[] hashes = new long[members.size() * virtualNodes];
+        String[] owners = new String[hashes.length];
+        Integer[] order = new Integer[hashes.length];
+        for (int m = 0; m < members.size(); m++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = m * virtualNodes + v;
+                hashes[i] = hash(members.get(m) + "#" + v);
+                owners[i] = members.get(m);
+                order[i] = i;
+            }
+        }
+        // sort the points, ties (practically never) broken by the node name so every ring agrees
+        Arrays.sort(order, Comparator.<Integer>comparingLong(i -> hashes[i]).thenComparing(i -> owners[i]));
+        long[] sortedHashes = new long[hashes.length];
+        String[] sortedNodes = new String[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedHashes[i] = hashes[order[i]];
+            sortedNodes[i] = owners[order[i]];
+        }
+        return new Points(sortedHashes, sortedNodes, List.copyOf(members));
+    }
+
+    // node of a customer, null while the ring is empty
+    public String nodeFor(String customerName) {
+        Points current = points;
+        if (current.hashes.length == 0) {
+            return null;
+        }
+        return current.nodes[firstPoint(current, hash(customerName))];
+    }
+
+    /**
+     * Every node in the order a customer tries them: its own node first, then the next
+     * distinct nodes clockwise - the ones that take its names over if its node is gone.
+
+     * @return distinct nodes, empty while the ring is empty
+     */
+    public List<String> nodesFor(String customerName) {
+        Points current = points;
+        List<String> nodes = new ArrayList<>(current.members.size());
+        if (current.hashes.length == 0) {
+            return nodes;
+        }
+        int start = firstPoint(current, hash(customerName));
+        for (int i = 0; i < current.hashes.length && nodes.size() < current.members.size(); i++) {
+            String node = current.nodes[(start + i) % current.hashes.length];
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    public List<String> getNodes() { return points.members; }
+
+    // index of the first point at or after the hash, wrapping around to the first one
+    private static int firstPoint(Points current, long hash) {
+        int at = Arrays.binarySearch(current.hashes, hash);
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return at == current.hashes.length ? 0 : at;
+    }
+
+    // 64 bit FNV-1a of the UTF-8 bytes, then the murmur3 finalizer so close strings spread out
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
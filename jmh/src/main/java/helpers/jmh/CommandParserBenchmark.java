@@ -0,0 +1,44 @@
+/**=========================
+    what it does?
+        JMH comparison of the command parsers on a short, a typical and a long order line,
+        a batch, a status command and one invalid order (error path):
+        * legacy     trim + lowercase + split (regex) + parse with exceptions (LegacyCommandParser)
+        * tokenizer  CommandParser on the line as it is, one parser reused like a connection does
+        Run with -prof gc to see the allocations per command next to the throughput.
+========================**/
+
+package helpers.jmh;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import helpers.barista.CommandParser;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+    @Param({
+            "order 1 tea",
+            "order 2 teas and 3 coffees",
+            "Order 1 tea and 2 coffees and 3 teas and 4 coffees and 5 teas",
+            "batch order 2 teas; order 1 coffee and 3 teas; 5 coffees",
+            "order status",
+            "order two teas"
+    })
+    String line;
+
+    private final CommandParser parser = new CommandParser();
+
+    @Benchmark
+    public Object legacy() {
+        return LegacyCommandParser.parse(line);
+    }
+
+    @Benchmark
+    public int tokenizer() {
+        CommandParser.Kind kind = parser.parse(line);
+        return kind.ordinal() + parser.getNumTeas() + parser.getNumCoffees(); //the results, so nothing is dead code
+    }
+}
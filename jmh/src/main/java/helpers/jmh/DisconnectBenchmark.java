@@ -0,0 +1,52 @@
+/**=========================
+    what it does?
+        JMH benchmark of VirtualCafe.customerDisconnected for a customer with <ownItems>
+        queued items, while other customers keep <otherItems> items queued as well.
+        The cost should follow the leaving customer's own items, not the size of the queues.
+
+    note:
+        SingleShotTime, the cafe is rebuilt before every measured call and brews
+        never finish during it (real brew time)
+========================**/
+
+package helpers.jmh;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import helpers.barista.BrewingEngine;
+import helpers.barista.VirtualCafe;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class DisconnectBenchmark {
+    @Param({"10", "1000", "100000"})
+    int ownItems;
+
+    @Param({"0", "100000"})
+    int otherItems;
+
+    VirtualCafe cafe;
+
+    @Setup(Level.Invocation)
+    public void fill() throws Exception {
+        cafe = new VirtualCafe(new BrewingEngine(null, 1.0), null);
+        cafe.customerConnected("others");
+        cafe.placeOrder("others", 2 + otherItems / 2, 2 + otherItems - otherItems / 2); //also fills every slot
+        cafe.customerConnected("leaver");
+        cafe.placeOrder("leaver", ownItems / 2, ownItems - ownItems / 2);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        cafe.shutdown();
+    }
+
+    @Benchmark
+    public int disconnect() {
+        cafe.customerDisconnected("leaver");
+        return cafe.getNumberOfClients();
+    }
+}
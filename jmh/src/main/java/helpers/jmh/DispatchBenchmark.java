@@ -0,0 +1,138 @@
+/**=========================
+    what it does?
+        JMH benchmarks of the dispatcher (VirtualCafe.startBrewingIfCapacityAvailable)
+        with deep waiting queues:
+        * dispatchPastTombstones : the customer holding every brewing slot leaves while
+                                   <depth> cancelled items of customers that already left sit in
+                                   front of the one live item - the freed slots must skip all of them
+        * drainQueue             : one customer orders <depth> items at once and waits until all of
+                                   them are brewed (brew time 0), every completion dispatches the next
+        * drainCustomers         : <customers> customers wait with 2 teas and 2 coffees each (the slots
+                                   were closed) under every DispatchPolicy, the slots open and the
+                                   queues drain - the cost of the customer lanes against one FIFO line
+
+    note:
+        SingleShotTime, the cafe is rebuilt before every measured call
+========================**/
+
+package helpers.jmh;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import helpers.barista.BrewingEngine;
+import helpers.barista.DispatchPolicy;
+import helpers.barista.OrderItem;
+import helpers.barista.VirtualCafe;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @State(Scope.Thread)
+    public static class TombstoneQueue {
+        @Param({"1000", "100000"})
+        int depth;
+
+        VirtualCafe cafe;
+
+        @Setup(Level.Invocation)
+        public void fill() throws Exception {
+            cafe = new VirtualCafe(new BrewingEngine(null, 1.0), null); //brews never finish during the call
+            cafe.customerConnected("holder");
+            cafe.placeOrder("holder", 2, 2); //takes every slot
+
+            // customers that ordered and left: their items stay in the queues as tombstones
+            for (int i = 0; i < depth; i++) {
+                String name = "gone-" + i;
+                cafe.customerConnected(name);
+                cafe.placeOrder(name, 1, 0);
+                cafe.customerDisconnected(name);
+            }
+            cafe.customerConnected("last");
+            cafe.placeOrder("last", 1, 0);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            cafe.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LiveQueue {
+        @Param({"1000", "100000"})
+        int depth;
+
+        VirtualCafe cafe;
+
+        @Setup(Level.Invocation)
+        public void open() {
+            cafe = new VirtualCafe(new BrewingEngine(null, 0.0), null);
+            cafe.customerConnected("regular");
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            cafe.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WaitingCustomers {
+        @Param({"fifo", "round-robin", "drr", "srpt"})
+        String policy;
+
+        @Param({"1000", "25000"})
+        int customers;
+
+        VirtualCafe cafe;
+
+        @Setup(Level.Invocation)
+        public void fill() throws Exception {
+            cafe = new VirtualCafe(new BrewingEngine(null, 0.0), null);
+            cafe.setDispatchPolicy(DispatchPolicy.parse(policy));
+            for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+                cafe.setBrewingCapacity(type, 0); //everything waits
+            }
+            for (int i = 0; i < customers; i++) {
+                String name = "customer-" + i;
+                cafe.customerConnected(name);
+                cafe.placeOrder(name, 2, 2);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            cafe.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int dispatchPastTombstones(TombstoneQueue queue) {
+        queue.cafe.customerDisconnected("holder");
+        return queue.cafe.getPendingBrews();
+    }
+
+    @Benchmark
+    public String drainQueue(LiveQueue queue) throws Exception {
+        queue.cafe.placeOrder("regular", queue.depth / 2, queue.depth - queue.depth / 2);
+        while (!queue.cafe.isOrderComplete("regular")) {
+            Thread.onSpinWait();
+        }
+        return queue.cafe.collectOrder("regular");
+    }
+
+    @Benchmark
+    public int drainCustomers(WaitingCustomers waiting) {
+        for (OrderItem.ItemType type : OrderItem.ItemType.values()) {
+            waiting.cafe.setBrewingCapacity(type, 2);
+        }
+        while (waiting.cafe.getWaitingCount(OrderItem.ItemType.TEA) + waiting.cafe.getWaitingCount(OrderItem.ItemType.COFFEE) > 0
+                || waiting.cafe.getPendingBrews() > 0) {
+            Thread.onSpinWait();
+        }
+        return waiting.cafe.getReadyCount(OrderItem.ItemType.COFFEE);
+    }
+}
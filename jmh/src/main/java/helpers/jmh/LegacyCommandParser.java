@@ -0,0 +1,136 @@
+/**=========================
+    what it does?
+        The command parsing CommandDispatcher did before CommandParser, kept here as the
+        baseline of CommandParserBenchmark: trim, lowercase and split (regex) of the line,
+        then the order words parsed with exceptions for every invalid order.
+        Same results as CommandParser, only the way there differs.
+========================**/
+
+package helpers.jmh;
+import helpers.barista.CommandParser;
+
+public class LegacyCommandParser {
+
+    // what the dispatcher acted on: the command and the order quantities or the error
+    public static class Result {
+        public final CommandParser.Kind kind;
+        public final int numTeas;
+        public final int numCoffees;
+        public final int orders;
+        public final String error;
+
+        Result(CommandParser.Kind kind, int numTeas, int numCoffees, int orders, String error) {
+            this.kind = kind;
+            this.numTeas = numTeas;
+            this.numCoffees = numCoffees;
+            this.orders = orders;
+            this.error = error;
+        }
+    }
+
+    public static Result parse(String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return new Result(CommandParser.Kind.EMPTY, 0, 0, 0, null);
+        }
+        String lowerLine = line.toLowerCase();
+        String[] words = lowerLine.split("\\s+");
+
+        if (words[0].equals("batch")) {
+            String[] orders = lowerLine.substring("batch".length()).split(";");
+            try {
+                int numTeas = 0;
+                int numCoffees = 0;
+                for (String order : orders) {
+                    int[] result = parseOrderCommand(batchOrderWords(order));
+                    numTeas = Math.addExact(numTeas, result[0]);
+                    numCoffees = Math.addExact(numCoffees, result[1]);
+                }
+                return new Result(CommandParser.Kind.BATCH, numTeas, numCoffees, orders.length, null);
+            } catch (Exception e) {
+                return new Result(CommandParser.Kind.BATCH, 0, 0, 0, e.getMessage());
+            }
+        } else if (lowerLine.startsWith("order status")) {
+            return new Result(CommandParser.Kind.STATUS, 0, 0, 0, null);
+        } else if (lowerLine.startsWith("order")) {
+            try {
+                int[] result = parseOrderCommand(words);
+                return new Result(CommandParser.Kind.ORDER, result[0], result[1], 0, null);
+            } catch (Exception e) {
+                return new Result(CommandParser.Kind.ORDER, 0, 0, 0, e.getMessage());
+            }
+        } else if (lowerLine.equals("collect")) {
+            return new Result(CommandParser.Kind.COLLECT, 0, 0, 0, null);
+        } else if (lowerLine.equals("subscribe")) {
+            return new Result(CommandParser.Kind.SUBSCRIBE, 0, 0, 0, null);
+        } else if (lowerLine.equals("unsubscribe")) {
+            return new Result(CommandParser.Kind.UNSUBSCRIBE, 0, 0, 0, null);
+        } else if (lowerLine.equals("exit")) {
+            return new Result(CommandParser.Kind.EXIT, 0, 0, 0, null);
+        }
+        return new Result(CommandParser.Kind.UNKNOWN, 0, 0, 0, null);
+    }
+
+    // {teas, coffees} of the words of one order, the first word is "order"
+    static int[] parseOrderCommand(String[] words) throws Exception {
+        int numTeas = 0;
+        int numCoffees = 0;
+        if (words.length < 3) {
+            throw new Exception("Invalid order format. Use: order <quantity> <tea/coffee> [and <quantity> <tea/coffee>]");
+        }
+        int i = 1;
+        while (i < words.length) {
+            int quantity;
+            try {
+                quantity = Integer.parseInt(words[i]);
+                i++;
+            } catch (NumberFormatException e) {
+                throw new Exception("Expected a number, got: " + words[i]);
+            }
+            if (quantity <= 0) {
+                throw new Exception("Quantity must be positive");
+            }
+            if (i >= words.length) {
+                throw new Exception("Expected 'tea' or 'coffee' after quantity");
+            }
+            String item = words[i];
+            i++;
+            if (item.equals("tea") || item.equals("teas")) {
+                numTeas += quantity;
+            } else if (item.equals("coffee") || item.equals("coffees")) {
+                numCoffees += quantity;
+            } else {
+                throw new Exception("Unknown item: " + item + ". Use 'tea' or 'coffee'");
+            }
+            if (i < words.length) {
+                if (words[i].equals("and")) {
+                    i++;
+                    if (i >= words.length) {
+                        throw new Exception("Expected quantity after 'and'");
+                    }
+                } else {
+                    throw new Exception("Unexpected word: " + words[i] + ". Expected 'and' or end of command");
+                }
+            }
+        }
+        if (numTeas == 0 && numCoffees == 0) {
+            throw new Exception("No items ordered");
+        }
+        return new int[] {numTeas, numCoffees};
+    }
+
+    private static String[] batchOrderWords(String order) throws Exception {
+        String trimmed = order.trim();
+        if (trimmed.isEmpty()) {
+            throw new Exception("Empty order in batch. Use: batch order <quantity> <tea/coffee>; order ...");
+        }
+        String[] words = trimmed.split("\\s+");
+        if (words[0].equals("order")) {
+            return words;
+        }
+        String[] withOrder = new String[words.length + 1];
+        withOrder[0] = "order";
+        System.arraycopy(words, 0, withOrder, 1, words.length);
+        return withOrder;
+    }
+}
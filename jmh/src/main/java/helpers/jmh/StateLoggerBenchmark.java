@@ -0,0 +1,56 @@
+/**=========================
+    what it does?
+        JMH benchmark of logging one cafe state snapshot (CafeStateLogger.log) while the log
+        file keeps growing and rotating:
+        * DROP  : cost on the caller only, snapshots are dropped once the writer falls behind
+        * BLOCK : callers wait for the writer, so this is the sustained append rate to the file
+
+    why not writeJsonLog?
+        The old writeJsonLog (rewrite of the whole file per entry) was replaced by
+        CafeStateLogger, whose append cost must stay flat however big the file gets.
+========================**/
+
+package helpers.jmh;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import helpers.barista.CafeStateLogger;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StateLoggerBenchmark {
+    @Param({"DROP", "BLOCK"})
+    CafeStateLogger.Policy policy;
+
+    File directory;
+    CafeStateLogger logger;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("cafe-log-bench").toFile();
+        logger = new CafeStateLogger(new File(directory, "bench_logs.json").getPath(),
+                4096, 200, policy, 10L * 1024 * 1024, 3, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        logger.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public boolean log() {
+        return logger.log(new CafeStateLogger.Snapshot(10, 5, 3, 4, 2, 2, 1, 0));
+    }
+}
@@ -0,0 +1,153 @@
+/**=========================
+    what it does?
+        JMH benchmarks of the customer facing VirtualCafe operations:
+        * orderCollectRoundTrip : placeOrder, wait until the order is complete, collectOrder
+                                  (brew time scaled to 0, so it is the cost of the cafe, not of brewing)
+        * orderStatus           : getOrderStatus of a customer with a complete order in the tray,
+                                  found by name (map lookup) and by session id (slot table, as the servers do)
+        * placeOrder            : placeOrder alone on a cafe whose brews never finish during the run,
+                                  timed per batch of 10k orders (the queues would grow for ever otherwise)
+
+    how to run with contending threads?
+        every benchmark thread is its own customer, so run the same benchmark with 1..N threads:
+        java -jar jmh/target/benchmarks.jar VirtualCafeBenchmark -t 1
+        java -jar jmh/target/benchmarks.jar VirtualCafeBenchmark -t 4
+        java -jar jmh/target/benchmarks.jar VirtualCafeBenchmark -t 16
+        the instant cafe runs as one VirtualCafe (shards=1) and as a ShardedCafe of 4 shards,
+        -p shards=1,2,4,8 shows how the round trip throughput grows with the shards and threads
+========================**/
+
+package helpers.jmh;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+import helpers.barista.AdmissionControl;
+import helpers.barista.BrewProfiles;
+import helpers.barista.BrewingEngine;
+import helpers.barista.Cafe;
+import helpers.barista.ShardedCafe;
+import helpers.barista.VirtualCafe;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VirtualCafeBenchmark {
+    private static final AtomicInteger CUSTOMER_IDS = new AtomicInteger();
+
+    // cafe brewing instantly, no state logging
+    @State(Scope.Benchmark)
+    public static class InstantCafe {
+        @Param({"1", "4"})
+        int shards;
+
+        Cafe cafe;
+
+        @Setup(Level.Trial)
+        public void open() {
+            cafe = shards > 1
+                    ? new ShardedCafe(shards, () -> new BrewingEngine(null, 0.0), null, null,
+                            new BrewProfiles(), AdmissionControl.unlimited())
+                    : new VirtualCafe(new BrewingEngine(null, 0.0), null);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            cafe.shutdown();
+        }
+    }
+
+    // one connected customer per benchmark thread
+    @State(Scope.Thread)
+    public static class Customer {
+        String name;
+
+        @Setup(Level.Trial)
+        public void connect(InstantCafe instantCafe) {
+            name = "customer-" + CUSTOMER_IDS.incrementAndGet();
+            instantCafe.cafe.customerConnected(name);
+        }
+    }
+
+    // customer whose order is complete and waits in the tray (status has something to report)
+    @State(Scope.Thread)
+    public static class ServedCustomer {
+        String name;
+        int session;
+
+        @Setup(Level.Trial)
+        public void connect(InstantCafe instantCafe) throws Exception {
+            name = "served-" + CUSTOMER_IDS.incrementAndGet();
+            session = instantCafe.cafe.openSession(name);
+            instantCafe.cafe.placeOrder(name, 2, 1);
+            while (!instantCafe.cafe.isOrderComplete(name)) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    // cafe brewing at real speed: within one run nothing leaves the waiting area
+    @State(Scope.Benchmark)
+    public static class FrozenCafe {
+        VirtualCafe cafe;
+
+        @Setup(Level.Trial)
+        public void open() {
+            cafe = new VirtualCafe(new BrewingEngine(null, 1.0), null);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            cafe.shutdown();
+        }
+    }
+
+    // a fresh customer every iteration, leaving afterwards cancels the queued items
+    @State(Scope.Thread)
+    public static class FrozenCustomer {
+        String name;
+        VirtualCafe cafe;
+
+        @Setup(Level.Iteration)
+        public void connect(FrozenCafe frozenCafe) {
+            cafe = frozenCafe.cafe;
+            name = "frozen-" + CUSTOMER_IDS.incrementAndGet();
+            cafe.customerConnected(name);
+        }
+
+        @TearDown(Level.Iteration)
+        public void leave() {
+            cafe.customerDisconnected(name);
+        }
+    }
+
+    @Benchmark
+    public String orderCollectRoundTrip(InstantCafe instantCafe, Customer customer) throws Exception {
+        Cafe cafe = instantCafe.cafe;
+        cafe.placeOrder(customer.name, 1, 1);
+        while (!cafe.isOrderComplete(customer.name)) {
+            Thread.onSpinWait();
+        }
+        return cafe.collectOrder(customer.name);
+    }
+
+    @Benchmark
+    public String orderStatus(InstantCafe instantCafe, ServedCustomer customer) throws Exception {
+        return instantCafe.cafe.getOrderStatus(customer.name);
+    }
+
+    @Benchmark
+    public String orderStatusBySession(InstantCafe instantCafe, ServedCustomer customer) throws Exception {
+        return instantCafe.cafe.getOrderStatus(customer.session);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, batchSize = 10_000)
+    @Measurement(iterations = 20, batchSize = 10_000)
+    public void placeOrder(FrozenCustomer customer) throws Exception {
+        customer.cafe.placeOrder(customer.name, 1, 0);
+    }
+}